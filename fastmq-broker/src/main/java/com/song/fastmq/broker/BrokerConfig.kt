@@ -0,0 +1,52 @@
+package com.song.fastmq.broker
+
+import com.song.fastmq.storage.storage.config.BookKeeperConfig
+import com.song.fastmq.storage.storage.config.LocalStorageConfig
+import com.song.fastmq.storage.storage.config.MemoryStorageConfig
+import com.song.fastmq.storage.storage.config.MessageStorageConfig
+
+/**
+ * Settings of a [BrokerService].
+ *
+ * @author song
+ */
+class BrokerConfig {
+
+    var port = 7164
+
+    /**
+     * Where messages are stored, [StorageType.LOCAL] needs neither ZooKeeper nor BookKeeper,
+     * [StorageType.MEMORY] keeps messages and offsets in memory only, which loses them on restart.
+     */
+    var storageType = StorageType.BOOKKEEPER
+
+    var zkServers = "127.0.0.1:2181"
+
+    var bookKeeperConfig = BookKeeperConfig()
+
+    var localStorageConfig = LocalStorageConfig()
+
+    var memoryStorageConfig = MemoryStorageConfig()
+
+    var messageStorageConfig = MessageStorageConfig()
+
+    /**
+     * A connection stops reading from its socket while the bytes it published and not persisted yet exceed
+     * [maxPendingPublishBytesPerConnection], all the connections stop while the whole broker exceeds
+     * [maxPendingPublishBytes]. Reading resumes once below half of the limit. 0 for no limit.
+     */
+    var maxPendingPublishBytesPerConnection: Long = 16 * 1024 * 1024
+
+    var maxPendingPublishBytes: Long = 512 * 1024 * 1024
+
+    /**
+     * Open topics whose name matches [compactedTopics] are compacted every [compactionIntervalMs], 0 to never compact.
+     */
+    var compactionIntervalMs: Long = 0
+
+    var compactedTopics = ".*"
+
+    enum class StorageType {
+        BOOKKEEPER, LOCAL, MEMORY
+    }
+}
@@ -1,5 +1,6 @@
 package com.song.fastmq.broker
 
+import com.song.fastmq.broker.core.ServerCnx
 import com.song.fastmq.broker.core.Topic
 import com.song.fastmq.broker.core.persistent.PersistentTopic
 import com.song.fastmq.broker.exception.FastMQServiceException
@@ -8,7 +9,10 @@ import com.song.fastmq.common.logging.LoggerFactory
 import com.song.fastmq.common.utils.OnCompletedObserver
 import com.song.fastmq.common.utils.Utils
 import com.song.fastmq.storage.storage.MessageStorage
-import com.song.fastmq.storage.storage.config.BookKeeperConfig
+import com.song.fastmq.storage.storage.MessageStorageFactory
+import com.song.fastmq.storage.storage.Offset
+import com.song.fastmq.storage.storage.impl.InMemoryMessageStorageFactoryImpl
+import com.song.fastmq.storage.storage.impl.LocalMessageStorageFactoryImpl
 import com.song.fastmq.storage.storage.impl.MessageStorageFactoryImpl
 import io.netty.bootstrap.ServerBootstrap
 import io.netty.buffer.PooledByteBufAllocator
@@ -28,15 +32,22 @@ import org.apache.bookkeeper.conf.ClientConfiguration
 import org.apache.commons.lang.SystemUtils
 import java.io.Closeable
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 import java.util.concurrent.locks.ReentrantLock
+import java.util.regex.Pattern
 import kotlin.concurrent.withLock
 
 /**
  * @author song
  */
-class BrokerService(private val port: Int = 7164) : Closeable {
+class BrokerService(val config: BrokerConfig = BrokerConfig()) : Closeable {
 
-    val messageStorageFactory: MessageStorageFactoryImpl
+    private val port = config.port
+
+    val messageStorageFactory: MessageStorageFactory
 
     private val acceptorGroup: EventLoopGroup
 
@@ -48,13 +59,32 @@ class BrokerService(private val port: Int = 7164) : Closeable {
 
     private val isClosedCondition = lock.newCondition()
 
+    private val pendingPublishBytes = AtomicLong()
+
+    // Connections that stopped reading because the broker has too many pending publishes
+    private val throttledConnections = ConcurrentHashMap.newKeySet<ServerCnx>()
+
     private var state = State.Init
 
+    private val compactedTopics = Pattern.compile(config.compactedTopics)
+
+    private val compactionExecutor: ScheduledExecutorService? = if (config.compactionIntervalMs > 0) {
+        Executors.newSingleThreadScheduledExecutor(DefaultThreadFactory("broker-compaction"))
+    } else {
+        null
+    }
+
     init {
-        val clientConfiguration = ClientConfiguration()
-        clientConfiguration.zkServers = "127.0.0.1:2181"
-        val bkConfig = BookKeeperConfig()
-        messageStorageFactory = MessageStorageFactoryImpl(clientConfiguration, bkConfig)
+        messageStorageFactory = when (config.storageType) {
+            BrokerConfig.StorageType.LOCAL -> LocalMessageStorageFactoryImpl(config.localStorageConfig, config.messageStorageConfig)
+            BrokerConfig.StorageType.MEMORY -> InMemoryMessageStorageFactoryImpl(config.memoryStorageConfig, config.messageStorageConfig)
+            BrokerConfig.StorageType.BOOKKEEPER -> {
+                val clientConfiguration = ClientConfiguration()
+                clientConfiguration.zkServers = config.zkServers
+                MessageStorageFactoryImpl(clientConfiguration, config.bookKeeperConfig, config.messageStorageConfig)
+            }
+        }
+        logger.info("Storing messages in {}", config.storageType)
         var acceptorEventLoop: EventLoopGroup
         var workersEventLoop: EventLoopGroup
 
@@ -102,6 +132,8 @@ class BrokerService(private val port: Int = 7164) : Closeable {
             bootstrap.childHandler(BrokerChannelInitializer(this))
             bootstrap.bind(port).sync()
             logger.info("Started FastMQ Broker[{}] on port {}.", Utils.getLocalAddress(), port)
+            this.compactionExecutor?.scheduleWithFixedDelay({ compactTopics() }, config.compactionIntervalMs,
+                    config.compactionIntervalMs, TimeUnit.MILLISECONDS)
             state = State.Started
         }
     }
@@ -131,6 +163,61 @@ class BrokerService(private val port: Int = 7164) : Closeable {
         }
     }
 
+    /**
+     * Bytes published over all the connections and not persisted yet.
+     */
+    fun getPendingPublishBytes() = this.pendingPublishBytes.get()
+
+    /**
+     * Account for a publish of [bytes], returns true if the broker is over its budget and the connection
+     * should stop reading, see [throttle].
+     */
+    fun publishStarted(bytes: Long): Boolean {
+        val pending = this.pendingPublishBytes.addAndGet(bytes)
+        return this.config.maxPendingPublishBytes > 0 && pending >= this.config.maxPendingPublishBytes
+    }
+
+    fun publishCompleted(bytes: Long) {
+        val pending = this.pendingPublishBytes.addAndGet(-bytes)
+        if (pending < this.config.maxPendingPublishBytes / 2 && this.throttledConnections.isNotEmpty()) {
+            val connections = ArrayList(this.throttledConnections)
+            this.throttledConnections.removeAll(connections)
+            logger.info("Pending publishes dropped to {} bytes, resume {} connections", pending, connections.size)
+            connections.forEach { it.resumeReading() }
+        }
+    }
+
+    fun isPublishThrottled() = this.config.maxPendingPublishBytes > 0
+            && this.pendingPublishBytes.get() >= this.config.maxPendingPublishBytes / 2
+
+    /**
+     * Resume reading from [cnx] once the broker is below half of its budget.
+     */
+    fun throttle(cnx: ServerCnx) {
+        this.throttledConnections.add(cnx)
+    }
+
+    fun removeThrottledConnection(cnx: ServerCnx) {
+        this.throttledConnections.remove(cnx)
+    }
+
+    /**
+     * Compact the open topics matching [BrokerConfig.compactedTopics], each in the background of its storage.
+     */
+    fun compactTopics() {
+        this.topics.values.filter { this.compactedTopics.matcher(it.getTopic()).matches() }.forEach { topic ->
+            topic.compact().subscribe(object : OnCompletedObserver<Offset>() {
+                override fun onNext(t: Offset) {
+                    logger.debug("[{}] Compacted up to {}", topic.getTopic(), t)
+                }
+
+                override fun onError(e: Throwable) {
+                    logger.warn("[{}] Failed to compact topic: {}", topic.getTopic(), e.message)
+                }
+            })
+        }
+    }
+
     fun waitUntilClosed() {
         this.lock.withLock {
             while (state != State.Closed) {
@@ -144,6 +231,7 @@ class BrokerService(private val port: Int = 7164) : Closeable {
             if (state == State.Closed) {
                 return
             }
+            this.compactionExecutor?.shutdownNow()
             acceptorGroup.shutdownGracefully()
             workerGroup.shutdownGracefully()
             this.messageStorageFactory.close()
@@ -16,7 +16,13 @@ public class BrokerStartup {
         Configurator.initialize("FastMQ", Thread.currentThread().getContextClassLoader(), "log4j2.xml");
         Thread.setDefaultUncaughtExceptionHandler((thread, exception) -> logger.error("Uncaught exception in thread", exception));
 
-        BrokerService brokerService = new BrokerService();
+        BrokerConfig config = new BrokerConfig();
+        config.setStorageType(BrokerConfig.StorageType
+            .valueOf(System.getProperty("fastmq.storage", config.getStorageType().name()).toUpperCase()));
+        config.setZkServers(System.getProperty("fastmq.zkServers", config.getZkServers()));
+        config.getLocalStorageConfig()
+            .setDataDirectory(System.getProperty("fastmq.dataDirectory", config.getLocalStorageConfig().getDataDirectory()));
+        BrokerService brokerService = new BrokerService(config);
         try {
             brokerService.start();
         } catch (Exception e) {
@@ -1,65 +1,88 @@
 package com.song.fastmq.broker.core
 
-import com.google.common.collect.Lists
-import com.song.fastmq.common.domain.MessageConstants
 import com.song.fastmq.common.logging.LoggerFactory
 import com.song.fastmq.common.utils.OnCompletedObserver
 import com.song.fastmq.net.proto.BrokerApi
+import com.song.fastmq.net.proto.Commands
 import com.song.fastmq.storage.storage.BatchMessage
 import com.song.fastmq.storage.storage.MessageStorage
 import com.song.fastmq.storage.storage.Offset
+import com.song.fastmq.storage.storage.support.NoMoreMessageException
 import io.netty.buffer.Unpooled
 import java.util.*
 
 /**
  * @author song
  */
-class Consumer(private val cnx: ServerCnx, private val messageStorage: MessageStorage) {
+class Consumer(private val cnx: ServerCnx, private val messageStorage: MessageStorage,
+               private val readCompacted: Boolean = false) {
+
+    // Set once closed, so a read completing afterwards doesn't register the reader again
+    @Volatile
+    private var closed = false
 
     /**
-     * todo:return Observable
+     * Messages are written to the channel as they were stored, without being decoded. At the end of the topic
+     * the read waits up to [maxWaitMs] for new messages, then an empty batch is sent so the client pulls again.
+     * Any other failure is answered with an error for [requestId], so the client doesn't wait for its pull to time out.
      */
-    fun readMessage(consumerId: Long, offset: Offset, maxToRead: Int) {
-        val builder = BrokerApi.CommandMessage.newBuilder()
-        builder.consumerId = consumerId
-        val messages = Lists.newArrayListWithExpectedSize<BrokerApi.CommandSend>(maxToRead)
-        messageStorage.queryMessage(offset, maxToRead)
-                .blockingSubscribe(object : OnCompletedObserver<BatchMessage>() {
+    fun readMessage(consumerId: Long, requestId: Long, offset: Offset, maxToRead: Int, maxWaitMs: Long = 0) {
+        val messages = if (readCompacted) {
+            messageStorage.queryCompacted(offset, maxToRead, maxWaitMs)
+        } else {
+            messageStorage.queryMessage(offset, maxToRead, maxWaitMs)
+        }
+        messages.subscribe(object : OnCompletedObserver<BatchMessage>() {
                     override fun onError(e: Throwable) {
+                        if (e is NoMoreMessageException) {
+                            onNext(BatchMessage(offset, Collections.emptyList()))
+                            return
+                        }
                         logger.error("Read message failed_" + e.message, e)
+                        cnx.ctx.writeAndFlush(Unpooled.wrappedBuffer(Commands
+                                .newError(requestId, BrokerApi.ServerError.PersistenceError, e.message ?: e.toString())
+                                .toByteArray()))
                     }
 
                     override fun onNext(t: BatchMessage) {
-                        t.messages.forEach {
-                            val id = BrokerApi.MessageIdData.newBuilder()
+                        val messageIds = t.messages.map {
+                            BrokerApi.MessageIdData.newBuilder()
                                     .setLedgerId(it.messageId.ledgerId)
                                     .setEntryId(it.messageId.entryId)
+                                    .setBatchIndex(it.messageId.batchIndex)
                                     .build()
-                            val message = BrokerApi.CommandSend
-                                    .newBuilder()
-                                    .mergeFrom(it.data)
-                                    .putHeaders(MessageConstants.MESSAGE_ID, Base64.getEncoder().encodeToString(id.toByteArray()))
-                                    .build()
-                            messages.add(message)
                         }
-                        builder.nextReadOffset = BrokerApi.MessageIdData
+                        val nextReadOffset = BrokerApi.MessageIdData
                                 .newBuilder()
                                 .setLedgerId(t.nextReadOffset.ledgerId)
                                 .setEntryId(t.nextReadOffset.entryId)
+                                .setBatchIndex(t.nextReadOffset.batchIndex)
                                 .build()
-                        builder.addAllMessages(messages)
-                    }
-
-                    override fun onComplete() {
-                        val command = BrokerApi.Command.newBuilder()
-                                .setType(BrokerApi.Command.Type.MESSAGE)
-                                .setMessage(builder.build())
-                                .build()
-                        cnx.ctx.channel()?.writeAndFlush(Unpooled.wrappedBuffer(command.toByteArray()))
+                        val channel = cnx.ctx.channel()
+                        if (channel == null || closed || !cnx.isActiveConsumer(consumerId, this@Consumer)) {
+                            t.release()
+                            return
+                        }
+                        messageStorage.updateReadPosition(readerName(consumerId), t.nextReadOffset)
+                        if (closed) {
+                            // Closed meanwhile, the reader may have been removed before the update
+                            messageStorage.removeReader(readerName(consumerId))
+                        }
+                        channel.writeAndFlush(Commands.newMessage(consumerId, nextReadOffset, messageIds, t.messages.map { it.buffer }))
                     }
                 })
     }
 
+    fun close(consumerId: Long) {
+        closed = true
+        messageStorage.removeReader(readerName(consumerId))
+    }
+
+    /**
+     * Consumer ids are only unique on a connection, so readers are named after the connection too.
+     */
+    private fun readerName(consumerId: Long) = "${cnx.remoteAddress}-$consumerId"
+
     companion object {
         private val logger = LoggerFactory.getLogger(Consumer::class.java)
     }
@@ -19,22 +19,31 @@ class Producer(val topic: Topic, val cnx: ServerCnx, val producerName: String, v
     @Volatile
     private var isClosed = AtomicBoolean(false)
 
+    /**
+     * The payload is released once it is written or rejected. Called in the event loop of the connection,
+     * which accounts for the publish until it completes.
+     */
     fun publishMessage(producerId: Long, sequenceId: Long, payload: ByteBuf) {
         if (isClosed()) {
+            payload.release()
             val sendError = Commands.newSendError(producerId, sequenceId, MessagePublichException("Producer is already closed!"))
             cnx.ctx.writeAndFlush(Unpooled.wrappedBuffer(sendError.toByteArray()))
             return
         }
+        val bytes = payload.readableBytes().toLong()
+        cnx.publishStarted(bytes)
         this.topic.publishMessage(payload)
                 .subscribe(object : Observer<Offset> {
 
                     override fun onNext(t: Offset) {
+                        cnx.publishCompleted(bytes)
                         logger.debug("Successfully publish message with offset {}.", t)
-                        val sendReceipt = Commands.newSendReceipt(producerId, sequenceId, t.ledgerId, t.entryId)
+                        val sendReceipt = Commands.newSendReceipt(producerId, sequenceId, t.ledgerId, t.entryId, t.batchIndex)
                         cnx.ctx.writeAndFlush(Unpooled.wrappedBuffer(sendReceipt.toByteArray()))
                     }
 
                     override fun onError(e: Throwable) {
+                        cnx.publishCompleted(bytes)
                         logger.error("Publish message failed_${e.message}", e)
                         val sendError = Commands.newSendError(producerId, sequenceId, e)
                         cnx.ctx.writeAndFlush(Unpooled.wrappedBuffer(sendError.toByteArray()))
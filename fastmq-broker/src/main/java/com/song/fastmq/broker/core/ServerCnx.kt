@@ -11,7 +11,7 @@ import com.song.fastmq.net.proto.BrokerApi
 import com.song.fastmq.net.proto.Commands
 import com.song.fastmq.storage.storage.ConsumerInfo
 import com.song.fastmq.storage.storage.Offset
-import com.song.fastmq.storage.storage.support.OffsetStorageException
+import com.song.fastmq.storage.storage.concurrent.AsyncCallbacks
 import io.netty.buffer.ByteBuf
 import io.netty.buffer.Unpooled
 import io.netty.channel.ChannelHandlerContext
@@ -29,6 +29,11 @@ class ServerCnx(private val brokerService: BrokerService) : AbstractHandler() {
 
     private val consumers = ConcurrentHashMap<Long, Consumer>()
 
+    // Bytes published on this connection and not persisted yet, only accessed in the event loop of the channel
+    private var pendingPublishBytes: Long = 0
+
+    private var readingPaused = false
+
     init {
         state = State.START
     }
@@ -56,12 +61,21 @@ class ServerCnx(private val brokerService: BrokerService) : AbstractHandler() {
                 }
             })
             producers.clear()
+            consumers.forEach { consumerId, consumer -> consumer.close(consumerId) }
             consumers.clear()
+            brokerService.removeThrottledConnection(this)
         } catch (e: Exception) {
             logger.error("Close producers or consumers failed_" + e.message, e)
         }
     }
 
+    /**
+     * Whether the consumer is still registered on this connection and the connection is still open.
+     */
+    fun isActiveConsumer(consumerId: Long, consumer: Consumer): Boolean {
+        return ctx.channel().isActive && this.consumers[consumerId] === consumer
+    }
+
     override fun channelWritabilityChanged(ctx: ChannelHandlerContext) {
         super.channelWritabilityChanged(ctx)
         logger.info("Channel writability has changed to ${ctx.channel().isWritable}")
@@ -116,10 +130,11 @@ class ServerCnx(private val brokerService: BrokerService) : AbstractHandler() {
         }
     }
 
-    override fun handleSend(commandSend: BrokerApi.CommandSend) {
+    override fun handleSend(commandSend: BrokerApi.CommandSend, headersAndPayload: ByteBuf) {
         if (commandSend.headersMap[MessageConstants.PRODUCER_ID].isNullOrBlank()
                 || commandSend.headersMap[MessageConstants.SEQUENCE_ID].isNullOrBlank()) {
             logger.warn("Ignore invalid message ,{}", commandSend.toString())
+            headersAndPayload.release()
             return
         }
         val producerId = commandSend.headersMap[MessageConstants.PRODUCER_ID]!!.toLong()
@@ -127,9 +142,10 @@ class ServerCnx(private val brokerService: BrokerService) : AbstractHandler() {
         val producer = this.producers[producerId]
         if (producer == null) {
             logger.warn("[{}] Producer doesn't exist [{}].", remoteAddress, producerId)
+            headersAndPayload.release()
             return
         }
-        producer.publishMessage(producerId, sequenceId, Unpooled.wrappedBuffer(commandSend.toByteArray()))
+        producer.publishMessage(producerId, sequenceId, headersAndPayload)
     }
 
     override fun handleSubscribe(subscribe: BrokerApi.CommandSubscribe) {
@@ -150,7 +166,7 @@ class ServerCnx(private val brokerService: BrokerService) : AbstractHandler() {
                 }
 
                 override fun onNext(t: Topic) {
-                    t.subscribe(this@ServerCnx).subscribe(object : OnCompletedObserver<Consumer>() {
+                    t.subscribe(this@ServerCnx, subscribe.readCompacted).subscribe(object : OnCompletedObserver<Consumer>() {
                         override fun onError(e: Throwable) {
                             logger.error("[$topic][$consumerId] Open consumer failed_" + e.message, e)
                             ctx.writeAndFlush(Unpooled.wrappedBuffer(Commands
@@ -180,7 +196,8 @@ class ServerCnx(private val brokerService: BrokerService) : AbstractHandler() {
     override fun handlePullMessage(pullMessage: BrokerApi.CommandPullMessage) {
         val consumerId = pullMessage.consumerId
         val messageId = pullMessage.messageId
-        this.consumers[consumerId]?.readMessage(consumerId, Offset(messageId.ledgerId, messageId.entryId), pullMessage.maxMessage)
+        this.consumers[consumerId]?.readMessage(consumerId, pullMessage.requestId, Offset(messageId.ledgerId, messageId.entryId, messageId.batchIndex),
+                pullMessage.maxMessage, pullMessage.maxWaitMs)
                 ?: run {
                     logger.error("Consumer not exist :{} ", consumerId)
                     ctx.writeAndFlush(Unpooled.wrappedBuffer(Commands
@@ -190,15 +207,79 @@ class ServerCnx(private val brokerService: BrokerService) : AbstractHandler() {
     }
 
     override fun handleFetchOffset(fetchOffset: BrokerApi.CommandFetchOffset) {
-        try {
-            val offset = brokerService.messageStorageFactory.offsetStorage
-                    .queryOffset(ConsumerInfo(fetchOffset.consumerName, fetchOffset.topic))
-            ctx.writeAndFlush(Unpooled.wrappedBuffer(Commands
-                    .newFetchOffsetResponse(fetchOffset.topic, fetchOffset.consumerId,
-                            offset.ledgerId, offset.entryId).toByteArray()))
-        } catch (e: OffsetStorageException) {
-            logger.error(e.message, e)
+        // Loading the offset may go to ZooKeeper, so never wait for it in the event loop
+        brokerService.messageStorageFactory.offsetStorage.asyncQueryOffset(ConsumerInfo(fetchOffset.consumerName, fetchOffset.topic),
+                object : AsyncCallbacks.ReadOffsetCallback {
+                    override fun onComplete(offset: Offset) {
+                        ctx.writeAndFlush(Unpooled.wrappedBuffer(Commands
+                                .newFetchOffsetResponse(fetchOffset.topic, fetchOffset.consumerId,
+                                        offset.ledgerId, offset.entryId, offset.batchIndex).toByteArray()))
+                    }
+
+                    override fun onThrowable(throwable: Throwable) {
+                        logger.error("Fetch offset of consumer[{}] of topic [{}] failed", fetchOffset.consumerName, fetchOffset.topic, throwable)
+                        ctx.writeAndFlush(Unpooled.wrappedBuffer(Commands.newError(fetchOffset.requestId,
+                                BrokerApi.ServerError.UnknownError, throwable.message ?: "Fetch offset failed").toByteArray()))
+                    }
+                })
+    }
+
+    fun getPendingPublishBytes() = this.pendingPublishBytes
+
+    /**
+     * Called in the event loop before a message is handed to its topic. Stop reading from the socket while
+     * this connection or the whole broker has too many publishes pending.
+     */
+    fun publishStarted(bytes: Long) {
+        this.pendingPublishBytes += bytes
+        val brokerThrottled = this.brokerService.publishStarted(bytes)
+        val maxBytes = this.brokerService.config.maxPendingPublishBytesPerConnection
+        if (!this.readingPaused && (brokerThrottled || maxBytes > 0 && this.pendingPublishBytes >= maxBytes)) {
+            this.readingPaused = true
+            this.ctx.channel().config().isAutoRead = false
+            if (brokerThrottled) {
+                this.brokerService.throttle(this)
+            }
+            logger.info("[{}] Pause reading, pending publishes {} bytes on the connection, {} bytes on the broker",
+                    remoteAddress, this.pendingPublishBytes, this.brokerService.getPendingPublishBytes())
+        }
+    }
+
+    fun publishCompleted(bytes: Long) {
+        this.brokerService.publishCompleted(bytes)
+        this.ctx.executor().execute {
+            this.pendingPublishBytes -= bytes
+            resumeIfPossible()
+        }
+    }
+
+    /**
+     * Called by the broker once it is back under its budget.
+     */
+    fun resumeReading() {
+        this.ctx.executor().execute { resumeIfPossible() }
+    }
+
+    private fun resumeIfPossible() {
+        if (!this.readingPaused) {
+            return
+        }
+        val maxBytes = this.brokerService.config.maxPendingPublishBytesPerConnection
+        if (maxBytes > 0 && this.pendingPublishBytes >= maxBytes / 2) {
+            // Resumed by the completion of its own publishes
+            return
+        }
+        if (this.brokerService.isPublishThrottled()) {
+            // Register before checking again, so a concurrent drop of the broker's pending bytes can't be missed
+            this.brokerService.throttle(this)
+            if (this.brokerService.isPublishThrottled()) {
+                return
+            }
+            this.brokerService.removeThrottledConnection(this)
         }
+        this.readingPaused = false
+        this.ctx.channel().config().isAutoRead = true
+        logger.info("[{}] Resume reading, pending publishes {} bytes on the connection", remoteAddress, this.pendingPublishBytes)
     }
 
     fun removeProducer(producer: Producer) {
@@ -9,7 +9,10 @@ import io.reactivex.Observable
  */
 interface Topic {
 
-    fun subscribe(serverCnx: ServerCnx): Observable<Consumer>
+    /**
+     * @param readCompacted read the latest message of every key before the live tail, see [compact]
+     */
+    fun subscribe(serverCnx: ServerCnx, readCompacted: Boolean = false): Observable<Consumer>
 
     fun publishMessage(headersAndPayload: ByteBuf): Observable<Offset>
 
@@ -19,5 +22,12 @@ interface Topic {
 
     fun removeProducer(producer: Producer)
 
+    /**
+     * Keep the latest message of every key published so far for the readers of the compacted topic.
+     *
+     * @return the offset compacted up to
+     */
+    fun compact(): Observable<Offset>
+
     fun close()
 }
\ No newline at end of file
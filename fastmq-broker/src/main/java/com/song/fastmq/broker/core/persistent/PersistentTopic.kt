@@ -35,9 +35,9 @@ class PersistentTopic(private val topic: String, private val messageStorage: Mes
 
     private val lock = ReentrantLock()
 
-    override fun subscribe(serverCnx: ServerCnx): Observable<Consumer> {
+    override fun subscribe(serverCnx: ServerCnx, readCompacted: Boolean): Observable<Consumer> {
         return Observable.create<Consumer> { observable: ObservableEmitter<Consumer> ->
-            observable.onNext(Consumer(serverCnx, this.messageStorage))
+            observable.onNext(Consumer(serverCnx, this.messageStorage, readCompacted))
             observable.onComplete()
             return@create
         }
@@ -66,23 +66,26 @@ class PersistentTopic(private val topic: String, private val messageStorage: Mes
 
     override fun publishMessage(headersAndPayload: ByteBuf): Observable<Offset> {
         return Observable.create<Offset> { observable: ObservableEmitter<Offset> ->
-            messageStorage.appendMessage(Message(MessageId.EMPTY, headersAndPayload.array()))
+            // The storage takes over the buffer and releases it once written
+            messageStorage.appendMessage(Message(MessageId.EMPTY, headersAndPayload))
                     .subscribe(object : OnCompletedObserver<Offset>() {
 
                         override fun onNext(t: Offset) {
-                            headersAndPayload.release()
                             observable.onNext(t)
                             observable.onComplete()
                         }
 
                         override fun onError(e: Throwable) {
-                            headersAndPayload.release()
                             observable.onError(e)
                         }
                     })
         }
     }
 
+    override fun compact(): Observable<Offset> {
+        return messageStorage.compact(SendCommandKeyExtractor)
+    }
+
     override fun close() {
         this.lock.withLock {
             if (!isClosed) {
@@ -0,0 +1,32 @@
+package com.song.fastmq.broker.core.persistent
+
+import com.google.protobuf.InvalidProtocolBufferException
+import com.song.fastmq.common.domain.MessageConstants
+import com.song.fastmq.net.proto.BrokerApi
+import com.song.fastmq.storage.storage.MessageKeyExtractor
+import io.netty.buffer.ByteBuf
+
+/**
+ * Messages are stored as the [BrokerApi.CommandSend] they were published with, the key is the
+ * [MessageConstants.MESSAGE_KEY] header and a message with an empty body is a tombstone.
+ *
+ * @author song
+ */
+object SendCommandKeyExtractor : MessageKeyExtractor {
+
+    override fun extractKey(payload: ByteBuf): String? {
+        return parse(payload)?.headersMap?.get(MessageConstants.MESSAGE_KEY)
+    }
+
+    override fun isTombstone(payload: ByteBuf): Boolean {
+        return parse(payload)?.body?.isEmpty ?: false
+    }
+
+    private fun parse(payload: ByteBuf): BrokerApi.CommandSend? {
+        return try {
+            BrokerApi.CommandSend.parseFrom(payload.nioBuffer())
+        } catch (e: InvalidProtocolBufferException) {
+            null
+        }
+    }
+}
@@ -13,7 +13,9 @@ class BrokerServiceTest {
 
     @Before
     fun setUp() {
-        brokerService = BrokerService()
+        val config = BrokerConfig()
+        config.storageType = BrokerConfig.StorageType.MEMORY
+        brokerService = BrokerService(config)
         brokerService.start()
     }
 
@@ -17,6 +17,7 @@ import java.util.concurrent.Executors
 import java.util.concurrent.LinkedBlockingQueue
 import java.util.concurrent.ScheduledExecutorService
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicLongFieldUpdater
 import java.util.concurrent.atomic.AtomicReference
 
@@ -52,11 +53,27 @@ class DefaultPullConsumer(private val topic: String,
 
     var readOffset = MessageId.NULL_ID
 
+    /**
+     * Read the latest message of every key of a compacted topic first, then the messages published since.
+     */
+    var readCompacted = false
+
+    /**
+     * Pulls are long polls answered once messages arrive, only one is outstanding at a time.
+     */
+    private val pullInFlight = AtomicBoolean()
+
+    @Volatile
+    private var lastPullTimestamp = 0L
+
+    @Volatile
+    private var pullRequestId = -1L
+
     override fun start() {
         checkArgument(consumerName.isBlank(), "Consumer name can't be null or empty, it should be globally unique.")
         if (state.compareAndSet(State.NONE, State.CONNECTING)) {
             clientCnx = remotingConnectionPool.getConnection(Utils.string2SocketAddress(bootstrapServers[0]))
-            val subscribe = Commands.newSubscribe(this.topic, this.consumerId, requestIdGenerator.incrementAndGet(this), this.consumerName)
+            val subscribe = Commands.newSubscribe(this.topic, this.consumerId, requestIdGenerator.incrementAndGet(this), this.consumerName, this.readCompacted)
             clientCnx.registerConsumer(consumerId, this)
             clientCnx.sendCommandAsync(Unpooled.wrappedBuffer(subscribe.toByteArray()), ClientUtils.getNextRequestId())
                     .thenAccept {
@@ -127,10 +144,28 @@ class DefaultPullConsumer(private val topic: String,
             synchronized(this@DefaultPullConsumer) {
                 this.readOffset = messageId
                 logger.info("[{}] [{}] update consumer offset to :{}.", topic, consumerName, messageId)
+                // Pull again right away instead of waiting for the next tick
+                this.pullInFlight.set(false)
+                if (this.state.get() == State.CONNECTED) {
+                    this.schedulePullMessagePool.execute(PullMessageWorker(this))
+                }
             }
         }
     }
 
+    /**
+     * The broker failed the pull sent as [requestId], it's retried on the next tick instead of once it times out.
+     *
+     * @return false if [requestId] is not the outstanding pull of this consumer
+     */
+    fun pullFailed(requestId: Long): Boolean {
+        if (requestId != this.pullRequestId || !this.pullInFlight.get()) {
+            return false
+        }
+        this.pullInFlight.set(false)
+        return true
+    }
+
     override fun shutdown() {
         synchronized(this) {
             check(state.get() != State.CLOSED, {
@@ -156,13 +191,20 @@ class DefaultPullConsumer(private val topic: String,
         override fun run() {
             try {
                 //todo 定时持久化Offset
+                val now = System.currentTimeMillis()
+                if (consumer.pullInFlight.get() && now - consumer.lastPullTimestamp < PULL_WAIT_MS + PULL_RESPONSE_TIMEOUT_MS) {
+                    return
+                }
                 val maxMessage = Math.min(MAX_MESSAGE_PULL_NUM, consumer.messageQueue.remainingCapacity())
                 if (maxMessage > 0) {
                     val readOffset = consumer.readOffset
+                    val requestId = requestIdGenerator.incrementAndGet(consumer)
                     val command = Commands
-                            .newPullMessage(consumer.topic, consumer.consumerId,
-                                    requestIdGenerator.incrementAndGet(consumer),
-                                    maxMessage, readOffset.ledgerId, readOffset.entryId)
+                            .newPullMessage(consumer.topic, consumer.consumerId, requestId,
+                                    maxMessage, readOffset.ledgerId, readOffset.entryId, readOffset.batchIndex, PULL_WAIT_MS)
+                    consumer.pullRequestId = requestId
+                    consumer.pullInFlight.set(true)
+                    consumer.lastPullTimestamp = now
                     consumer.clientCnx.ctx.writeAndFlush(Unpooled.wrappedBuffer(command.toByteArray()))
                 } else {
                     logger.info("Pull message request is canceled, because there is enough messages in the queue!")
@@ -182,5 +224,15 @@ class DefaultPullConsumer(private val topic: String,
         private const val MAX_MESSAGE_CACHE_CAPACITY = 1000
 
         private const val MAX_MESSAGE_PULL_NUM = 32
+
+        /**
+         * How long the broker may hold a pull at the end of the topic.
+         */
+        private const val PULL_WAIT_MS = 5000L
+
+        /**
+         * A pull not answered within its wait time plus this long is considered lost and sent again.
+         */
+        private const val PULL_RESPONSE_TIMEOUT_MS = 3000L
     }
 }
\ No newline at end of file
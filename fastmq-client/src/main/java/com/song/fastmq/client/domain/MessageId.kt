@@ -8,10 +8,11 @@ import java.io.IOException
 /**
  * @author song
  */
-class MessageId(val ledgerId: Long, val entryId: Long) : Comparable<MessageId> {
+class MessageId(val ledgerId: Long, val entryId: Long, val batchIndex: Int = 0) : Comparable<MessageId> {
 
     override operator fun compareTo(other: MessageId): Int {
         return ComparisonChain.start().compare(this.ledgerId, other.ledgerId).compare(this.entryId, other.entryId)
+                .compare(this.batchIndex, other.batchIndex)
                 .result()
     }
 
@@ -23,6 +24,7 @@ class MessageId(val ledgerId: Long, val entryId: Long) : Comparable<MessageId> {
 
         if (ledgerId != other.ledgerId) return false
         if (entryId != other.entryId) return false
+        if (batchIndex != other.batchIndex) return false
 
         return true
     }
@@ -30,17 +32,19 @@ class MessageId(val ledgerId: Long, val entryId: Long) : Comparable<MessageId> {
     override fun hashCode(): Int {
         var result = ledgerId.hashCode()
         result = 31 * result + entryId.hashCode()
+        result = 31 * result + batchIndex
         return result
     }
 
     override fun toString(): String {
-        return "MessageId(ledgerId=$ledgerId, entryId=$entryId)"
+        return "MessageId(ledgerId=$ledgerId, entryId=$entryId, batchIndex=$batchIndex)"
     }
 
     fun toByteArray(): ByteArray {
         val builder = BrokerApi.MessageIdData.newBuilder()
         builder.ledgerId = ledgerId
         builder.entryId = entryId
+        builder.batchIndex = batchIndex
         val msgId = builder.build()
         return msgId.toByteArray()
     }
@@ -60,7 +64,7 @@ class MessageId(val ledgerId: Long, val entryId: Long) : Comparable<MessageId> {
             } catch (e: UninitializedMessageException) {
                 throw IOException(e)
             }
-            return MessageId(idData.ledgerId, idData.entryId)
+            return MessageId(idData.ledgerId, idData.entryId, idData.batchIndex)
         }
     }
 }
\ No newline at end of file
@@ -80,11 +80,13 @@ class ClientCnx : AbstractHandler() {
         val sequenceId = sendReceipt.sequenceId
         var ledgerId = -1L
         var entryId = -1L
+        var batchIndex = 0
         if (sendReceipt.hasMessageId()) {
             ledgerId = sendReceipt.messageId.ledgerId
             entryId = sendReceipt.messageId.entryId
+            batchIndex = sendReceipt.messageId.batchIndex
         }
-        producers[producerId]?.ackReceived(sequenceId, ledgerId, entryId)
+        producers[producerId]?.ackReceived(sequenceId, ledgerId, entryId, batchIndex)
                 ?: logger.warn("Producer[{}] not exist,ignore received message id {}:{}",
                         producerId, ledgerId, entryId)
         logger.debug("{} Got send receipt from producer[{}]: msg---{}, msgId---{}:{}", ctx.channel(), producerId, sequenceId, ledgerId, entryId)
@@ -103,8 +105,11 @@ class ClientCnx : AbstractHandler() {
         logger.error("[${ctx.channel()}] Received error from server: ${error.message}")
         val requestId = error.requestId
         val future = pendingRequests[requestId]
-        future?.completeExceptionally(FastMqClientException(error.message))
-                ?: logger.warn("{} Received unknown request id from server: {}", ctx.channel(), error.requestId)
+        if (future != null) {
+            future.completeExceptionally(FastMqClientException(error.message))
+        } else if (this.consumers.values.none { it.pullFailed(requestId) }) {
+            logger.warn("{} Received unknown request id from server: {}", ctx.channel(), error.requestId)
+        }
     }
 
     override fun handleMessage(message: BrokerApi.CommandMessage) {
@@ -119,7 +124,8 @@ class ClientCnx : AbstractHandler() {
                 messages.add(msg)
             })
             pullConsumer.receivedMessage(messages)
-            pullConsumer.refreshReadOffset(MessageId(message.nextReadOffset.ledgerId, message.nextReadOffset.entryId))
+            pullConsumer.refreshReadOffset(MessageId(message.nextReadOffset.ledgerId, message.nextReadOffset.entryId,
+                    message.nextReadOffset.batchIndex))
         } ?: logger.warn("Consumer[{}] not exist,just ignore!", consumerId)
     }
 
@@ -129,7 +135,7 @@ class ClientCnx : AbstractHandler() {
         val messageId = fetchOffsetResponse.messageId
         if (pullConsumer != null) {
             logger.info("PullConsumer[{}] Update read offset from {} to {}", pullConsumer.readOffset, messageId)
-            pullConsumer.refreshReadOffset(MessageId(messageId.ledgerId, messageId.entryId))
+            pullConsumer.refreshReadOffset(MessageId(messageId.ledgerId, messageId.entryId, messageId.batchIndex))
         } else {
             logger.warn("Consumer[{}] with offset ledgerId = {} entryId = {}  not exist.", consumerId, messageId.ledgerId, messageId.entryId)
         }
@@ -122,7 +122,7 @@ class DefaultProducer : Producer {
         this.pendingRequest[sequenceId] = future
         message.properties[MessageConstants.SEQUENCE_ID] = sequenceId.toString()
         message.properties[MessageConstants.PRODUCER_ID] = producerId.toString()
-        cnxClient.ctx.writeAndFlush(Unpooled.wrappedBuffer(ClientUtils.msgConvert(message).toByteArray()))
+        cnxClient.ctx.writeAndFlush(Unpooled.wrappedBuffer(Commands.newSend(ClientUtils.msgConvert(message)).toByteArray()))
                 .addListener { it ->
                     if (!it.isSuccess) {
                         this.pendingRequest.remove(sequenceId)
@@ -135,14 +135,14 @@ class DefaultProducer : Producer {
 
     override fun getProducerName() = this.producerName
 
-    fun ackReceived(sequenceId: Long, ledgerId: Long, entryId: Long) {
+    fun ackReceived(sequenceId: Long, ledgerId: Long, entryId: Long, batchIndex: Int = 0) {
         receivedLock.withLock {
             val completableFuture = this.pendingRequest[sequenceId]
             if (completableFuture != null) {
                 if (completableFuture.isDone) {
                     logger.warn("[{}][{}] Request[{}] is already done.", topic, producerName, sequenceId)
                 } else {
-                    completableFuture.complete(MessageId(ledgerId, entryId))
+                    completableFuture.complete(MessageId(ledgerId, entryId, batchIndex))
                 }
                 this.pendingRequest.remove(sequenceId)
             } else {
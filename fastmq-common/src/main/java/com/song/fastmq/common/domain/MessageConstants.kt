@@ -18,4 +18,9 @@ object MessageConstants {
     const val SEQUENCE_ID = "com.fastmq.sequence.id"
 
     const val MESSAGE_ID = "com.fastmq.message.id"
+
+    /**
+     * Compaction keeps the latest message of every key, messages without a key are dropped.
+     */
+    const val MESSAGE_KEY = "com.fastmq.message.key"
 }
\ No newline at end of file
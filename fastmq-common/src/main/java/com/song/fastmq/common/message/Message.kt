@@ -1,10 +1,25 @@
 package com.song.fastmq.common.message
 
+import com.fasterxml.jackson.annotation.JsonIgnore
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.Unpooled
+
 /**
+ * A message backed by a reference counted buffer, whoever consumes the message releases the buffer,
+ * e.g. message storage releases it once the message is written.
+ *
  * @author song
  */
 class Message(var messageId: MessageId = MessageId.EMPTY,
-              val data: ByteArray) {
+              @get:JsonIgnore val buffer: ByteBuf) {
+
+    constructor(messageId: MessageId = MessageId.EMPTY, data: ByteArray) : this(messageId, Unpooled.wrappedBuffer(data))
 
+    /**
+     * Copy of the message content, prefer [buffer] on hot paths.
+     */
+    val data: ByteArray
+        get() = ByteBufUtil.getBytes(buffer)
 
 }
\ No newline at end of file
@@ -3,7 +3,7 @@ package com.song.fastmq.common.message
 /**
  * @author song
  */
-data class MessageId(val ledgerId: Long, val entryId: Long) {
+data class MessageId(val ledgerId: Long, val entryId: Long, val batchIndex: Int = 0) {
 
     companion object {
         val EMPTY = MessageId(0L, 0L)
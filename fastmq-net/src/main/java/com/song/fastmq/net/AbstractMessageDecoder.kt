@@ -3,6 +3,7 @@ package com.song.fastmq.net
 
 import com.google.common.base.Preconditions.checkArgument
 import com.google.protobuf.CodedInputStream
+import com.google.protobuf.WireFormat
 import com.song.fastmq.net.proto.BrokerApi
 import com.song.fastmq.net.proto.BrokerApi.*
 import io.netty.buffer.ByteBuf
@@ -38,7 +39,7 @@ abstract class AbstractMessageDecoder : ChannelInboundHandlerAdapter() {
                 }
                 BrokerApi.Command.Type.SEND -> {
                     checkArgument(command.hasSend())
-                    handleSend(command.send)
+                    handleSend(command.send, sliceOfField(buffer, Command.SEND_FIELD_NUMBER))
                 }
                 BrokerApi.Command.Type.SEND_RECEIPT -> {
                     checkArgument(command.hasSendReceipt())
@@ -93,7 +94,12 @@ abstract class AbstractMessageDecoder : ChannelInboundHandlerAdapter() {
         throw UnsupportedOperationException()
     }
 
-    open fun handleSend(commandSend: BrokerApi.CommandSend) {
+    /**
+     * @param headersAndPayload retained slice of the frame holding the serialized [commandSend],
+     * the handler is responsible for releasing it
+     */
+    open fun handleSend(commandSend: BrokerApi.CommandSend, headersAndPayload: ByteBuf) {
+        headersAndPayload.release()
         throw UnsupportedOperationException()
     }
 
@@ -133,6 +139,24 @@ abstract class AbstractMessageDecoder : ChannelInboundHandlerAdapter() {
         throw UnsupportedOperationException()
     }
 
+    /**
+     * Locate the raw bytes of a length delimited field of the command in the frame, so they can be
+     * passed on without being serialized again.
+     */
+    private fun sliceOfField(buffer: ByteBuf, fieldNumber: Int): ByteBuf {
+        val input = CodedInputStream.newInstance(buffer.nioBuffer())
+        while (true) {
+            val tag = input.readTag()
+            checkArgument(tag != 0, "Field %s is not present", fieldNumber)
+            if (WireFormat.getTagFieldNumber(tag) == fieldNumber
+                    && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                val length = input.readRawVarint32()
+                return buffer.retainedSlice(buffer.readerIndex() + input.totalBytesRead, length)
+            }
+            input.skipField(tag)
+        }
+    }
+
     companion object {
         private val logger = LoggerFactory.getLogger(AbstractMessageDecoder::class.java)
     }
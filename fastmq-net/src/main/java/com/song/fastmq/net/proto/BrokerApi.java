@@ -219,6 +219,15 @@ public final class BrokerApi {
      * <code>uint64 entryId = 2;</code>
      */
     long getEntryId();
+
+    /**
+     * <pre>
+     *&#47; Index of the message inside a batched entry
+     * </pre>
+     *
+     * <code>int32 batch_index = 3;</code>
+     */
+    int getBatchIndex();
   }
   /**
    * Protobuf type {@code com.song.fastmq.broker.net.MessageIdData}
@@ -276,6 +285,41 @@ public final class BrokerApi {
       entryId_ = 0L;
     }
 
+    public static final int BATCH_INDEX_FIELD_NUMBER = 3;
+    private int batchIndex_;
+    /**
+     * <pre>
+     *&#47; Index of the message inside a batched entry
+     * </pre>
+     *
+     * <code>int32 batch_index = 3;</code>
+     */
+    public int getBatchIndex() {
+      return batchIndex_;
+    }
+    /**
+     * <pre>
+     *&#47; Index of the message inside a batched entry
+     * </pre>
+     *
+     * <code>int32 batch_index = 3;</code>
+     */
+    private void setBatchIndex(int value) {
+      
+      batchIndex_ = value;
+    }
+    /**
+     * <pre>
+     *&#47; Index of the message inside a batched entry
+     * </pre>
+     *
+     * <code>int32 batch_index = 3;</code>
+     */
+    private void clearBatchIndex() {
+      
+      batchIndex_ = 0;
+    }
+
     public void writeTo(com.google.protobuf.CodedOutputStream output)
                         throws java.io.IOException {
       if (ledgerId_ != 0L) {
@@ -284,6 +328,9 @@ public final class BrokerApi {
       if (entryId_ != 0L) {
         output.writeUInt64(2, entryId_);
       }
+      if (batchIndex_ != 0) {
+        output.writeInt32(3, batchIndex_);
+      }
       unknownFields.writeTo(output);
     }
 
@@ -300,6 +347,10 @@ public final class BrokerApi {
         size += com.google.protobuf.CodedOutputStream
           .computeUInt64Size(2, entryId_);
       }
+      if (batchIndex_ != 0) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt32Size(3, batchIndex_);
+      }
       size += unknownFields.getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -446,6 +497,41 @@ public final class BrokerApi {
         return this;
       }
 
+      /**
+       * <pre>
+       *&#47; Index of the message inside a batched entry
+       * </pre>
+       *
+       * <code>int32 batch_index = 3;</code>
+       */
+      public int getBatchIndex() {
+        return instance.getBatchIndex();
+      }
+      /**
+       * <pre>
+       *&#47; Index of the message inside a batched entry
+       * </pre>
+       *
+       * <code>int32 batch_index = 3;</code>
+       */
+      public Builder setBatchIndex(int value) {
+        copyOnWrite();
+        instance.setBatchIndex(value);
+        return this;
+      }
+      /**
+       * <pre>
+       *&#47; Index of the message inside a batched entry
+       * </pre>
+       *
+       * <code>int32 batch_index = 3;</code>
+       */
+      public Builder clearBatchIndex() {
+        copyOnWrite();
+        instance.clearBatchIndex();
+        return this;
+      }
+
       // @@protoc_insertion_point(builder_scope:com.song.fastmq.broker.net.MessageIdData)
     }
     @java.lang.SuppressWarnings({"unchecked", "fallthrough"})
@@ -472,6 +558,8 @@ public final class BrokerApi {
               other.ledgerId_ != 0L, other.ledgerId_);
           entryId_ = visitor.visitLong(entryId_ != 0L, entryId_,
               other.entryId_ != 0L, other.entryId_);
+          batchIndex_ = visitor.visitInt(batchIndex_ != 0, batchIndex_,
+              other.batchIndex_ != 0, other.batchIndex_);
           if (visitor == com.google.protobuf.GeneratedMessageLite.MergeFromVisitor
               .INSTANCE) {
           }
@@ -509,6 +597,11 @@ public final class BrokerApi {
                   entryId_ = input.readUInt64();
                   break;
                 }
+                case 24: {
+
+                  batchIndex_ = input.readInt32();
+                  break;
+                }
               }
             }
           } catch (com.google.protobuf.InvalidProtocolBufferException e) {
@@ -3532,6 +3625,15 @@ public final class BrokerApi {
      */
     com.google.protobuf.ByteString
         getConsumerNameBytes();
+
+    /**
+     * <pre>
+     * Read the latest message of every key first, then the messages published after the last compaction
+     * </pre>
+     *
+     * <code>bool read_compacted = 5;</code>
+     */
+    boolean getReadCompacted();
   }
   /**
    * Protobuf type {@code com.song.fastmq.broker.net.CommandSubscribe}
@@ -3683,6 +3785,41 @@ public final class BrokerApi {
       consumerName_ = value.toStringUtf8();
     }
 
+    public static final int READ_COMPACTED_FIELD_NUMBER = 5;
+    private boolean readCompacted_;
+    /**
+     * <pre>
+     * Read the latest message of every key first, then the messages published after the last compaction
+     * </pre>
+     *
+     * <code>bool read_compacted = 5;</code>
+     */
+    public boolean getReadCompacted() {
+      return readCompacted_;
+    }
+    /**
+     * <pre>
+     * Read the latest message of every key first, then the messages published after the last compaction
+     * </pre>
+     *
+     * <code>bool read_compacted = 5;</code>
+     */
+    private void setReadCompacted(boolean value) {
+      
+      readCompacted_ = value;
+    }
+    /**
+     * <pre>
+     * Read the latest message of every key first, then the messages published after the last compaction
+     * </pre>
+     *
+     * <code>bool read_compacted = 5;</code>
+     */
+    private void clearReadCompacted() {
+      
+      readCompacted_ = false;
+    }
+
     public void writeTo(com.google.protobuf.CodedOutputStream output)
                         throws java.io.IOException {
       if (!topic_.isEmpty()) {
@@ -3697,6 +3834,9 @@ public final class BrokerApi {
       if (!consumerName_.isEmpty()) {
         output.writeString(4, getConsumerName());
       }
+      if (readCompacted_ != false) {
+        output.writeBool(5, readCompacted_);
+      }
       unknownFields.writeTo(output);
     }
 
@@ -3721,6 +3861,10 @@ public final class BrokerApi {
         size += com.google.protobuf.CodedOutputStream
           .computeStringSize(4, getConsumerName());
       }
+      if (readCompacted_ != false) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(5, readCompacted_);
+      }
       size += unknownFields.getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -3947,6 +4091,41 @@ public final class BrokerApi {
         return this;
       }
 
+      /**
+       * <pre>
+       * Read the latest message of every key first, then the messages published after the last compaction
+       * </pre>
+       *
+       * <code>bool read_compacted = 5;</code>
+       */
+      public boolean getReadCompacted() {
+        return instance.getReadCompacted();
+      }
+      /**
+       * <pre>
+       * Read the latest message of every key first, then the messages published after the last compaction
+       * </pre>
+       *
+       * <code>bool read_compacted = 5;</code>
+       */
+      public Builder setReadCompacted(boolean value) {
+        copyOnWrite();
+        instance.setReadCompacted(value);
+        return this;
+      }
+      /**
+       * <pre>
+       * Read the latest message of every key first, then the messages published after the last compaction
+       * </pre>
+       *
+       * <code>bool read_compacted = 5;</code>
+       */
+      public Builder clearReadCompacted() {
+        copyOnWrite();
+        instance.clearReadCompacted();
+        return this;
+      }
+
       // @@protoc_insertion_point(builder_scope:com.song.fastmq.broker.net.CommandSubscribe)
     }
     @java.lang.SuppressWarnings({"unchecked", "fallthrough"})
@@ -3977,6 +4156,8 @@ public final class BrokerApi {
               other.requestId_ != 0L, other.requestId_);
           consumerName_ = visitor.visitString(!consumerName_.isEmpty(), consumerName_,
               !other.consumerName_.isEmpty(), other.consumerName_);
+          readCompacted_ = visitor.visitBoolean(readCompacted_ != false, readCompacted_,
+              other.readCompacted_ != false, other.readCompacted_);
           if (visitor == com.google.protobuf.GeneratedMessageLite.MergeFromVisitor
               .INSTANCE) {
           }
@@ -4026,6 +4207,11 @@ public final class BrokerApi {
                   consumerName_ = s;
                   break;
                 }
+                case 40: {
+
+                  readCompacted_ = input.readBool();
+                  break;
+                }
               }
             }
           } catch (com.google.protobuf.InvalidProtocolBufferException e) {
@@ -5691,6 +5877,15 @@ public final class BrokerApi {
      * <code>.com.song.fastmq.broker.net.MessageIdData message_id = 5;</code>
      */
     com.song.fastmq.net.proto.BrokerApi.MessageIdData getMessageId();
+
+    /**
+     * <pre>
+     * Milliseconds the broker may hold the pull at the end of the topic waiting for new messages
+     * </pre>
+     *
+     * <code>uint64 max_wait_ms = 6;</code>
+     */
+    long getMaxWaitMs();
   }
   /**
    * Protobuf type {@code com.song.fastmq.broker.net.CommandPullMessage}
@@ -5870,6 +6065,41 @@ public final class BrokerApi {
       
     }
 
+    public static final int MAX_WAIT_MS_FIELD_NUMBER = 6;
+    private long maxWaitMs_;
+    /**
+     * <pre>
+     * Milliseconds the broker may hold the pull at the end of the topic waiting for new messages
+     * </pre>
+     *
+     * <code>uint64 max_wait_ms = 6;</code>
+     */
+    public long getMaxWaitMs() {
+      return maxWaitMs_;
+    }
+    /**
+     * <pre>
+     * Milliseconds the broker may hold the pull at the end of the topic waiting for new messages
+     * </pre>
+     *
+     * <code>uint64 max_wait_ms = 6;</code>
+     */
+    private void setMaxWaitMs(long value) {
+      
+      maxWaitMs_ = value;
+    }
+    /**
+     * <pre>
+     * Milliseconds the broker may hold the pull at the end of the topic waiting for new messages
+     * </pre>
+     *
+     * <code>uint64 max_wait_ms = 6;</code>
+     */
+    private void clearMaxWaitMs() {
+      
+      maxWaitMs_ = 0L;
+    }
+
     public void writeTo(com.google.protobuf.CodedOutputStream output)
                         throws java.io.IOException {
       if (!topic_.isEmpty()) {
@@ -5887,6 +6117,9 @@ public final class BrokerApi {
       if (messageId_ != null) {
         output.writeMessage(5, getMessageId());
       }
+      if (maxWaitMs_ != 0L) {
+        output.writeUInt64(6, maxWaitMs_);
+      }
       unknownFields.writeTo(output);
     }
 
@@ -5915,6 +6148,10 @@ public final class BrokerApi {
         size += com.google.protobuf.CodedOutputStream
           .computeMessageSize(5, getMessageId());
       }
+      if (maxWaitMs_ != 0L) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt64Size(6, maxWaitMs_);
+      }
       size += unknownFields.getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -6169,6 +6406,41 @@ public final class BrokerApi {
         return this;
       }
 
+      /**
+       * <pre>
+       * Milliseconds the broker may hold the pull at the end of the topic waiting for new messages
+       * </pre>
+       *
+       * <code>uint64 max_wait_ms = 6;</code>
+       */
+      public long getMaxWaitMs() {
+        return instance.getMaxWaitMs();
+      }
+      /**
+       * <pre>
+       * Milliseconds the broker may hold the pull at the end of the topic waiting for new messages
+       * </pre>
+       *
+       * <code>uint64 max_wait_ms = 6;</code>
+       */
+      public Builder setMaxWaitMs(long value) {
+        copyOnWrite();
+        instance.setMaxWaitMs(value);
+        return this;
+      }
+      /**
+       * <pre>
+       * Milliseconds the broker may hold the pull at the end of the topic waiting for new messages
+       * </pre>
+       *
+       * <code>uint64 max_wait_ms = 6;</code>
+       */
+      public Builder clearMaxWaitMs() {
+        copyOnWrite();
+        instance.clearMaxWaitMs();
+        return this;
+      }
+
       // @@protoc_insertion_point(builder_scope:com.song.fastmq.broker.net.CommandPullMessage)
     }
     @java.lang.SuppressWarnings({"unchecked", "fallthrough"})
@@ -6200,6 +6472,8 @@ public final class BrokerApi {
           maxMessage_ = visitor.visitInt(maxMessage_ != 0, maxMessage_,
               other.maxMessage_ != 0, other.maxMessage_);
           messageId_ = visitor.visitMessage(messageId_, other.messageId_);
+          maxWaitMs_ = visitor.visitLong(maxWaitMs_ != 0L, maxWaitMs_,
+              other.maxWaitMs_ != 0L, other.maxWaitMs_);
           if (visitor == com.google.protobuf.GeneratedMessageLite.MergeFromVisitor
               .INSTANCE) {
           }
@@ -6261,6 +6535,11 @@ public final class BrokerApi {
 
                   break;
                 }
+                case 48: {
+
+                  maxWaitMs_ = input.readUInt64();
+                  break;
+                }
               }
             }
           } catch (com.google.protobuf.InvalidProtocolBufferException e) {
@@ -1,7 +1,14 @@
 package com.song.fastmq.net.proto
 
+import com.google.common.base.Preconditions.checkArgument
 import com.google.common.base.Throwables
+import com.google.protobuf.CodedOutputStream
+import com.google.protobuf.WireFormat
+import com.song.fastmq.common.domain.MessageConstants
 import com.song.fastmq.net.proto.BrokerApi.*
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
+import java.util.*
 
 /**
  * @author song
@@ -31,13 +38,14 @@ object Commands {
         return res
     }
 
-    fun newSendReceipt(producerId: Long, sequenceId: Long, ledgerId: Long, entryId: Long): Command {
+    fun newSendReceipt(producerId: Long, sequenceId: Long, ledgerId: Long, entryId: Long, batchIndex: Int = 0): Command {
         val sendReceiptBuilder = CommandSendReceipt.newBuilder()
         sendReceiptBuilder.producerId = producerId
         sendReceiptBuilder.sequenceId = sequenceId
         val messageIdBuilder = MessageIdData.newBuilder()
         messageIdBuilder.ledgerId = ledgerId
         messageIdBuilder.entryId = entryId
+        messageIdBuilder.batchIndex = batchIndex
         val messageId = messageIdBuilder.build()
         sendReceiptBuilder.messageId = messageId
         val sendReceipt = sendReceiptBuilder.build()
@@ -70,12 +78,13 @@ object Commands {
                 .build()
     }
 
-    fun newSubscribe(topic: String, consumerId: Long, requestId: Long, consumerName: String): Command {
+    fun newSubscribe(topic: String, consumerId: Long, requestId: Long, consumerName: String, readCompacted: Boolean = false): Command {
         val builder = CommandSubscribe.newBuilder()
         val subscribe = builder.setTopic(topic)
                 .setConsumerId(consumerId)
                 .setConsumerName(consumerName)
                 .setRequestId(requestId)
+                .setReadCompacted(readCompacted)
                 .build()
         return Command.newBuilder()
                 .setType(Command.Type.SUBSCRIBE)
@@ -93,13 +102,15 @@ object Commands {
                 .build()
     }
 
-    fun newPullMessage(topic: String, consumerId: Long, requestId: Long, maxMessage: Int, ledgerId: Long, entryId: Long): Command {
+    fun newPullMessage(topic: String, consumerId: Long, requestId: Long, maxMessage: Int, ledgerId: Long, entryId: Long,
+                       batchIndex: Int = 0, maxWaitMs: Long = 0): Command {
         val builder = CommandPullMessage.newBuilder()
         builder.topic = topic
         builder.consumerId = consumerId
         builder.requestId = requestId
         builder.maxMessage = maxMessage
-        builder.messageId = MessageIdData.newBuilder().setLedgerId(ledgerId).setEntryId(entryId).build()
+        builder.maxWaitMs = maxWaitMs
+        builder.messageId = MessageIdData.newBuilder().setLedgerId(ledgerId).setEntryId(entryId).setBatchIndex(batchIndex).build()
         val pullMessage = builder.build()
         return Command.newBuilder()
                 .setType(Command.Type.PULL_MESSAGE)
@@ -107,10 +118,10 @@ object Commands {
                 .build()
     }
 
-    fun newMessage(consumerId: Long, ledgerId: Long, entryId: Long, messages: Iterable<CommandSend>): Command {
+    fun newMessage(consumerId: Long, ledgerId: Long, entryId: Long, messages: Iterable<CommandSend>, batchIndex: Int = 0): Command {
         val builder = CommandMessage.newBuilder()
         builder.consumerId = consumerId
-        builder.nextReadOffset = MessageIdData.newBuilder().setLedgerId(ledgerId).setEntryId(entryId).build()
+        builder.nextReadOffset = MessageIdData.newBuilder().setLedgerId(ledgerId).setEntryId(entryId).setBatchIndex(batchIndex).build()
         builder.addAllMessages(messages)
         val message = builder.build()
         return Command.newBuilder()
@@ -119,6 +130,64 @@ object Commands {
                 .build()
     }
 
+    /**
+     * Serialize a MESSAGE command around already serialized [CommandSend]s without copying them, the
+     * message id of each one is appended as an extra entry of its headers map. The returned buffer
+     * takes over the given payloads.
+     */
+    fun newMessage(consumerId: Long, nextReadOffset: MessageIdData, messageIds: List<MessageIdData>, payloads: List<ByteBuf>): ByteBuf {
+        checkArgument(messageIds.size == payloads.size)
+        val messageHeader = CommandMessage.newBuilder()
+                .setConsumerId(consumerId)
+                .setNextReadOffset(nextReadOffset)
+                .build()
+                .toByteArray()
+        val messageIdHeaders = messageIds.map {
+            CommandSend.newBuilder()
+                    .putHeaders(MessageConstants.MESSAGE_ID, Base64.getEncoder().encodeToString(it.toByteArray()))
+                    .build()
+                    .toByteArray()
+        }
+        var messageSize = messageHeader.size
+        payloads.forEachIndexed { i, payload ->
+            val size = payload.readableBytes() + messageIdHeaders[i].size
+            messageSize += CodedOutputStream.computeTagSize(CommandMessage.MESSAGES_FIELD_NUMBER) +
+                    CodedOutputStream.computeUInt32SizeNoTag(size) + size
+        }
+
+        val commandHeader = Command.newBuilder().setType(Command.Type.MESSAGE).build().toByteArray()
+        val header = Unpooled.buffer(commandHeader.size + 10 + messageHeader.size)
+        header.writeBytes(commandHeader)
+        writeLengthDelimitedTag(header, Command.MESSAGE_FIELD_NUMBER, messageSize)
+        header.writeBytes(messageHeader)
+
+        val components = ArrayList<ByteBuf>(1 + payloads.size * 2)
+        components.add(header)
+        payloads.forEachIndexed { i, payload ->
+            val messageIdHeader = messageIdHeaders[i]
+            val prefix = Unpooled.buffer(10)
+            writeLengthDelimitedTag(prefix, CommandMessage.MESSAGES_FIELD_NUMBER, payload.readableBytes() + messageIdHeader.size)
+            components.add(prefix)
+            components.add(payload)
+            components.add(Unpooled.wrappedBuffer(messageIdHeader))
+        }
+        return Unpooled.wrappedBuffer(components.size, *components.toTypedArray())
+    }
+
+    private fun writeLengthDelimitedTag(buf: ByteBuf, fieldNumber: Int, length: Int) {
+        writeVarInt(buf, (fieldNumber shl 3) or WireFormat.WIRETYPE_LENGTH_DELIMITED)
+        writeVarInt(buf, length)
+    }
+
+    private fun writeVarInt(buf: ByteBuf, value: Int) {
+        var v = value
+        while (v and 0x7F.inv() != 0) {
+            buf.writeByte((v and 0x7F) or 0x80)
+            v = v ushr 7
+        }
+        buf.writeByte(v)
+    }
+
     fun newFetchOffset(topic: String, consumerId: Long, requestId: Long): Command {
         val commandFetchOffset = CommandFetchOffset
                 .newBuilder()
@@ -133,12 +202,12 @@ object Commands {
                 .build()
     }
 
-    fun newFetchOffsetResponse(topic: String, consumerId: Long, ledgerId: Long, entryId: Long): Command {
+    fun newFetchOffsetResponse(topic: String, consumerId: Long, ledgerId: Long, entryId: Long, batchIndex: Int = 0): Command {
         val fetchOffsetResponse = CommandFetchOffsetResponse
                 .newBuilder()
                 .setTopic(topic)
                 .setConsumerId(consumerId)
-                .setMessageId(MessageIdData.newBuilder().setLedgerId(ledgerId).setEntryId(entryId))
+                .setMessageId(MessageIdData.newBuilder().setLedgerId(ledgerId).setEntryId(entryId).setBatchIndex(batchIndex))
                 .build()
         return Command.newBuilder()
                 .setType(Command.Type.FETCH_CONSUMER_OFFSET_RESPONSE)
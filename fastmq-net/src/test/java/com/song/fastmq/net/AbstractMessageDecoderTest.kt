@@ -0,0 +1,43 @@
+package com.song.fastmq.net
+
+import com.google.protobuf.ByteString
+import com.song.fastmq.net.proto.BrokerApi
+import com.song.fastmq.net.proto.Commands
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.Unpooled
+import io.netty.channel.embedded.EmbeddedChannel
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertTrue
+
+/**
+ * @author song
+ */
+class AbstractMessageDecoderTest {
+
+    @Test
+    fun handleSendWithFrameSlice() {
+        val send = BrokerApi.CommandSend.newBuilder()
+                .putHeaders("producer_id", "1")
+                .setBody(ByteString.copyFromUtf8("Hello World"))
+                .build()
+        val frame = Unpooled.wrappedBuffer(Commands.newSend(send).toByteArray())
+        var slice: ByteBuf? = null
+        val decoder = object : AbstractMessageDecoder() {
+            override fun handleSend(commandSend: BrokerApi.CommandSend, headersAndPayload: ByteBuf) {
+                assertEquals(send, commandSend)
+                slice = headersAndPayload
+            }
+        }
+        EmbeddedChannel(decoder).writeInbound(frame)
+
+        assertNotNull(slice)
+        // The slice keeps the frame alive after the decoder released its own reference
+        assertEquals(1, frame.refCnt())
+        assertTrue(ByteBufUtil.getBytes(slice).contentEquals(send.toByteArray()))
+        slice!!.release()
+        assertEquals(0, frame.refCnt())
+    }
+}
@@ -1,6 +1,12 @@
 package com.song.fastmq.net.proto
 
+import com.google.protobuf.ByteString
+import com.song.fastmq.common.domain.MessageConstants
+import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.Unpooled
 import org.junit.Test
+import java.util.*
+import kotlin.test.assertEquals
 
 /**
  * @author song
@@ -14,4 +20,30 @@ class CommandsTest {
         val mergeFrom = BrokerApi.Command.newBuilder().mergeFrom(sendReceipt.toByteArray()).build()
         println(mergeFrom)
     }
+
+    @Test
+    fun newMessage() {
+        val sends = (0..2).map {
+            BrokerApi.CommandSend.newBuilder()
+                    .putHeaders("sequence_id", it.toString())
+                    .setBody(ByteString.copyFromUtf8("Hello World : $it"))
+                    .build()
+        }
+        val messageIds = (0..2).map { BrokerApi.MessageIdData.newBuilder().setLedgerId(1L).setEntryId(it.toLong()).build() }
+        val nextReadOffset = BrokerApi.MessageIdData.newBuilder().setLedgerId(1L).setEntryId(3L).build()
+        val frame = Commands.newMessage(10L, nextReadOffset, messageIds, sends.map { Unpooled.wrappedBuffer(it.toByteArray()) })
+
+        val command = BrokerApi.Command.parseFrom(ByteBufUtil.getBytes(frame))
+        frame.release()
+        assertEquals(BrokerApi.Command.Type.MESSAGE, command.type)
+        assertEquals(10L, command.message.consumerId)
+        assertEquals(nextReadOffset, command.message.nextReadOffset)
+        assertEquals(3, command.message.messagesCount)
+        command.message.messagesList.forEachIndexed { i, message ->
+            assertEquals(sends[i].body, message.body)
+            assertEquals(i.toString(), message.headersMap["sequence_id"])
+            val messageId = BrokerApi.MessageIdData.parseFrom(Base64.getDecoder().decode(message.headersMap[MessageConstants.MESSAGE_ID]))
+            assertEquals(messageIds[i], messageId)
+        }
+    }
 }
\ No newline at end of file
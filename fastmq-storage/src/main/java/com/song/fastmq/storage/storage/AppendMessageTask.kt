@@ -1,10 +1,10 @@
 package com.song.fastmq.storage.storage
 
 import com.google.common.base.Preconditions.checkArgument
+import com.song.fastmq.storage.storage.concurrent.AsyncCallbacks
 import com.song.fastmq.storage.storage.impl.MessageStorageImpl
 import com.song.fastmq.storage.storage.support.MessageStorageException
 import io.netty.buffer.ByteBuf
-import io.reactivex.ObservableEmitter
 import org.apache.bookkeeper.client.AsyncCallback
 import org.apache.bookkeeper.client.BKException
 import org.apache.bookkeeper.client.LedgerHandle
@@ -12,44 +12,58 @@ import org.apache.bookkeeper.util.SafeRunnable
 import org.slf4j.LoggerFactory
 
 /**
+ * Append an entry into the current ledger. An entry written by group commit holds several
+ * messages, the callback at index i is completed with the offset of the i-th message.
+ *
  * @author song
  */
 class AppendMessageTask(private val messageStorage: MessageStorageImpl, private val data: ByteBuf,
-                        private val observable: ObservableEmitter<Offset>) : SafeRunnable(), AsyncCallback.AddCallback {
+                        private val callbacks: List<AsyncCallbacks.PutMessageCallback>) : SafeRunnable(), AsyncCallback.AddCallback {
 
     private var entryId: Long = 0
 
-    private var startTime: Long = 0
+    private var createdNanos: Long = 0
+
+    private var startedNanos: Long = 0
+
+    private var completedNanos: Long = 0
 
     private var dataLength: Int = 0
 
+    private var dataIndex: Int = 0
+
     var ledgerHandle: LedgerHandle = messageStorage.currentLedger
 
     init {
         dataLength = data.readableBytes()
-        startTime = System.nanoTime()
+        dataIndex = data.readerIndex()
+        createdNanos = System.nanoTime()
     }
 
     fun start() {
         logger.debug("[{}] Async add pending entry", this.ledgerHandle.id)
+        this.startedNanos = System.nanoTime()
+        this.messageStorage.pendingAddEntries.incrementAndGet()
         this.ledgerHandle.asyncAddEntry(this.data, this, null)
     }
 
     fun failed(t: Throwable) {
         this.data.release()
-        this.observable.onError(t)
+        this.callbacks.forEach { it.onThrowable(t) }
     }
 
     override fun addComplete(rc: Int, lh: LedgerHandle, entryId: Long, ctx: Any?) {
         checkArgument(this.ledgerHandle.id == lh.id)
         this.entryId = entryId
-        logger.info("[{}] write-complete: ledger-id={} entry-id={} size={} rc={}", this.messageStorage.topic,
-                lh.id, entryId, dataLength, rc)
+        this.completedNanos = System.nanoTime()
         if (rc != BKException.Code.OK) {
-            this.observable.onError(MessageStorageException(BKException.create(rc)))
+            this.messageStorage.appendStats.recordFailure()
+            this.messageStorage.pendingAddEntries.decrementAndGet()
+            failed(MessageStorageException(BKException.create(rc)))
             this.messageStorage.executor.submitOrdered(this.messageStorage.topic, SafeRunnable.safeRun {
                 //force to create a new ledger in the background thread
                 this.messageStorage.ledgerClosed(lh)
+                this.messageStorage.createLedgerAfterClosed()
             })
         } else {
             this.messageStorage.executor.submitOrdered(this.messageStorage.topic, this)
@@ -57,13 +71,20 @@ class AppendMessageTask(private val messageStorage: MessageStorageImpl, private
     }
 
     override fun safeRun() {
-        this.messageStorage.numberOfMessages.incrementAndGet()
+        this.messageStorage.numberOfMessages.addAndGet(this.callbacks.size.toLong())
         this.messageStorage.totalSize.addAndGet(dataLength.toLong())
 
+        this.messageStorage.messageCache.insert(this.ledgerHandle.id, this.entryId, this.data.slice(dataIndex, dataLength))
         this.data.release()
         this.messageStorage.lastConfirmedEntry = Offset(this.ledgerHandle.id, this.entryId)
-        observable.onNext(Offset(ledgerHandle.id, entryId))
-        this.observable.onComplete()
+        this.callbacks.forEachIndexed { batchIndex, callback ->
+            callback.onComplete(Offset(ledgerHandle.id, entryId, batchIndex))
+        }
+        this.messageStorage.pendingAddEntries.decrementAndGet()
+        this.messageStorage.notifyParkedReads()
+        this.messageStorage.entryAppended(this.ledgerHandle, this.entryId, dataLength)
+        this.messageStorage.appendStats.recordAppend(startedNanos - createdNanos, completedNanos - startedNanos,
+                System.nanoTime() - createdNanos, this.callbacks.size, dataLength)
     }
 
     companion object {
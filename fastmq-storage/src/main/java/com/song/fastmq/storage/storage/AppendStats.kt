@@ -0,0 +1,86 @@
+package com.song.fastmq.storage.storage
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Appends of a message storage: totals since it was opened, and latencies since the last [rollInterval].
+ * An entry may hold several messages written by one group commit.
+ *
+ * @author song
+ */
+class AppendStats {
+
+    private val entries = LongAdder()
+
+    private val messages = LongAdder()
+
+    private val bytes = LongAdder()
+
+    private val failures = LongAdder()
+
+    @Volatile
+    private var interval = Interval()
+
+    /**
+     * @param queueTimeNanos from the entry being created to its add being sent to the bookies, e.g. while the
+     * ledger is switched
+     * @param addLatencyNanos from the add being sent to the bookies to its acknowledgement
+     * @param appendLatencyNanos from the entry being created to its callbacks being completed
+     */
+    fun recordAppend(queueTimeNanos: Long, addLatencyNanos: Long, appendLatencyNanos: Long, messages: Int, bytes: Int) {
+        this.entries.increment()
+        this.messages.add(messages.toLong())
+        this.bytes.add(bytes.toLong())
+        val interval = this.interval
+        interval.queueTime.record(queueTimeNanos)
+        interval.addLatency.record(addLatencyNanos)
+        interval.appendLatency.record(appendLatencyNanos)
+    }
+
+    fun recordFailure() {
+        this.failures.increment()
+    }
+
+    fun getEntries() = this.entries.sum()
+
+    fun getMessages() = this.messages.sum()
+
+    fun getBytes() = this.bytes.sum()
+
+    fun getFailures() = this.failures.sum()
+
+    fun getInterval() = this.interval
+
+    /**
+     * Start recording latencies into a new interval. An append racing with the switch may still land in the
+     * returned one after it was read.
+     */
+    fun rollInterval(): Interval {
+        val previous = this.interval
+        this.interval = Interval()
+        return previous
+    }
+
+    override fun toString(): String {
+        return "AppendStats(entries=${getEntries()}, messages=${getMessages()}, bytes=${getBytes()}, failures=${getFailures()})"
+    }
+
+    class Interval {
+
+        val startNanos = System.nanoTime()
+
+        val queueTime = LatencyHistogram()
+
+        val addLatency = LatencyHistogram()
+
+        val appendLatency = LatencyHistogram()
+
+        fun getDurationMs() = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.startNanos)
+
+        override fun toString(): String {
+            return "Interval(durationMs=${getDurationMs()}, queueTime=[$queueTime], addLatency=[$addLatency], " +
+                    "appendLatency=[$appendLatency])"
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.song.fastmq.storage.storage
+
+import com.google.common.base.Preconditions.checkArgument
+import com.google.common.collect.Lists
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.PooledByteBufAllocator
+import io.netty.buffer.Unpooled
+import java.util.*
+
+/**
+ * Layout of the entries, every entry starts with a marker telling how its messages are laid out:
+ *
+ * ```
+ * single message:   | single magic (int32) | payload |
+ * group commit:     | magic (int32) | count (varint) | size (varint) | payload | size (varint) | payload | ...
+ * ```
+ *
+ * Ledgers written before the markers were introduced hold bare single messages, see [decode].
+ *
+ * @author song
+ */
+object BatchEntryFormat {
+
+    const val MAGIC = 0xFA5BA7C1.toInt()
+
+    const val SINGLE_MAGIC = 0xFA551C1E.toInt()
+
+    /**
+     * Only reliable for ledgers without markers, whose single messages are not expected to start with [MAGIC].
+     */
+    fun isBatch(entry: ByteBuf): Boolean {
+        return entry.readableBytes() >= 4 && entry.getInt(entry.readerIndex()) == MAGIC
+    }
+
+    /**
+     * Prefix a single message with its marker without copying it, the entry takes over the reference of the payload.
+     */
+    fun wrapSingle(payload: ByteBuf): ByteBuf {
+        val marker = Unpooled.buffer(4, 4).writeInt(SINGLE_MAGIC)
+        return Unpooled.wrappedBuffer(marker, payload)
+    }
+
+    /**
+     * Pack the given messages into a single entry, the payloads are not released.
+     */
+    fun encode(payloads: List<ByteBuf>): ByteBuf {
+        var size = 4 + varIntSize(payloads.size)
+        payloads.forEach {
+            size += varIntSize(it.readableBytes()) + it.readableBytes()
+        }
+        val entry = PooledByteBufAllocator.DEFAULT.buffer(size, size)
+        entry.writeInt(MAGIC)
+        writeVarInt(entry, payloads.size)
+        payloads.forEach {
+            writeVarInt(entry, it.readableBytes())
+            entry.writeBytes(it, it.readerIndex(), it.readableBytes())
+        }
+        return entry
+    }
+
+    /**
+     * Split an entry into slices of its messages, the slices share the entry's reference count.
+     *
+     * @param marked whether the entry comes from a ledger written with markers, otherwise it is only taken as a batch
+     * if it starts with [MAGIC]
+     */
+    fun decode(entry: ByteBuf, marked: Boolean): List<ByteBuf> {
+        if (!marked) {
+            return if (isBatch(entry)) decodeBatch(entry) else Collections.singletonList(entry)
+        }
+        checkArgument(entry.readableBytes() >= 4, "Entry without marker")
+        return when (entry.getInt(entry.readerIndex())) {
+            SINGLE_MAGIC -> Collections.singletonList(entry.slice(entry.readerIndex() + 4, entry.readableBytes() - 4))
+            MAGIC -> decodeBatch(entry)
+            else -> throw IllegalArgumentException("Unknown entry marker")
+        }
+    }
+
+    private fun decodeBatch(entry: ByteBuf): List<ByteBuf> {
+        val buf = entry.duplicate()
+        checkArgument(buf.readInt() == MAGIC, "Not a batched entry")
+        val count = readVarInt(buf)
+        val payloads = Lists.newArrayListWithExpectedSize<ByteBuf>(count)
+        for (i in 0 until count) {
+            val size = readVarInt(buf)
+            payloads.add(buf.readSlice(size))
+        }
+        return payloads
+    }
+
+    private fun varIntSize(value: Int): Int {
+        var size = 1
+        var v = value ushr 7
+        while (v != 0) {
+            size++
+            v = v ushr 7
+        }
+        return size
+    }
+
+    private fun writeVarInt(buf: ByteBuf, value: Int) {
+        var v = value
+        while (v and 0x7F.inv() != 0) {
+            buf.writeByte((v and 0x7F) or 0x80)
+            v = v ushr 7
+        }
+        buf.writeByte(v)
+    }
+
+    private fun readVarInt(buf: ByteBuf): Int {
+        var result = 0
+        var shift = 0
+        while (shift < 32) {
+            val b = buf.readByte().toInt()
+            result = result or ((b and 0x7F) shl shift)
+            if (b and 0x80 == 0) {
+                return result
+            }
+            shift += 7
+        }
+        throw IllegalArgumentException("Malformed varint")
+    }
+}
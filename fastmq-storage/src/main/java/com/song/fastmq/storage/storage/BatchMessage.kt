@@ -3,6 +3,14 @@ package com.song.fastmq.storage.storage
 import com.song.fastmq.common.message.Message
 
 /**
+ * Messages read from storage, their buffers are retained slices of the ledger entries and must be
+ * released by the reader, see [release].
+ *
  * @author song
  */
-class BatchMessage(var nextReadOffset: Offset = Offset.NULL_OFFSET, val messages: List<Message>)
+class BatchMessage(var nextReadOffset: Offset = Offset.NULL_OFFSET, val messages: List<Message>) {
+
+    fun release() {
+        messages.forEach { it.buffer.release() }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,59 @@
+package com.song.fastmq.storage.storage
+
+import com.google.common.base.Preconditions.checkArgument
+import com.google.common.collect.Lists
+import com.song.fastmq.common.message.Message
+import com.song.fastmq.common.message.MessageId
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.PooledByteBufAllocator
+
+/**
+ * Layout of an entry of a compacted ledger, messages keep the offset they were published at:
+ *
+ * ```
+ * | magic (int32) | count (int32) | ledger id (int64) | entry id (int64) | batch index (int32) | size (int32) | payload | ...
+ * ```
+ *
+ * @author song
+ */
+object CompactedEntryFormat {
+
+    const val MAGIC = 0xFA5EC0DE.toInt()
+
+    private const val MESSAGE_HEADER_SIZE = 8 + 8 + 4 + 4
+
+    /**
+     * Pack the given messages into a single entry, the payloads are not released.
+     */
+    fun encode(offsets: List<Offset>, payloads: List<ByteBuf>): ByteBuf {
+        checkArgument(offsets.size == payloads.size)
+        var size = 8
+        payloads.forEach { size += MESSAGE_HEADER_SIZE + it.readableBytes() }
+        val entry = PooledByteBufAllocator.DEFAULT.buffer(size, size)
+        entry.writeInt(MAGIC)
+        entry.writeInt(payloads.size)
+        payloads.forEachIndexed { i, payload ->
+            entry.writeLong(offsets[i].ledgerId)
+            entry.writeLong(offsets[i].entryId)
+            entry.writeInt(offsets[i].batchIndex)
+            entry.writeInt(payload.readableBytes())
+            entry.writeBytes(payload, payload.readerIndex(), payload.readableBytes())
+        }
+        return entry
+    }
+
+    /**
+     * Split an entry into messages holding slices of it, the slices share the entry's reference count.
+     */
+    fun decode(entry: ByteBuf): List<Message> {
+        val buf = entry.duplicate()
+        checkArgument(buf.readInt() == MAGIC, "Not a compacted entry")
+        val count = buf.readInt()
+        val messages = Lists.newArrayListWithExpectedSize<Message>(count)
+        for (i in 0 until count) {
+            val messageId = MessageId(buf.readLong(), buf.readLong(), buf.readInt())
+            messages.add(Message(messageId, buf.readSlice(buf.readInt())))
+        }
+        return messages
+    }
+}
@@ -0,0 +1,94 @@
+package com.song.fastmq.storage.storage
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Distribution of latencies in microseconds, recording is lock free and allocation free. Values below 16us get a
+ * bucket each, larger ones a bucket per eighth of a power of two, so percentiles are within 12.5% of the real value.
+ *
+ * @author song
+ */
+class LatencyHistogram {
+
+    private val buckets = AtomicLongArray(BUCKETS)
+
+    private val count = LongAdder()
+
+    private val totalMicros = LongAdder()
+
+    private val maxMicros = AtomicLong()
+
+    fun record(nanos: Long) {
+        val micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos))
+        this.buckets.incrementAndGet(bucketOf(micros))
+        this.count.increment()
+        this.totalMicros.add(micros)
+        if (micros > this.maxMicros.get()) {
+            this.maxMicros.accumulateAndGet(micros, Math::max)
+        }
+    }
+
+    fun getCount() = this.count.sum()
+
+    fun getMeanMs(): Double {
+        val count = this.count.sum()
+        return if (count == 0L) 0.0 else this.totalMicros.sum().toDouble() / count / 1000
+    }
+
+    fun getMaxMs(): Double = this.maxMicros.get().toDouble() / 1000
+
+    /**
+     * Upper bound of the bucket holding the given [quantile] of the values, 0 if nothing was recorded.
+     */
+    fun getPercentileMs(quantile: Double): Double {
+        val count = this.count.sum()
+        if (count == 0L) {
+            return 0.0
+        }
+        val rank = Math.max(1, Math.ceil(quantile * count).toLong())
+        var seen = 0L
+        for (i in 0 until BUCKETS) {
+            seen += this.buckets.get(i)
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), this.maxMicros.get()).toDouble() / 1000
+            }
+        }
+        return getMaxMs()
+    }
+
+    override fun toString(): String {
+        return "count=${getCount()}, mean=%.3fms, p50=%.3fms, p99=%.3fms, p999=%.3fms, max=%.3fms".format(
+                getMeanMs(), getPercentileMs(0.5), getPercentileMs(0.99), getPercentileMs(0.999), getMaxMs())
+    }
+
+    companion object {
+
+        private const val LINEAR_BUCKETS = 16
+
+        private const val SUB_BUCKET_BITS = 3
+
+        private const val BUCKETS = LINEAR_BUCKETS + (64 - 4) * (1 shl SUB_BUCKET_BITS)
+
+        internal fun bucketOf(micros: Long): Int {
+            if (micros < LINEAR_BUCKETS) {
+                return micros.toInt()
+            }
+            val exponent = 63 - java.lang.Long.numberOfLeadingZeros(micros)
+            val subBucket = (micros ushr (exponent - SUB_BUCKET_BITS)).toInt() and ((1 shl SUB_BUCKET_BITS) - 1)
+            return LINEAR_BUCKETS + ((exponent - 4) shl SUB_BUCKET_BITS) + subBucket
+        }
+
+        internal fun upperBoundOf(bucket: Int): Long {
+            if (bucket < LINEAR_BUCKETS) {
+                return bucket.toLong()
+            }
+            val exponent = ((bucket - LINEAR_BUCKETS) ushr SUB_BUCKET_BITS) + 4
+            val subBucket = ((bucket - LINEAR_BUCKETS) and ((1 shl SUB_BUCKET_BITS) - 1)).toLong()
+            val width = 1L shl (exponent - SUB_BUCKET_BITS)
+            return (1L shl exponent) + (subBucket + 1) * width - 1
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.song.fastmq.storage.storage
+
+import io.netty.buffer.ByteBuf
+import io.reactivex.Observable
+import org.apache.bookkeeper.client.LedgerHandle
+import java.io.Closeable
+import java.io.IOException
+
+/**
+ * Copies closed ledgers to a cheaper storage tier, so they can be deleted from BookKeeper and still be read.
+ *
+ * @author song
+ */
+interface LedgerOffloader {
+
+    /**
+     * Copy all the entries of a closed ledger, emits the location of the copy.
+     */
+    fun offload(topic: String, ledger: LedgerHandle): Observable<String>
+
+    @Throws(IOException::class)
+    fun open(location: String): OffloadedLedger
+
+    fun delete(location: String)
+
+    fun close()
+}
+
+/**
+ * Read only view of an offloaded ledger. It stays readable until [close] and every [tryRetain] are matched by a
+ * [release], so a read may overlap the close.
+ */
+interface OffloadedLedger : Closeable {
+
+    /**
+     * Keep the ledger readable until the matching [release].
+     *
+     * @return false if the ledger is already closed
+     */
+    fun tryRetain(): Boolean
+
+    fun release()
+
+    fun getLastEntryId(): Long
+
+    /**
+     * Get the entries in range [firstEntry, lastEntry], callers must release the returned buffers.
+     */
+    fun readEntries(firstEntry: Long, lastEntry: Long): List<ByteBuf>
+}
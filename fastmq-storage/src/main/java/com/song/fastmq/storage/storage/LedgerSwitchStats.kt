@@ -0,0 +1,44 @@
+package com.song.fastmq.storage.storage
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * How long appends were held in the pending queue each time the message storage switched to a new ledger.
+ *
+ * @author song
+ */
+class LedgerSwitchStats {
+
+    private val switchCount = LongAdder()
+
+    private val queuedAppends = LongAdder()
+
+    private val totalQueuedTimeNanos = LongAdder()
+
+    private val maxQueuedTimeNanos = AtomicLong()
+
+    fun record(queuedTimeNanos: Long, appends: Int) {
+        this.switchCount.increment()
+        this.queuedAppends.add(appends.toLong())
+        this.totalQueuedTimeNanos.add(queuedTimeNanos)
+        this.maxQueuedTimeNanos.accumulateAndGet(queuedTimeNanos, Math::max)
+    }
+
+    fun getSwitchCount() = this.switchCount.sum()
+
+    fun getQueuedAppends() = this.queuedAppends.sum()
+
+    fun getAvgQueuedTimeMs(): Double {
+        val count = this.switchCount.sum()
+        return if (count == 0L) 0.0 else this.totalQueuedTimeNanos.sum().toDouble() / count / TimeUnit.MILLISECONDS.toNanos(1)
+    }
+
+    fun getMaxQueuedTimeMs(): Double = this.maxQueuedTimeNanos.get().toDouble() / TimeUnit.MILLISECONDS.toNanos(1)
+
+    override fun toString(): String {
+        return "LedgerSwitchStats(switchCount=${getSwitchCount()}, queuedAppends=${getQueuedAppends()}, " +
+                "avgQueuedTimeMs=${getAvgQueuedTimeMs()}, maxQueuedTimeMs=${getMaxQueuedTimeMs()})"
+    }
+}
@@ -1,12 +1,51 @@
 package com.song.fastmq.storage.storage
 
+import io.netty.buffer.ByteBuf
+
 /**
+ * Cache of recently appended entries, keyed by (ledgerId, entryId), so that tailing readers
+ * can be served without a bookie round trip.
+ *
  * @author song
  */
 interface MessageCache {
 
     fun getName(): String
 
-    
+    /**
+     * Insert an entry into the cache, the cache retains its own reference of the given buffer.
+     *
+     * @return false if the entry was not cached
+     */
+    fun insert(ledgerId: Long, entryId: Long, data: ByteBuf): Boolean
+
+    /**
+     * Get the cached entries of range [firstEntry, lastEntry] up to the first one missing.
+     *
+     * @return retained buffers in entry order, empty if [firstEntry] is not cached. Callers must release the returned buffers.
+     */
+    fun getLeadingEntries(ledgerId: Long, firstEntry: Long, lastEntry: Long): List<ByteBuf>
+
+    /**
+     * Evict all the entries before the given offset, normally the position of the slowest active reader.
+     */
+    fun invalidateEntriesBefore(offset: Offset)
+
+    fun invalidateLedger(ledgerId: Long)
+
+    fun clear()
+
+    /**
+     * Release all the entries, the cache is not used anymore.
+     */
+    fun close()
+
+    fun getSize(): Long
+
+    fun getHitCount(): Long
+
+    fun getMissCount(): Long
+
+    fun getEvictionCount(): Long
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,22 @@
+package com.song.fastmq.storage.storage
+
+import io.netty.buffer.ByteBuf
+
+/**
+ * Tells the key of a stored message, compaction keeps only the latest message of every key.
+ *
+ * @author song
+ */
+interface MessageKeyExtractor {
+
+    /**
+     * Key of the message, null if it has none. Messages without a key are dropped by compaction.
+     * The payload must not be modified or released.
+     */
+    fun extractKey(payload: ByteBuf): String?
+
+    /**
+     * A tombstone removes its key from the compacted topic, it isn't kept itself.
+     */
+    fun isTombstone(payload: ByteBuf): Boolean = false
+}
@@ -1,6 +1,7 @@
 package com.song.fastmq.storage.storage
 
 import com.song.fastmq.common.message.Message
+import com.song.fastmq.storage.storage.metadata.StoragePolicy
 import com.song.fastmq.storage.storage.support.LedgerStorageException
 import io.reactivex.Observable
 
@@ -9,12 +10,73 @@ import io.reactivex.Observable
  */
 interface MessageStorage {
 
+    /**
+     * Append a message, the storage takes over the message buffer and releases it once written.
+     */
     fun appendMessage(message: Message): Observable<Offset>
 
+    /**
+     * Append a burst of messages with a single hop to the ordered thread of the topic.
+     *
+     * @return one result per message in the given order, failures are reported per message
+     */
+    fun appendMessages(messages: List<Message>): Observable<List<PutMessageResult>>
+
+    /**
+     * Read up to [maxMsgNum] messages from [offset], going on with the following ledgers when one runs out.
+     * The read also stops at the configured byte limit, [BatchMessage.nextReadOffset] is where the next read starts.
+     */
     fun queryMessage(offset: Offset, maxMsgNum: Int): Observable<BatchMessage>
 
+    /**
+     * Like [queryMessage], but a read at the end of the log waits up to [maxWaitMs] for new messages
+     * before failing with [com.song.fastmq.storage.storage.support.NoMoreMessageException].
+     */
+    fun queryMessage(offset: Offset, maxMsgNum: Int, maxWaitMs: Long): Observable<BatchMessage>
+
+    /**
+     * Find where to start reading messages published since [timestamp]. The offset may be up to one
+     * time index interval earlier than the first such message, never later.
+     */
+    fun findOffsetByTime(timestamp: Long): Observable<Offset>
+
+    /**
+     * Like [queryMessage], but the messages before the compaction horizon are read from the compacted ledger, which
+     * only holds the latest message of every key. Messages keep the offset they were published at, while the
+     * [BatchMessage.nextReadOffset] of a read served from the compacted ledger points into it. Storages that can't
+     * be compacted read the whole topic.
+     */
+    fun queryCompacted(offset: Offset, maxMsgNum: Int, maxWaitMs: Long): Observable<BatchMessage> {
+        return queryMessage(offset, maxMsgNum, maxWaitMs)
+    }
+
+    /**
+     * Write the latest message of every key published so far into a new compacted ledger, which replaces the
+     * previous one.
+     *
+     * @return the compaction horizon, messages before it are read from the compacted ledger
+     */
+    fun compact(keyExtractor: MessageKeyExtractor): Observable<Offset> {
+        return Observable.error(UnsupportedOperationException("Compaction isn't supported by ${javaClass.simpleName}"))
+    }
+
+    /**
+     * Store how the ledgers of this topic are written from the next one on, null for the default of the broker.
+     */
+    fun updateStoragePolicy(policy: StoragePolicy?): Observable<Void> {
+        return Observable.error(UnsupportedOperationException("Storage policies aren't supported by ${javaClass.simpleName}"))
+    }
+
     fun getNumberOfMessages() :Long
 
+    /**
+     * Track the next read offset of an active reader. Cached entries before the slowest reader
+     * will not be read again and are released.
+     */
+    fun updateReadPosition(readerName: String, offset: Offset)
+
+    fun removeReader(readerName: String)
+
     @Throws(InterruptedException::class, LedgerStorageException::class)
     fun close()
 
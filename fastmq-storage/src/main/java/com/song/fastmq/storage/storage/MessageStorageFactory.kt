@@ -9,6 +9,11 @@ import io.reactivex.Observable
  */
 interface MessageStorageFactory {
 
+    /**
+     * Committed offsets of the consumers of the topics opened by this factory.
+     */
+    val offsetStorage: OffsetStorage
+
     /**
      * Open a message storage of given topic. If it doesn't exist, a new one will be automatically
      * created.
@@ -18,6 +18,9 @@ interface MetadataStorage {
      */
     fun getLogInfo(name: String): Observable<Log>
 
+    /**
+     * Store the log, only if the stored one is still at [Log.version] when it is set.
+     */
     fun updateLogInfo(name: String, log: Log): Observable<Void>
 
     fun removeLogInfo(name: String): Observable<Void>
@@ -1,9 +1,11 @@
 package com.song.fastmq.storage.storage
 
 /**
+ * Position of a message, [batchIndex] is the index of the message inside a batched entry.
+ *
  * @author song
  */
-class Offset(var ledgerId: Long = 0, var entryId: Long = 0) {
+class Offset @JvmOverloads constructor(var ledgerId: Long = 0, var entryId: Long = 0, var batchIndex: Int = 0) : Comparable<Offset> {
 
 
 
@@ -12,8 +14,16 @@ class Offset(var ledgerId: Long = 0, var entryId: Long = 0) {
         val NULL_OFFSET = Offset()
     }
 
+    override fun compareTo(other: Offset): Int {
+        var result = java.lang.Long.compare(ledgerId, other.ledgerId)
+        if (result == 0) {
+            result = java.lang.Long.compare(entryId, other.entryId)
+        }
+        return if (result != 0) result else Integer.compare(batchIndex, other.batchIndex)
+    }
+
     override fun toString(): String {
-        return "Offset(ledgerId=$ledgerId, entryId=$entryId)"
+        return "Offset(ledgerId=$ledgerId, entryId=$entryId, batchIndex=$batchIndex)"
     }
 
     override fun equals(other: Any?): Boolean {
@@ -24,6 +34,7 @@ class Offset(var ledgerId: Long = 0, var entryId: Long = 0) {
 
         if (ledgerId != other.ledgerId) return false
         if (entryId != other.entryId) return false
+        if (batchIndex != other.batchIndex) return false
 
         return true
     }
@@ -31,6 +42,7 @@ class Offset(var ledgerId: Long = 0, var entryId: Long = 0) {
     override fun hashCode(): Int {
         var result = ledgerId.hashCode()
         result = 31 * result + entryId.hashCode()
+        result = 31 * result + batchIndex
         return result
     }
 }
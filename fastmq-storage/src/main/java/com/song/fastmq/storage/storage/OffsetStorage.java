@@ -15,6 +15,15 @@ public interface OffsetStorage {
     void asyncQueryOffset(ConsumerInfo consumerInfo,
         AsyncCallbacks.ReadOffsetCallback callback);
 
+    /**
+     * Query the lowest committed offset among all the consumers of the topic, the callback gets
+     * null if the topic has no consumer.
+     */
+    void asyncQuerySlowestOffset(String topic, AsyncCallbacks.ReadOffsetCallback callback);
+
+    /**
+     * Persist the offset committed by the consumer, which may complete after this returns.
+     */
     void persistOffset(ConsumerInfo consumerInfo) throws InterruptedException;
 
     void removeOffset(ConsumerInfo consumerInfo);
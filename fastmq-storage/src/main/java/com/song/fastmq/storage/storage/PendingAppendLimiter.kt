@@ -0,0 +1,45 @@
+package com.song.fastmq.storage.storage
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Budget of bytes accepted for appending and not persisted yet. A non positive [maxBytes] means no limit.
+ * A single message larger than the whole budget is still accepted once nothing else is pending.
+ *
+ * @author song
+ */
+class PendingAppendLimiter(val maxBytes: Long, private val parent: PendingAppendLimiter? = null) {
+
+    private val pendingBytes = AtomicLong()
+
+    /**
+     * Reserve [bytes] from this budget and the parent one, nothing is reserved if either is exhausted.
+     */
+    fun tryAcquire(bytes: Long): Boolean {
+        while (true) {
+            val current = this.pendingBytes.get()
+            if (this.maxBytes > 0 && current > 0 && current + bytes > this.maxBytes) {
+                return false
+            }
+            if (this.pendingBytes.compareAndSet(current, current + bytes)) {
+                break
+            }
+        }
+        if (this.parent != null && !this.parent.tryAcquire(bytes)) {
+            this.pendingBytes.addAndGet(-bytes)
+            return false
+        }
+        return true
+    }
+
+    fun release(bytes: Long) {
+        this.pendingBytes.addAndGet(-bytes)
+        this.parent?.release(bytes)
+    }
+
+    fun getPendingBytes() = this.pendingBytes.get()
+
+    override fun toString(): String {
+        return "PendingAppendLimiter(pendingBytes=${getPendingBytes()}, maxBytes=$maxBytes)"
+    }
+}
@@ -5,7 +5,14 @@ import com.song.fastmq.common.message.MessageId
 /**
  * @author song
  */
-class PutMessageResult(private val status: StatusEnum, private val msgId: MessageId = MessageId.EMPTY, private val storeTimestamp: Long = 0) {
+class PutMessageResult(val status: StatusEnum, val msgId: MessageId = MessageId.EMPTY, val storeTimestamp: Long = 0,
+                       val throwable: Throwable? = null) {
+
+    fun isOk() = status == StatusEnum.OK
+
+    override fun toString(): String {
+        return "PutMessageResult(status=$status, msgId=$msgId, storeTimestamp=$storeTimestamp)"
+    }
 
     enum class StatusEnum {
         OK, UNKNOWN_ERROR
@@ -0,0 +1,40 @@
+package com.song.fastmq.storage.storage.config
+
+/**
+ * Settings of the local disk message storage, see [com.song.fastmq.storage.storage.impl.LocalMessageStorageFactoryImpl].
+ *
+ * @author song
+ */
+class LocalStorageConfig {
+
+    /**
+     * Every topic keeps its segment files and consumer offsets in a sub directory.
+     */
+    var dataDirectory = "data/local"
+
+    /**
+     * Segment files are allocated at full size up front, so appends never grow the file and a sync doesn't
+     * have to update the file metadata. A new segment is started once either limit is reached.
+     */
+    var segmentSizeBytes: Long = 512 * 1024 * 1024
+
+    var maxEntriesPerSegment = 1000000
+
+    /**
+     * Appends are acknowledged by a single sync of all the entries written within [flushIntervalMs],
+     * or as soon as [flushMaxBytes] are waiting.
+     */
+    var flushIntervalMs: Long = 1
+
+    var flushMaxBytes: Long = 1024 * 1024
+
+    /**
+     * Acknowledge appends once written to the page cache, without syncing them to disk.
+     */
+    var fsyncEnabled = true
+
+    /**
+     * Reads load at least this many bytes of a segment at once and serve the following reads from them.
+     */
+    var readAheadBytes = 1024 * 1024
+}
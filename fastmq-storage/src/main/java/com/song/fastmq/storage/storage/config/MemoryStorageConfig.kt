@@ -0,0 +1,16 @@
+package com.song.fastmq.storage.storage.config
+
+/**
+ * Settings of the in memory message storage, see [com.song.fastmq.storage.storage.impl.InMemoryMessageStorageFactoryImpl].
+ *
+ * @author song
+ */
+class MemoryStorageConfig {
+
+    /**
+     * Every topic keeps its latest messages up to both limits, older messages are dropped to make room.
+     */
+    var maxMessagesPerTopic = 64 * 1024
+
+    var maxSizePerTopicBytes: Long = 64 * 1024 * 1024
+}
@@ -0,0 +1,184 @@
+package com.song.fastmq.storage.storage.config
+
+import com.song.fastmq.storage.storage.metadata.StoragePolicy
+
+/**
+ * Settings of a single [com.song.fastmq.storage.storage.MessageStorage].
+ *
+ * @author song
+ */
+class MessageStorageConfig {
+
+    /**
+     * Max bytes of recently appended entries kept in memory for tailing readers by a topic, 0 to disable the cache.
+     */
+    var maxCacheSizeBytes: Long = 64 * 1024 * 1024
+
+    /**
+     * Max bytes of the caches of all the topics of a factory, the oldest entries of the largest caches are evicted
+     * first once exceeded. 0 for no limit.
+     */
+    var maxTotalCacheSizeBytes: Long = 1024 * 1024 * 1024
+
+    /**
+     * A read stops once it has gathered this many bytes of messages, even if fewer messages than asked for.
+     */
+    var maxReadBatchSizeBytes: Long = 5 * 1024 * 1024
+
+    /**
+     * Min time between two points of the publish time index of a ledger, which bounds how early
+     * [com.song.fastmq.storage.storage.MessageStorage.findOffsetByTime] may land.
+     */
+    var timeIndexIntervalMs: Long = 60 * 1000
+
+    /**
+     * Copy closed ledgers older than [offloadAfterMs] into [offloadDirectory], reads of offloaded ledgers are
+     * served from the copy. The BookKeeper ledger is deleted [offloadDeletionLagMs] after it was copied.
+     */
+    var offloadEnabled = false
+
+    var offloadDirectory = "data/offload"
+
+    var offloadAfterMs: Long = 4 * 60 * 60 * 1000
+
+    var offloadDeletionLagMs: Long = 4 * 60 * 60 * 1000
+
+    var offloadCheckIntervalMs: Long = 60 * 1000
+
+    /**
+     * Appends are rejected while the bytes accepted and not persisted yet exceed the limit of the topic or the
+     * limit shared by all the topics of a factory, so slow bookies can't fill up the memory. 0 for no limit.
+     */
+    var maxPendingAppendBytesPerTopic: Long = 128 * 1024 * 1024
+
+    var maxPendingAppendBytes: Long = 1024 * 1024 * 1024
+
+    /**
+     * Upper bound of the time a read at the end of the log waits for new messages.
+     */
+    var maxReadWaitMs: Long = 30 * 1000
+
+    /**
+     * Prefetch entries ahead of every reader into the message cache, with up to [readAheadMaxOutstandingReads]
+     * reads of [readAheadChunkEntries] entries in flight. The window of a reader starts at one chunk and doubles
+     * up to [readAheadMaxEntries] as long as the reader keeps up.
+     */
+    var readAheadEnabled = false
+
+    var readAheadChunkEntries = 100
+
+    var readAheadMaxOutstandingReads = 4
+
+    var readAheadMaxEntries = 2000
+
+    /**
+     * Read only handles of older ledgers kept open for readers, a handle is closed once evicted or idle for
+     * [ledgerHandleIdleTimeMs].
+     */
+    var maxOpenLedgerHandles: Long = 64
+
+    var ledgerHandleIdleTimeMs: Long = 10 * 60 * 1000
+
+    /**
+     * Pack messages appended within [groupCommitLingerMs] into a single entry.
+     */
+    var groupCommitEnabled = false
+
+    var groupCommitLingerMs: Long = 1
+
+    /**
+     * A batch is written as soon as it reaches either limit, without waiting for the linger time.
+     */
+    var groupCommitMaxMessages = 1000
+
+    var groupCommitMaxBytes: Long = 128 * 1024
+
+    /**
+     * The current ledger is closed and a new one is created once it reaches any of the limits.
+     */
+    var maxEntriesPerLedger: Long = 50000
+
+    var maxSizePerLedgerBytes: Long = 1024 * 1024 * 1024
+
+    var maxLedgerRolloverTimeMs: Long = 4 * 60 * 60 * 1000
+
+    /**
+     * A ledger is never rolled over before it's this old, to avoid creating too many small ledgers under heavy load.
+     */
+    var minLedgerRolloverTimeMs: Long = 10 * 60 * 1000
+
+    /**
+     * Create and register the next ledger in the background, so a rollover doesn't need to wait for
+     * BookKeeper and ZooKeeper before appends can go on.
+     */
+    var standbyLedgerEnabled = false
+
+    /**
+     * Closed ledgers fully read by every consumer are trimmed once they are older than [retentionTimeMs],
+     * or while the topic is larger than [retentionSizeBytes]. A negative value disables the limit.
+     */
+    var retentionTimeMs: Long = -1
+
+    var retentionSizeBytes: Long = -1
+
+    var retentionCheckIntervalMs: Long = 60 * 1000
+
+    /**
+     * Trimmed ledgers are deleted from BookKeeper this many at a time.
+     */
+    var retentionDeleteBatchSize = 10
+
+    /**
+     * Committed offsets are written to ZooKeeper in the background every [offsetFlushIntervalMs], up to
+     * [offsetFlushBatchSize] of them per transaction. Once [maxDirtyOffsets] consumers have committed since the
+     * last flush, the next one starts right away, which bounds how many offsets ZooKeeper lags behind.
+     */
+    var offsetFlushIntervalMs: Long = 1000
+
+    var offsetFlushBatchSize = 500
+
+    var maxDirtyOffsets = 10000
+
+    /**
+     * Keep the offsets of the consumers of a topic in a BookKeeper ledger of the topic instead of a znode per consumer,
+     * see [com.song.fastmq.storage.storage.impl.BookKeeperOffsetStorageImpl]. The offsets committed meanwhile are
+     * appended every [cursorFlushIntervalMs], the ledger is rolled over once it holds [cursorLedgerMaxEntries] entries.
+     */
+    var cursorLedgerEnabled = false
+
+    var cursorFlushIntervalMs: Long = 10
+
+    var cursorLedgerMaxEntries: Long = 10000
+
+    /**
+     * Compaction reads [compactionReadBatchSize] messages at a time and keeps up to [compactionMaxKeysInMemory] keys
+     * in memory, more are spilled into [compactionSpillDirectory]. The messages kept are packed up to
+     * [compactionEntryMaxMessages] or [compactionEntryMaxBytes] per entry of the compacted ledger.
+     */
+    var compactionReadBatchSize = 1000
+
+    var compactionMaxKeysInMemory = 1000000
+
+    var compactionSpillDirectory = "data/compaction"
+
+    var compactionEntryMaxMessages = 1000
+
+    var compactionEntryMaxBytes: Long = 1024 * 1024
+
+    /**
+     * A replaced compacted ledger is deleted this long after, so its readers can finish reading it.
+     */
+    var compactedLedgerDeletionLagMs: Long = 10 * 60 * 1000
+
+    /**
+     * Storage policy of the topics whose name matches a pattern, the first match applies. Only used for topics
+     * without a policy of their own, it's then stored as theirs. Topics matching none use the [BookKeeperConfig].
+     */
+    var storagePolicies: Map<String, StoragePolicy> = LinkedHashMap()
+
+    /**
+     * Log the append latencies of every topic that was written to every [statsLogIntervalMs], 0 to never log them.
+     * They are always available from [com.song.fastmq.storage.storage.impl.MessageStorageImpl.appendStats].
+     */
+    var statsLogIntervalMs: Long = 60 * 1000
+}
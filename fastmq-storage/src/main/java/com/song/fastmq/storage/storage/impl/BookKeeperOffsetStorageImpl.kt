@@ -0,0 +1,461 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.google.common.primitives.Longs
+import com.song.fastmq.storage.storage.ConsumerInfo
+import com.song.fastmq.storage.storage.MetadataStorage
+import com.song.fastmq.storage.storage.Offset
+import com.song.fastmq.storage.storage.OffsetStorage
+import com.song.fastmq.storage.storage.concurrent.AsyncCallbacks
+import com.song.fastmq.storage.storage.config.BookKeeperConfig
+import com.song.fastmq.storage.storage.config.MessageStorageConfig
+import com.song.fastmq.storage.storage.support.MessageStorageException
+import com.song.fastmq.storage.storage.support.OffsetStorageException
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.Unpooled
+import org.apache.bookkeeper.client.BKException
+import org.apache.bookkeeper.client.BookKeeper
+import org.apache.bookkeeper.client.LedgerHandle
+import org.apache.bookkeeper.util.OrderedSafeExecutor
+import org.apache.bookkeeper.util.SafeRunnable.safeRun
+import org.apache.curator.x.async.AsyncCuratorFramework
+import org.apache.curator.x.async.api.CreateOption
+import org.apache.zookeeper.KeeperException
+import org.apache.zookeeper.data.Stat
+import org.slf4j.LoggerFactory
+import java.nio.charset.StandardCharsets
+import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * An [OffsetStorage] appending the offsets committed by the consumers of a topic to a BookKeeper ledger of the
+ * topic, the cursor ledger. Committing costs an entry per topic every [MessageStorageConfig.cursorFlushIntervalMs]
+ * with the offsets changed meanwhile, instead of a znode write per consumer. ZooKeeper only records the id of the
+ * cursor ledger of every topic.
+ *
+ * Loading a topic replays its cursor ledger, then rolls over to a new ledger starting with a snapshot of all the
+ * offsets, which also fences a broker that still writes the previous one. The ledger is rolled over the same way
+ * once it holds [MessageStorageConfig.cursorLedgerMaxEntries] entries, or when a write fails.
+ *
+ * The ledger of a topic is only accessed in the ordered thread of the topic.
+ *
+ * @author song
+ */
+class BookKeeperOffsetStorageImpl(private val bookKeeper: BookKeeper,
+                                  private val bookKeeperConfig: BookKeeperConfig,
+                                  private val metadataStorage: MetadataStorage,
+                                  private val asyncCuratorFramework: AsyncCuratorFramework,
+                                  private val config: MessageStorageConfig = MessageStorageConfig()) : OffsetStorage {
+
+    private val executor = OrderedSafeExecutor.newBuilder().name("fastmq-cursor-workers").build()
+
+    private val topics = ConcurrentHashMap<String, TopicCursors>()
+
+    override fun commitOffset(consumerInfo: ConsumerInfo, offset: Offset) {
+        val cursors = cursors(consumerInfo.topic)
+        cursors.offsets[consumerInfo.consumerName] = offset
+        cursors.dirty.add(consumerInfo.consumerName)
+    }
+
+    @Throws(OffsetStorageException::class)
+    override fun queryOffset(consumerInfo: ConsumerInfo): Offset {
+        val future = CompletableFuture<Offset>()
+        asyncQueryOffset(consumerInfo, object : AsyncCallbacks.ReadOffsetCallback {
+            override fun onComplete(offset: Offset?) {
+                future.complete(offset)
+            }
+
+            override fun onThrowable(throwable: Throwable) {
+                future.completeExceptionally(throwable)
+            }
+        })
+        try {
+            return future.get()
+        } catch (e: ExecutionException) {
+            throw OffsetStorageException(e.cause ?: e)
+        }
+    }
+
+    /**
+     * New consumers start at the first ledger of the topic.
+     */
+    override fun asyncQueryOffset(consumerInfo: ConsumerInfo, callback: AsyncCallbacks.ReadOffsetCallback) {
+        val cursors = cursors(consumerInfo.topic)
+        cursors.loaded.whenComplete { _, throwable ->
+            if (throwable != null) {
+                callback.onThrowable(throwable)
+                return@whenComplete
+            }
+            val offset = cursors.offsets[consumerInfo.consumerName]
+            if (offset != null) {
+                callback.onComplete(offset)
+                return@whenComplete
+            }
+            this.metadataStorage.getLogInfo(consumerInfo.topic).subscribe({ log ->
+                val first = Offset(log.segments.map { it.ledgerId }.min() ?: 0, 0)
+                val existing = cursors.offsets.putIfAbsent(consumerInfo.consumerName, first)
+                cursors.dirty.add(consumerInfo.consumerName)
+                callback.onComplete(existing ?: first)
+            }, {
+                callback.onThrowable(it)
+            })
+        }
+    }
+
+    override fun asyncQuerySlowestOffset(topic: String, callback: AsyncCallbacks.ReadOffsetCallback) {
+        val cursors = cursors(topic)
+        cursors.loaded.whenComplete { _, throwable ->
+            if (throwable != null) {
+                callback.onThrowable(throwable)
+            } else {
+                callback.onComplete(cursors.offsets.values.min())
+            }
+        }
+    }
+
+    /**
+     * Write the committed offsets of the topic right away instead of with the next flush.
+     */
+    override fun persistOffset(consumerInfo: ConsumerInfo) {
+        val cursors = cursors(consumerInfo.topic)
+        cursors.loaded.thenAccept {
+            this.executor.submitOrdered(cursors.topic, safeRun { flush(cursors, null) })
+        }
+    }
+
+    override fun removeOffset(consumerInfo: ConsumerInfo) {
+        val cursors = cursors(consumerInfo.topic)
+        // Only once loaded, replaying the ledger would bring the consumer back otherwise
+        cursors.loaded.thenAccept {
+            it.offsets.remove(consumerInfo.consumerName)
+            it.dirty.add(consumerInfo.consumerName)
+        }
+    }
+
+    /**
+     * Write the offsets committed so far and close the cursor ledgers.
+     */
+    override fun close() {
+        this.topics.values.forEach { cursors ->
+            if (!cursors.loaded.isDone || cursors.loaded.isCompletedExceptionally) {
+                return@forEach
+            }
+            cursors.flushTask?.cancel(false)
+            try {
+                // A flush joining the write in progress doesn't include the latest commits
+                var attempts = 0
+                while ((cursors.dirty.isNotEmpty() || cursors.writing) && attempts++ < 3) {
+                    val future = CompletableFuture<Void>()
+                    this.executor.submitOrdered(cursors.topic, safeRun { flush(cursors, future) })
+                    future.get(30, TimeUnit.SECONDS)
+                }
+            } catch (e: Exception) {
+                logger.warn("[{}] Failed to flush offsets before closing: {}", cursors.topic, e.message)
+            }
+            this.executor.submitOrdered(cursors.topic, safeRun {
+                cursors.ledger?.asyncClose({ _, _, _ -> }, null)
+                cursors.ledger = null
+            })
+        }
+        this.topics.clear()
+        this.executor.shutdown()
+        try {
+            this.executor.awaitTermination(30, TimeUnit.SECONDS)
+        } catch (ignore: InterruptedException) {
+        }
+    }
+
+    private fun cursors(topic: String): TopicCursors {
+        return this.topics.computeIfAbsent(topic) {
+            val cursors = TopicCursors(topic)
+            cursors.loaded.whenComplete { _, throwable ->
+                if (throwable != null) {
+                    logger.error("[{}] Failed to load offsets: {}", topic, throwable.message)
+                    this.topics.remove(topic, cursors)
+                }
+            }
+            load(cursors)
+            cursors
+        }
+    }
+
+    private fun load(cursors: TopicCursors) {
+        val stat = Stat()
+        this.asyncCuratorFramework.data.storingStatIn(stat).forPath(cursorPath(cursors.topic)).whenComplete { bytes, throwable ->
+            when (throwable) {
+                is KeeperException.NoNodeException -> this.executor.submitOrdered(cursors.topic, safeRun {
+                    rollLedger(cursors, null, null)
+                })
+                null -> {
+                    cursors.version = stat.version
+                    replay(cursors, Longs.fromByteArray(bytes))
+                }
+                else -> cursors.loaded.completeExceptionally(throwable)
+            }
+        }
+    }
+
+    private fun replay(cursors: TopicCursors, ledgerId: Long) {
+        this.bookKeeper.asyncOpenLedger(ledgerId, bookKeeperConfig.digestType, bookKeeperConfig.password, { rc, lh, _ ->
+            when (rc) {
+                BKException.Code.OK -> readEntries(cursors, lh, 0, HashMap())
+                BKException.Code.NoSuchLedgerExistsException -> {
+                    logger.warn("[{}] Cursor ledger {} not found, all the offsets are lost", cursors.topic, ledgerId)
+                    this.executor.submitOrdered(cursors.topic, safeRun { rollLedger(cursors, null, null) })
+                }
+                else -> cursors.loaded.completeExceptionally(MessageStorageException(BKException.getMessage(rc)))
+            }
+        }, null)
+    }
+
+    private fun readEntries(cursors: TopicCursors, lh: LedgerHandle, firstEntry: Long, replayed: MutableMap<String, Offset>) {
+        if (firstEntry > lh.lastAddConfirmed) {
+            lh.asyncClose({ _, _, _ -> }, null)
+            this.executor.submitOrdered(cursors.topic, safeRun {
+                // Offsets committed while loading are newer
+                replayed.forEach { name, offset -> cursors.offsets.putIfAbsent(name, offset) }
+                rollLedger(cursors, lh.id, null)
+            })
+            return
+        }
+        val lastEntry = Math.min(lh.lastAddConfirmed, firstEntry + READ_BATCH_ENTRIES - 1)
+        lh.asyncReadEntries(firstEntry, lastEntry, { rc, _, seq, _ ->
+            if (rc != BKException.Code.OK) {
+                lh.asyncClose({ _, _, _ -> }, null)
+                cursors.loaded.completeExceptionally(MessageStorageException(BKException.getMessage(rc)))
+                return@asyncReadEntries
+            }
+            while (seq.hasMoreElements()) {
+                val buffer = seq.nextElement().entryBuffer
+                try {
+                    decode(buffer, replayed)
+                } finally {
+                    buffer.release()
+                }
+            }
+            readEntries(cursors, lh, lastEntry + 1, replayed)
+        }, null)
+    }
+
+    /**
+     * Append the offsets changed since the last flush, [done] completes once written or failed.
+     */
+    private fun flush(cursors: TopicCursors, done: CompletableFuture<Void>?) {
+        done?.let { cursors.waiters.add(it) }
+        if (cursors.writing) {
+            return
+        }
+        if (cursors.dirty.isEmpty()) {
+            writeCompleted(cursors)
+            return
+        }
+        val ledger = cursors.ledger
+        if (ledger == null || cursors.entries >= this.config.cursorLedgerMaxEntries) {
+            rollLedger(cursors, ledger?.id, ledger)
+            return
+        }
+        val names = ArrayList(cursors.dirty)
+        cursors.dirty.removeAll(names)
+        cursors.writing = true
+        ledger.asyncAddEntry(encode(names.map { it to cursors.offsets[it] }), { rc, _, _, _ ->
+            this.executor.submitOrdered(cursors.topic, safeRun {
+                cursors.writing = false
+                if (rc != BKException.Code.OK) {
+                    logger.warn("[{}] Failed to write offsets into cursor ledger {}: {}", cursors.topic, ledger.id,
+                            BKException.getMessage(rc))
+                    cursors.dirty.addAll(names)
+                    // The ledger can't be written anymore, carry on with a new one
+                    rollLedger(cursors, ledger.id, ledger)
+                    return@safeRun
+                }
+                cursors.entries++
+                writeCompleted(cursors)
+            })
+        }, null)
+    }
+
+    /**
+     * Create a new cursor ledger starting with a snapshot of all the offsets, record it in ZooKeeper, then delete
+     * the [previousLedgerId] one. The topic is loaded once the first rollover succeeds.
+     */
+    private fun rollLedger(cursors: TopicCursors, previousLedgerId: Long?, previousLedger: LedgerHandle?) {
+        cursors.writing = true
+        this.bookKeeper.asyncCreateLedger(bookKeeperConfig.ensSize, bookKeeperConfig.writeQuorumSize,
+                bookKeeperConfig.ackQuorumSize, bookKeeperConfig.digestType, bookKeeperConfig.password, { rc, lh, _ ->
+            this.executor.submitOrdered(cursors.topic, safeRun {
+                if (rc != BKException.Code.OK) {
+                    rollFailed(cursors, MessageStorageException(BKException.getMessage(rc)))
+                    return@safeRun
+                }
+                // Removed consumers are left out of the snapshot
+                val names = ArrayList(cursors.dirty)
+                cursors.dirty.removeAll(names)
+                val snapshot = encode(cursors.offsets.entries.map { it.key to it.value })
+                lh.asyncAddEntry(snapshot, { rc1, _, _, _ ->
+                    if (rc1 != BKException.Code.OK) {
+                        deleteLedger(cursors.topic, lh)
+                        this.executor.submitOrdered(cursors.topic, safeRun {
+                            cursors.dirty.addAll(names)
+                            rollFailed(cursors, MessageStorageException(BKException.getMessage(rc1)))
+                        })
+                        return@asyncAddEntry
+                    }
+                    recordLedger(cursors, lh, previousLedgerId, previousLedger, names)
+                }, null)
+            })
+        }, null, null)
+    }
+
+    private fun recordLedger(cursors: TopicCursors, lh: LedgerHandle, previousLedgerId: Long?,
+                             previousLedger: LedgerHandle?, names: List<String>) {
+        val path = cursorPath(cursors.topic)
+        val bytes = Longs.toByteArray(lh.id)
+        val stage = if (cursors.version < 0) {
+            this.asyncCuratorFramework.create().withOptions(EnumSet.of(CreateOption.createParentsIfNeeded))
+                    .forPath(path, bytes).thenApply { 0 }
+        } else {
+            // Fails if another broker took the cursors of the topic over
+            this.asyncCuratorFramework.setData().withVersion(cursors.version).forPath(path, bytes).thenApply { it.version }
+        }
+        stage.whenComplete { version, throwable ->
+            this.executor.submitOrdered(cursors.topic, safeRun {
+                if (throwable != null) {
+                    deleteLedger(cursors.topic, lh)
+                    cursors.dirty.addAll(names)
+                    rollFailed(cursors, throwable)
+                    return@safeRun
+                }
+                logger.info("[{}] Rolled over to cursor ledger {}", cursors.topic, lh.id)
+                cursors.version = version
+                cursors.ledger = lh
+                cursors.entries = 1
+                cursors.writing = false
+                previousLedger?.asyncClose({ _, _, _ -> }, null)
+                previousLedgerId?.let { id ->
+                    this.bookKeeper.asyncDeleteLedger(id, { rc, _ ->
+                        if (rc != BKException.Code.OK && rc != BKException.Code.NoSuchLedgerExistsException) {
+                            logger.warn("[{}] Failed to delete cursor ledger {}: {}", cursors.topic, id, BKException.getMessage(rc))
+                        }
+                    }, null)
+                }
+                if (!cursors.loaded.isDone) {
+                    val interval = Math.max(1, this.config.cursorFlushIntervalMs)
+                    cursors.flushTask = this.executor.scheduleAtFixedRateOrdered(cursors.topic, safeRun {
+                        flush(cursors, null)
+                    }, interval, interval, TimeUnit.MILLISECONDS)
+                    cursors.loaded.complete(cursors)
+                }
+                writeCompleted(cursors)
+            })
+        }
+    }
+
+    /**
+     * The previous ledger, if still usable, is kept until the next flush rolls over again.
+     */
+    private fun rollFailed(cursors: TopicCursors, throwable: Throwable) {
+        logger.warn("[{}] Failed to roll the cursor ledger over: {}", cursors.topic, throwable.message)
+        cursors.writing = false
+        if (!cursors.loaded.isDone) {
+            cursors.loaded.completeExceptionally(throwable)
+        } else if (throwable is KeeperException.BadVersionException) {
+            // Fenced, the offsets are owned by another broker now
+            cursors.flushTask?.cancel(false)
+            this.topics.remove(cursors.topic, cursors)
+        }
+        writeCompleted(cursors)
+    }
+
+    private fun writeCompleted(cursors: TopicCursors) {
+        val waiters = ArrayList(cursors.waiters)
+        cursors.waiters.clear()
+        waiters.forEach { it.complete(null) }
+    }
+
+    private fun deleteLedger(topic: String, lh: LedgerHandle) {
+        lh.asyncClose({ _, _, _ ->
+            this.bookKeeper.asyncDeleteLedger(lh.id, { rc, _ ->
+                logger.info("[{}] Delete unused cursor ledger {}. rc={}", topic, lh.id, rc)
+            }, null)
+        }, null)
+    }
+
+    private fun cursorPath(topic: String) = CURSOR_LEDGER_PREFIX + topic
+
+    private class TopicCursors(val topic: String) {
+
+        val offsets = ConcurrentHashMap<String, Offset>()
+
+        // Consumers committed or removed since the last write
+        val dirty: MutableSet<String> = ConcurrentHashMap.newKeySet()
+
+        val loaded = CompletableFuture<TopicCursors>()
+
+        var ledger: LedgerHandle? = null
+
+        var entries: Long = 0
+
+        // Version of the znode recording the ledger, -1 until it's created
+        var version = -1
+
+        @Volatile
+        var writing = false
+
+        var flushTask: ScheduledFuture<*>? = null
+
+        val waiters = ArrayList<CompletableFuture<Void>>()
+    }
+
+    companion object {
+
+        private val logger = LoggerFactory.getLogger(BookKeeperOffsetStorageImpl::class.java)
+
+        private const val CURSOR_LEDGER_PREFIX = "/fastmq/cursor-ledgers/"
+
+        private const val READ_BATCH_ENTRIES = 100
+
+        private const val REMOVED: Byte = 1
+
+        /**
+         * | count (int32) | name length (int16) | name | flags (int8) | ledger id | entry id | batch index | ...
+         *
+         * Removed consumers have [REMOVED] flagged and no position.
+         */
+        internal fun encode(records: List<Pair<String, Offset?>>): ByteArray {
+            val buf = Unpooled.buffer(4 + records.size * 32)
+            buf.writeInt(records.size)
+            records.forEach { (name, offset) ->
+                val bytes = name.toByteArray(StandardCharsets.UTF_8)
+                buf.writeShort(bytes.size)
+                buf.writeBytes(bytes)
+                if (offset == null) {
+                    buf.writeByte(REMOVED.toInt())
+                } else {
+                    buf.writeByte(0)
+                    buf.writeLong(offset.ledgerId)
+                    buf.writeLong(offset.entryId)
+                    buf.writeInt(offset.batchIndex)
+                }
+            }
+            return ByteBufUtil.getBytes(buf)
+        }
+
+        internal fun decode(buf: ByteBuf, offsets: MutableMap<String, Offset>) {
+            val count = buf.readInt()
+            for (i in 0 until count) {
+                val length = buf.readUnsignedShort()
+                val name = buf.toString(buf.readerIndex(), length, StandardCharsets.UTF_8)
+                buf.skipBytes(length)
+                if (buf.readByte() == REMOVED) {
+                    offsets.remove(name)
+                } else {
+                    offsets[name] = Offset(buf.readLong(), buf.readLong(), buf.readInt())
+                }
+            }
+        }
+    }
+}
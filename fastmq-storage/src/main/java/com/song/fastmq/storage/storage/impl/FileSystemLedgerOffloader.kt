@@ -0,0 +1,229 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.google.common.base.Preconditions.checkArgument
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import com.song.fastmq.storage.storage.LedgerOffloader
+import com.song.fastmq.storage.storage.OffloadedLedger
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
+import io.reactivex.Observable
+import io.reactivex.ObservableEmitter
+import org.apache.bookkeeper.client.LedgerHandle
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.net.URLEncoder
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A [LedgerOffloader] writing every ledger into a segment file under [directory]:
+ *
+ * ```
+ * | magic (int32) | size (int32) | entry | size (int32) | entry | ...
+ * | block count (int32) | position of every block (int64) ...
+ * | entries (int64) | block size (int32) | index position (int64) | magic (int32) |
+ * ```
+ *
+ * A block is [blockSize] consecutive entries, readers seek to the block of the first entry they need and
+ * only skip entries within that block. Segment files are memory mapped for reading as a single buffer, so ledgers
+ * whose segment would be larger than 2GB are refused. A segment is only handed out once it was opened back.
+ *
+ * @author song
+ */
+class FileSystemLedgerOffloader @JvmOverloads constructor(private val directory: String,
+                                                          private val blockSize: Int = 1000,
+                                                          private val readBatchSize: Int = 100) : LedgerOffloader {
+
+    private val executor = Executors.newSingleThreadExecutor(
+            ThreadFactoryBuilder().setNameFormat("fastmq-ledger-offloader-%d").build())
+
+    override fun offload(topic: String, ledger: LedgerHandle): Observable<String> {
+        return Observable.create<String> { observable: ObservableEmitter<String> ->
+            this.executor.submit {
+                try {
+                    val path = Paths.get(directory, URLEncoder.encode(topic, "UTF-8"), "${ledger.id}.segment")
+                    writeSegment(ledger, path)
+                    verifySegment(ledger, path)
+                    logger.info("[{}] Offloaded ledger {} to {}", topic, ledger.id, path)
+                    observable.onNext(path.toString())
+                    observable.onComplete()
+                } catch (e: Exception) {
+                    observable.onError(e)
+                }
+            }
+        }
+    }
+
+    private fun writeSegment(ledger: LedgerHandle, path: Path) {
+        Files.createDirectories(path.parent)
+        val tmpPath = path.resolveSibling(path.fileName.toString() + ".tmp")
+        val entries = ledger.lastAddConfirmed + 1
+        val blockPositions = LongArray(((entries + blockSize - 1) / blockSize).toInt())
+        val segmentSize = 4 + entries * 4 + ledger.length + 4 + blockPositions.size * 8L + TRAILER_SIZE
+        if (segmentSize > Int.MAX_VALUE) {
+            throw IOException("Ledger ${ledger.id} of $segmentSize bytes is too large to be offloaded")
+        }
+        FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING).use { channel ->
+            val header = ByteBuffer.allocate(4).putInt(MAGIC)
+            header.flip()
+            writeFully(channel, header)
+            var entryId = 0L
+            while (entryId < entries) {
+                val lastEntry = Math.min(entryId + readBatchSize - 1, entries - 1)
+                val seq = ledger.readEntries(entryId, lastEntry)
+                while (seq.hasMoreElements()) {
+                    val buf = seq.nextElement().entryBuffer
+                    try {
+                        if (entryId % blockSize == 0L) {
+                            blockPositions[(entryId / blockSize).toInt()] = channel.position()
+                        }
+                        val size = ByteBuffer.allocate(4).putInt(buf.readableBytes())
+                        size.flip()
+                        writeFully(channel, size)
+                        writeFully(channel, buf.nioBuffer())
+                    } finally {
+                        buf.release()
+                    }
+                    entryId++
+                }
+            }
+            val indexPosition = channel.position()
+            val index = ByteBuffer.allocate(4 + blockPositions.size * 8 + TRAILER_SIZE)
+            index.putInt(blockPositions.size)
+            blockPositions.forEach { index.putLong(it) }
+            index.putLong(entries).putInt(blockSize).putLong(indexPosition).putInt(MAGIC)
+            index.flip()
+            writeFully(channel, index)
+            channel.force(true)
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    }
+
+    private fun verifySegment(ledger: LedgerHandle, path: Path) {
+        try {
+            open(path.toString()).use {
+                if (it.getLastEntryId() != ledger.lastAddConfirmed) {
+                    throw IOException("Segment $path holds ${it.getLastEntryId() + 1} entries instead of ${ledger.lastAddConfirmed + 1}")
+                }
+            }
+        } catch (e: Exception) {
+            Files.deleteIfExists(path)
+            throw e
+        }
+    }
+
+    private fun writeFully(channel: FileChannel, buffer: ByteBuffer) {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer)
+        }
+    }
+
+    override fun open(location: String): OffloadedLedger {
+        return FileSystemOffloadedLedger(Paths.get(location))
+    }
+
+    override fun delete(location: String) {
+        try {
+            Files.deleteIfExists(Paths.get(location))
+        } catch (e: IOException) {
+            logger.warn("Failed to delete offloaded segment {}: {}", location, e.message)
+        }
+    }
+
+    override fun close() {
+        this.executor.shutdown()
+    }
+
+    private class FileSystemOffloadedLedger(path: Path) : OffloadedLedger {
+
+        private val buffer: ByteBuf
+
+        private val entries: Long
+
+        private val blockSize: Int
+
+        private val blockPositions: LongArray
+
+        // One reference for being open, and one per read in progress
+        private val refCount = AtomicInteger(1)
+
+        private val closed = AtomicBoolean()
+
+        init {
+            val mapped = FileChannel.open(path, StandardOpenOption.READ).use {
+                if (it.size() > Int.MAX_VALUE) {
+                    throw IOException("Segment $path is too large to be mapped")
+                }
+                it.map(FileChannel.MapMode.READ_ONLY, 0, it.size())
+            }
+            buffer = Unpooled.wrappedBuffer(mapped)
+            val size = buffer.readableBytes()
+            if (size < 4 + TRAILER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(size - 4) != MAGIC) {
+                buffer.release()
+                throw IOException("Invalid segment file $path")
+            }
+            entries = buffer.getLong(size - TRAILER_SIZE)
+            blockSize = buffer.getInt(size - TRAILER_SIZE + 8)
+            val indexPosition = buffer.getLong(size - TRAILER_SIZE + 12).toInt()
+            blockPositions = LongArray(buffer.getInt(indexPosition)) { buffer.getLong(indexPosition + 4 + it * 8) }
+        }
+
+        override fun tryRetain(): Boolean {
+            while (true) {
+                val current = refCount.get()
+                if (current == 0) {
+                    return false
+                }
+                if (refCount.compareAndSet(current, current + 1)) {
+                    return true
+                }
+            }
+        }
+
+        override fun release() {
+            if (refCount.decrementAndGet() == 0) {
+                buffer.release()
+            }
+        }
+
+        override fun getLastEntryId() = entries - 1
+
+        override fun readEntries(firstEntry: Long, lastEntry: Long): List<ByteBuf> {
+            checkArgument(firstEntry in 0..lastEntry && lastEntry < entries, "Invalid range [%s, %s]", firstEntry, lastEntry)
+            var position = blockPositions[(firstEntry / blockSize).toInt()].toInt()
+            for (i in 0 until firstEntry % blockSize) {
+                position += 4 + buffer.getInt(position)
+            }
+            val result = ArrayList<ByteBuf>((lastEntry - firstEntry + 1).toInt())
+            for (i in firstEntry..lastEntry) {
+                val size = buffer.getInt(position)
+                result.add(buffer.retainedSlice(position + 4, size))
+                position += 4 + size
+            }
+            return result
+        }
+
+        override fun close() {
+            if (closed.compareAndSet(false, true)) {
+                release()
+            }
+        }
+    }
+
+    companion object {
+
+        private val logger = LoggerFactory.getLogger(FileSystemLedgerOffloader::class.java)
+
+        private const val MAGIC = 0xFA5E6D01.toInt()
+
+        private const val TRAILER_SIZE = 8 + 4 + 8 + 4
+    }
+}
@@ -0,0 +1,52 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.song.fastmq.storage.storage.MessageStorage
+import com.song.fastmq.storage.storage.MessageStorageFactory
+import com.song.fastmq.storage.storage.OffsetStorage
+import com.song.fastmq.storage.storage.config.MemoryStorageConfig
+import com.song.fastmq.storage.storage.config.MessageStorageConfig
+import io.reactivex.Observable
+import io.reactivex.ObservableEmitter
+import org.apache.bookkeeper.util.OrderedSafeExecutor
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * A [MessageStorageFactory] keeping topics and offsets in memory only, see [InMemoryMessageStorageImpl].
+ *
+ * @author song
+ */
+class InMemoryMessageStorageFactoryImpl(private val config: MemoryStorageConfig = MemoryStorageConfig(),
+                                        private val messageStorageConfig: MessageStorageConfig = MessageStorageConfig()) : MessageStorageFactory {
+
+    @Volatile
+    private var closed: Boolean = false
+
+    override val offsetStorage: OffsetStorage = InMemoryOffsetStorageImpl()
+
+    private val messageStorageCache = ConcurrentHashMap<String, InMemoryMessageStorageImpl>()
+
+    private val messageOrderedThreadPool = OrderedSafeExecutor
+            .newBuilder()
+            .name("fastmq-memory-storage")
+            .build()
+
+    override fun open(name: String): Observable<MessageStorage> {
+        return Observable.create<MessageStorage> { observable: ObservableEmitter<MessageStorage> ->
+            observable.onNext(this.messageStorageCache.computeIfAbsent(name) {
+                InMemoryMessageStorageImpl(name, messageOrderedThreadPool, config, messageStorageConfig)
+            })
+            observable.onComplete()
+        }
+    }
+
+    @Synchronized
+    override fun close() {
+        if (!closed) {
+            this.messageStorageCache.values.forEach { it.close() }
+            this.messageStorageCache.clear()
+            this.messageOrderedThreadPool.shutdown()
+            this.offsetStorage.close()
+            closed = true
+        }
+    }
+}
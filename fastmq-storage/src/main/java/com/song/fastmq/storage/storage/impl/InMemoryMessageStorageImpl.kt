@@ -0,0 +1,256 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.google.common.base.Preconditions.checkArgument
+import com.song.fastmq.common.message.Message
+import com.song.fastmq.common.message.MessageId
+import com.song.fastmq.storage.storage.BatchMessage
+import com.song.fastmq.storage.storage.MessageStorage
+import com.song.fastmq.storage.storage.Offset
+import com.song.fastmq.storage.storage.PutMessageResult
+import com.song.fastmq.storage.storage.config.MemoryStorageConfig
+import com.song.fastmq.storage.storage.config.MessageStorageConfig
+import com.song.fastmq.storage.storage.support.LedgerClosedException
+import com.song.fastmq.storage.storage.support.NoMoreMessageException
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.PooledByteBufAllocator
+import io.reactivex.Observable
+import io.reactivex.ObservableEmitter
+import org.apache.bookkeeper.util.OrderedSafeExecutor
+import org.apache.bookkeeper.util.SafeRunnable.safeRun
+import org.slf4j.LoggerFactory
+import java.util.*
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * A non durable [MessageStorage] keeping the latest messages of a topic in a ring of off heap buffers, for
+ * benchmarks and low latency topics that can afford to lose messages. All the messages are in [LEDGER_ID],
+ * the entry id is the sequence number of the message. Readers behind the oldest message skip to it.
+ *
+ * All the state is only accessed in the ordered thread of this topic.
+ *
+ * @author song
+ */
+class InMemoryMessageStorageImpl(val topic: String, val executor: OrderedSafeExecutor,
+                                 private val config: MemoryStorageConfig = MemoryStorageConfig(),
+                                 private val storageConfig: MessageStorageConfig = MessageStorageConfig()) : MessageStorage {
+
+    private val maxMessages = Math.max(config.maxMessagesPerTopic, 1)
+
+    // Slots are addressed by masking the entry id, so the ring is rounded up to a power of two
+    private val capacity = Integer.highestOneBit(maxMessages * 2 - 1)
+
+    private val mask = capacity - 1L
+
+    private val buffers = arrayOfNulls<ByteBuf>(capacity)
+
+    private val timestamps = LongArray(capacity)
+
+    // Entry id of the oldest message kept and of the next message
+    private var firstEntry: Long = 0
+
+    @Volatile
+    private var nextEntry: Long = 0
+
+    private var size: Long = 0
+
+    private val closed = AtomicBoolean()
+
+    // Reads waiting at the end of the log for new messages
+    private val parkedReads = ArrayList<ParkedRead>()
+
+    override fun appendMessage(message: Message): Observable<Offset> {
+        return Observable.create<Offset> { observable: ObservableEmitter<Offset> ->
+            this.executor.submitOrdered(this.topic, safeRun {
+                if (this.closed.get()) {
+                    message.buffer.release()
+                    observable.onError(LedgerClosedException("Message storage was already closed"))
+                    return@safeRun
+                }
+                val offset = append(message.buffer)
+                notifyParkedReads()
+                observable.onNext(offset)
+                observable.onComplete()
+            })
+        }
+    }
+
+    override fun appendMessages(messages: List<Message>): Observable<List<PutMessageResult>> {
+        return Observable.create<List<PutMessageResult>> { observable: ObservableEmitter<List<PutMessageResult>> ->
+            this.executor.submitOrdered(this.topic, safeRun {
+                val exception = if (this.closed.get()) LedgerClosedException("Message storage was already closed") else null
+                val results = messages.map {
+                    if (exception != null) {
+                        it.buffer.release()
+                        PutMessageResult(PutMessageResult.StatusEnum.UNKNOWN_ERROR, throwable = exception)
+                    } else {
+                        val offset = append(it.buffer)
+                        PutMessageResult(PutMessageResult.StatusEnum.OK, MessageId(offset.ledgerId, offset.entryId), System.currentTimeMillis())
+                    }
+                }
+                notifyParkedReads()
+                observable.onNext(results)
+                observable.onComplete()
+            })
+        }
+    }
+
+    /**
+     * Copy the message into a buffer of its own, so it doesn't pin the network buffer it was read into,
+     * then drop the oldest messages until it fits.
+     */
+    private fun append(buffer: ByteBuf): Offset {
+        val length = buffer.readableBytes()
+        val copy = PooledByteBufAllocator.DEFAULT.directBuffer(length, length)
+        copy.writeBytes(buffer, buffer.readerIndex(), length)
+        buffer.release()
+        while (this.nextEntry > this.firstEntry
+                && (this.nextEntry - this.firstEntry >= this.maxMessages || this.size + length > this.config.maxSizePerTopicBytes)) {
+            evictOldest()
+        }
+        val slot = (this.nextEntry and this.mask).toInt()
+        this.buffers[slot] = copy
+        this.timestamps[slot] = System.currentTimeMillis()
+        this.size += length
+        return Offset(LEDGER_ID, this.nextEntry++)
+    }
+
+    private fun evictOldest() {
+        val slot = (this.firstEntry and this.mask).toInt()
+        this.buffers[slot]?.let {
+            this.size -= it.readableBytes()
+            it.release()
+        }
+        this.buffers[slot] = null
+        this.firstEntry++
+    }
+
+    override fun queryMessage(offset: Offset, maxMsgNum: Int): Observable<BatchMessage> {
+        return queryMessage(offset, maxMsgNum, 0)
+    }
+
+    override fun queryMessage(offset: Offset, maxMsgNum: Int, maxWaitMs: Long): Observable<BatchMessage> {
+        return Observable.create<BatchMessage> { observable: ObservableEmitter<BatchMessage> ->
+            this.executor.submitOrdered(this.topic, safeRun {
+                checkArgument(maxMsgNum > 0)
+                if (this.closed.get()) {
+                    observable.onError(LedgerClosedException("Message storage was already closed"))
+                    return@safeRun
+                }
+                readMessages(offset.entryId, maxMsgNum, Math.min(maxWaitMs, this.storageConfig.maxReadWaitMs), 0, observable)
+            })
+        }
+    }
+
+    private fun readMessages(entryId: Long, maxMsgNum: Int, maxWaitMs: Long, deadlineNanos: Long,
+                             observable: ObservableEmitter<BatchMessage>) {
+        var next = Math.max(entryId, this.firstEntry)
+        if (next >= this.nextEntry) {
+            if (maxWaitMs > 0) {
+                parkRead(next, maxMsgNum, maxWaitMs, deadlineNanos, observable)
+            } else {
+                observable.onError(NoMoreMessageException("No more message to read from $topic"))
+            }
+            return
+        }
+        val messages = ArrayList<Message>(Math.min(maxMsgNum.toLong(), this.nextEntry - next).toInt())
+        var bytes: Long = 0
+        while (next < this.nextEntry && messages.size < maxMsgNum && bytes < this.storageConfig.maxReadBatchSizeBytes) {
+            val buffer = this.buffers[(next and this.mask).toInt()]!!
+            messages.add(Message(MessageId(LEDGER_ID, next), buffer.retainedSlice()))
+            bytes += buffer.readableBytes()
+            next++
+        }
+        observable.onNext(BatchMessage(Offset(LEDGER_ID, next), messages))
+        observable.onComplete()
+    }
+
+    private fun parkRead(entryId: Long, maxMsgNum: Int, maxWaitMs: Long, deadlineNanos: Long,
+                         observable: ObservableEmitter<BatchMessage>) {
+        val now = System.nanoTime()
+        val deadline = if (deadlineNanos == 0L) now + TimeUnit.MILLISECONDS.toNanos(maxWaitMs) else deadlineNanos
+        val parkedRead = ParkedRead(entryId, maxMsgNum, maxWaitMs, deadline, observable)
+        parkedRead.timeoutTask = this.executor.scheduleOrdered(this.topic, safeRun {
+            if (this.parkedReads.remove(parkedRead)) {
+                observable.onError(NoMoreMessageException("No more message to read from $topic"))
+            }
+        }, Math.max(0, deadline - now), TimeUnit.NANOSECONDS)
+        this.parkedReads.add(parkedRead)
+    }
+
+    private fun notifyParkedReads() {
+        if (this.parkedReads.isEmpty()) {
+            return
+        }
+        val reads = ArrayList(this.parkedReads)
+        this.parkedReads.clear()
+        reads.forEach {
+            it.timeoutTask?.cancel(false)
+            readMessages(it.entryId, it.maxMsgNum, it.maxWaitMs, it.deadlineNanos, it.observable)
+        }
+    }
+
+    private class ParkedRead(val entryId: Long, val maxMsgNum: Int, val maxWaitMs: Long, val deadlineNanos: Long,
+                             val observable: ObservableEmitter<BatchMessage>) {
+
+        var timeoutTask: ScheduledFuture<*>? = null
+    }
+
+    override fun findOffsetByTime(timestamp: Long): Observable<Offset> {
+        return Observable.create<Offset> { observable: ObservableEmitter<Offset> ->
+            this.executor.submitOrdered(this.topic, safeRun {
+                var low = this.firstEntry
+                var high = this.nextEntry
+                while (low < high) {
+                    val mid = (low + high) ushr 1
+                    if (this.timestamps[(mid and this.mask).toInt()] < timestamp) {
+                        low = mid + 1
+                    } else {
+                        high = mid
+                    }
+                }
+                observable.onNext(Offset(LEDGER_ID, low))
+                observable.onComplete()
+            })
+        }
+    }
+
+    /**
+     * Messages appended so far, including the ones dropped since.
+     */
+    override fun getNumberOfMessages(): Long {
+        return this.nextEntry
+    }
+
+    override fun updateReadPosition(readerName: String, offset: Offset) {
+    }
+
+    override fun removeReader(readerName: String) {
+    }
+
+    override fun close() {
+        if (!this.closed.compareAndSet(false, true)) {
+            logger.warn("Message storage[{}] is already closed.", this.topic)
+            return
+        }
+        this.executor.submitOrdered(this.topic, safeRun {
+            this.parkedReads.forEach {
+                it.timeoutTask?.cancel(false)
+                it.observable.onError(LedgerClosedException("Message storage was already closed"))
+            }
+            this.parkedReads.clear()
+            while (this.firstEntry < this.nextEntry) {
+                evictOldest()
+            }
+        })
+        logger.info("Message storage[{}] is closed.", this.topic)
+    }
+
+    companion object {
+
+        private val logger = LoggerFactory.getLogger(InMemoryMessageStorageImpl::class.java)
+
+        const val LEDGER_ID = 0L
+    }
+}
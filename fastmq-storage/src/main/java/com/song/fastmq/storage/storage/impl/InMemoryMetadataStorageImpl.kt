@@ -0,0 +1,72 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.song.fastmq.storage.storage.MetadataStorage
+import com.song.fastmq.storage.storage.metadata.Log
+import io.reactivex.Observable
+import io.reactivex.ObservableEmitter
+import org.apache.zookeeper.KeeperException
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * A [MetadataStorage] for tests and benchmarks, logs only live as long as the process. Logs are copied on
+ * the way in and out, like they would be serialized into ZooKeeper, and compared and set on their version.
+ *
+ * @author song
+ */
+class InMemoryMetadataStorageImpl : MetadataStorage {
+
+    private val logs = ConcurrentHashMap<String, Log>()
+
+    override fun getLogInfo(name: String): Observable<Log> {
+        return Observable.create<Log> { observable: ObservableEmitter<Log> ->
+            val log = this.logs.computeIfAbsent(name) {
+                val created = Log(name)
+                created.version = ZkVersion(0)
+                created
+            }
+            observable.onNext(copyOf(log))
+            observable.onComplete()
+        }
+    }
+
+    override fun updateLogInfo(name: String, log: Log): Observable<Void> {
+        return Observable.create<Void> { observable: ObservableEmitter<Void> ->
+            var stored: Log? = null
+            this.logs.compute(name) { _, current ->
+                val expected = log.version
+                if (current != null && expected != null && current.version?.version != expected.version) {
+                    return@compute current
+                }
+                val copy = copyOf(log)
+                copy.version = ZkVersion(current?.version?.version?.plus(1) ?: 0)
+                stored = copy
+                copy
+            }
+            val copy = stored
+            if (copy == null) {
+                observable.onError(KeeperException.BadVersionException(name))
+            } else {
+                log.version = copy.version
+                observable.onComplete()
+            }
+        }
+    }
+
+    override fun removeLogInfo(name: String): Observable<Void> {
+        return Observable.create<Void> { observable: ObservableEmitter<Void> ->
+            this.logs.remove(name)
+            observable.onComplete()
+        }
+    }
+
+    private fun copyOf(log: Log): Log {
+        val copy = Log(log.name)
+        copy.segments = log.segments.mapTo(ArrayList(log.segments.size)) { it.copy() }
+        copy.compactedLedgerId = log.compactedLedgerId
+        copy.compactionHorizon = log.compactionHorizon
+        copy.storagePolicy = log.storagePolicy?.copy()
+        copy.markedEntriesSinceLedgerId = log.markedEntriesSinceLedgerId
+        copy.version = log.version
+        return copy
+    }
+}
@@ -0,0 +1,45 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.song.fastmq.storage.storage.ConsumerInfo
+import com.song.fastmq.storage.storage.Offset
+import com.song.fastmq.storage.storage.OffsetStorage
+import com.song.fastmq.storage.storage.concurrent.AsyncCallbacks
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * An [OffsetStorage] for tests, benchmarks and non durable topics, committed offsets are lost on restart.
+ * New consumers start from the beginning of the log.
+ *
+ * @author song
+ */
+class InMemoryOffsetStorageImpl : OffsetStorage {
+
+    private val offsets = ConcurrentHashMap<ConsumerInfo, Offset>()
+
+    override fun commitOffset(consumerInfo: ConsumerInfo, offset: Offset) {
+        this.offsets[consumerInfo] = offset
+    }
+
+    override fun queryOffset(consumerInfo: ConsumerInfo): Offset {
+        return this.offsets.computeIfAbsent(consumerInfo) { Offset(0, 0) }
+    }
+
+    override fun asyncQueryOffset(consumerInfo: ConsumerInfo, callback: AsyncCallbacks.ReadOffsetCallback) {
+        callback.onComplete(queryOffset(consumerInfo))
+    }
+
+    override fun asyncQuerySlowestOffset(topic: String, callback: AsyncCallbacks.ReadOffsetCallback) {
+        callback.onComplete(this.offsets.filterKeys { it.topic == topic }.values.min())
+    }
+
+    override fun persistOffset(consumerInfo: ConsumerInfo) {
+    }
+
+    override fun removeOffset(consumerInfo: ConsumerInfo) {
+        this.offsets.remove(consumerInfo)
+    }
+
+    override fun close() {
+        this.offsets.clear()
+    }
+}
@@ -0,0 +1,137 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.song.fastmq.storage.storage.Offset
+import java.io.*
+import java.nio.charset.StandardCharsets
+import java.util.*
+
+/**
+ * Latest offset of every key of a topic. Once more than [maxKeysInMemory] keys are held, they are written sorted by key
+ * into a run file under [spillDirectory], the runs are merged at the end, so only the offsets to keep need to fit
+ * in memory instead of all the keys.
+ *
+ * @author song
+ */
+class KeyOffsetMap(private val maxKeysInMemory: Int, private val spillDirectory: File) : Closeable {
+
+    private val offsets = HashMap<String, Offset>()
+
+    private val runs = ArrayList<File>()
+
+    /**
+     * Offsets are put in the order they were published, a later one replaces the offset of its key.
+     */
+    fun put(key: String, offset: Offset) {
+        this.offsets[key] = offset
+        if (this.offsets.size >= this.maxKeysInMemory) {
+            spill()
+        }
+    }
+
+    fun getSpilledRuns() = this.runs.size
+
+    /**
+     * Latest offset of every key, in offset order.
+     */
+    fun latestOffsets(): List<Offset> {
+        val result = ArrayList<Offset>()
+        if (this.runs.isEmpty()) {
+            result.addAll(this.offsets.values)
+        } else {
+            merge(result)
+        }
+        result.sort()
+        return result
+    }
+
+    private fun spill() {
+        this.spillDirectory.mkdirs()
+        val file = File.createTempFile("keys-", ".run", this.spillDirectory)
+        this.runs.add(file)
+        DataOutputStream(BufferedOutputStream(FileOutputStream(file))).use { out ->
+            this.offsets.entries.sortedBy { it.key }.forEach {
+                val key = it.key.toByteArray(StandardCharsets.UTF_8)
+                out.writeInt(key.size)
+                out.write(key)
+                out.writeLong(it.value.ledgerId)
+                out.writeLong(it.value.entryId)
+                out.writeInt(it.value.batchIndex)
+            }
+        }
+        this.offsets.clear()
+    }
+
+    /**
+     * Merge the runs and the keys still in memory, the latest offset of a key wins whichever run it is in.
+     */
+    private fun merge(result: MutableList<Offset>) {
+        val readers = this.runs.map { RunReader(DataInputStream(BufferedInputStream(FileInputStream(it)))) }.toMutableList()
+        try {
+            val inMemory = this.offsets.entries.sortedBy { it.key }.iterator()
+            val queue = PriorityQueue<Cursor>(compareBy { it.key })
+            readers.forEach { if (it.next()) queue.add(it) }
+            val memoryCursor = MemoryCursor(inMemory)
+            if (memoryCursor.next()) queue.add(memoryCursor)
+            while (queue.isNotEmpty()) {
+                val first = queue.poll()
+                val key = first.key
+                var latest = first.offset
+                if (first.next()) queue.add(first)
+                while (queue.isNotEmpty() && queue.peek().key == key) {
+                    val same = queue.poll()
+                    if (same.offset > latest) {
+                        latest = same.offset
+                    }
+                    if (same.next()) queue.add(same)
+                }
+                result.add(latest)
+            }
+        } finally {
+            readers.forEach { it.input.close() }
+        }
+    }
+
+    override fun close() {
+        this.runs.forEach { it.delete() }
+        this.runs.clear()
+        this.offsets.clear()
+    }
+
+    private abstract class Cursor {
+
+        lateinit var key: String
+
+        lateinit var offset: Offset
+
+        abstract fun next(): Boolean
+    }
+
+    private class RunReader(val input: DataInputStream) : Cursor() {
+
+        override fun next(): Boolean {
+            val size = try {
+                input.readInt()
+            } catch (e: EOFException) {
+                return false
+            }
+            val bytes = ByteArray(size)
+            input.readFully(bytes)
+            key = String(bytes, StandardCharsets.UTF_8)
+            offset = Offset(input.readLong(), input.readLong(), input.readInt())
+            return true
+        }
+    }
+
+    private class MemoryCursor(val entries: Iterator<Map.Entry<String, Offset>>) : Cursor() {
+
+        override fun next(): Boolean {
+            if (!entries.hasNext()) {
+                return false
+            }
+            val entry = entries.next()
+            key = entry.key
+            offset = entry.value
+            return true
+        }
+    }
+}
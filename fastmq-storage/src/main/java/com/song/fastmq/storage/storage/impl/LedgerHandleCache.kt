@@ -0,0 +1,90 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.google.common.cache.CacheStats
+import com.google.common.cache.RemovalCause
+import com.google.common.cache.RemovalListener
+import com.song.fastmq.storage.storage.config.BookKeeperConfig
+import com.song.fastmq.storage.storage.support.MessageStorageException
+import org.apache.bookkeeper.client.BKException
+import org.apache.bookkeeper.client.BookKeeper
+import org.apache.bookkeeper.client.LedgerHandle
+import org.slf4j.LoggerFactory
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Read only handles of the ledgers of a topic, opened on demand. At most [maxSize] handles are kept,
+ * handles idle for [idleTimeMs] or evicted by newer ones are closed. Concurrent opens of the same
+ * ledger share a single open request.
+ *
+ * @author song
+ */
+class LedgerHandleCache(private val topic: String, private val bookKeeper: BookKeeper,
+                        private val config: BookKeeperConfig, maxSize: Long, idleTimeMs: Long) {
+
+    private val cache: Cache<Long, CompletableFuture<LedgerHandle>> = CacheBuilder.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterAccess(idleTimeMs, TimeUnit.MILLISECONDS)
+            .recordStats()
+            .removalListener(RemovalListener<Long, CompletableFuture<LedgerHandle>> {
+                if (it.cause != RemovalCause.REPLACED) {
+                    // Failed opens have nothing to close
+                    it.value.thenAccept { lh -> closeHandle(lh) }
+                }
+            })
+            .build()
+
+    fun get(ledgerId: Long): CompletableFuture<LedgerHandle> {
+        val future = cache.get(ledgerId) { open(ledgerId) }
+        if (future.isCompletedExceptionally) {
+            // Retry the open next time
+            cache.asMap().remove(ledgerId, future)
+        }
+        return future
+    }
+
+    fun invalidate(ledgerId: Long) {
+        cache.invalidate(ledgerId)
+    }
+
+    fun invalidateAll() {
+        cache.invalidateAll()
+    }
+
+    fun size() = cache.size()
+
+    fun stats(): CacheStats = cache.stats()
+
+    private fun open(ledgerId: Long): CompletableFuture<LedgerHandle> {
+        val future = CompletableFuture<LedgerHandle>()
+        logger.debug("[{}] Open ledger {} for reading", topic, ledgerId)
+        bookKeeper.asyncOpenLedgerNoRecovery(ledgerId, config.digestType, config.password, { rc, lh, _ ->
+            if (rc == BKException.Code.OK) {
+                future.complete(lh)
+            } else {
+                cache.asMap().remove(ledgerId, future)
+                future.completeExceptionally(MessageStorageException(BKException.getMessage(rc)))
+            }
+        }, null)
+        return future
+    }
+
+    private fun closeHandle(lh: LedgerHandle) {
+        logger.debug("[{}] Close ledger handle {}", topic, lh.id)
+        lh.asyncClose({ rc, _, _ ->
+            if (rc != BKException.Code.OK) {
+                logger.warn("[{}] Error closing ledger handle {}: {}", topic, lh.id, BKException.getMessage(rc))
+            }
+        }, null)
+    }
+
+    override fun toString(): String {
+        return "LedgerHandleCache(topic=$topic, size=${size()}, stats=${stats()})"
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(LedgerHandleCache::class.java)
+    }
+}
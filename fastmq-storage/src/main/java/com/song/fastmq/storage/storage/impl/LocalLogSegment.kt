@@ -0,0 +1,265 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.google.common.base.Preconditions.checkArgument
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.PooledByteBufAllocator
+import org.slf4j.LoggerFactory
+import java.io.Closeable
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.zip.CRC32
+
+/**
+ * An append only segment of a topic stored on local disk, made of a log file of records
+ *
+ * ```
+ * | size (int32) | crc32 of timestamp and payload (int32) | timestamp (int64) | payload |
+ * ```
+ *
+ * and a memory mapped index file, where slot i holds the end position of entry i in the log file. Both files
+ * are allocated at full size when the segment is created. Only accessed in the ordered thread of the topic.
+ *
+ * @author song
+ */
+internal class LocalLogSegment private constructor(val id: Long, private val logPath: Path,
+                                                   private val logChannel: FileChannel,
+                                                   private val indexChannel: FileChannel,
+                                                   private val maxEntries: Int) : Closeable {
+
+    private val index: MappedByteBuffer = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, maxEntries * 8L)
+
+    // Size the log file was allocated with, appends past it would grow the file
+    private val logCapacity = logChannel.size()
+
+    /**
+     * Entries written into the log file, they may not be synced yet.
+     */
+    var entries: Long = 0
+        private set
+
+    /**
+     * Write position of the log file.
+     */
+    var size: Long = 0
+        private set
+
+    // Bytes loaded by the last read, following reads are served from them without touching the file
+    private var readAhead: ByteBuf? = null
+
+    private var readAheadPosition: Long = 0
+
+    /**
+     * Find the entries written before a restart, a torn write at the end of the log is dropped.
+     */
+    private fun recover() {
+        var low = 0
+        var high = maxEntries
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (index.getLong(mid * 8) != 0L) {
+                low = mid + 1
+            } else {
+                high = mid
+            }
+        }
+        entries = low.toLong()
+        while (entries > 0 && !isValid(entries - 1)) {
+            logger.warn("Drop corrupted entry {} at the end of segment {}", entries - 1, logPath)
+            index.putLong(((entries - 1) * 8).toInt(), 0)
+            entries--
+        }
+        size = if (entries == 0L) 0 else endOf(entries - 1)
+    }
+
+    private fun isValid(entryId: Long): Boolean {
+        val start = startOf(entryId)
+        val end = endOf(entryId)
+        if (end - start < HEADER_SIZE || end > logChannel.size()) {
+            return false
+        }
+        val record = ByteBuffer.allocate((end - start).toInt())
+        readFully(record, start)
+        record.flip()
+        if (record.getInt(0).toLong() != end - start - HEADER_SIZE) {
+            return false
+        }
+        val crc = CRC32()
+        record.position(8)
+        crc.update(record)
+        return crc.value.toInt() == record.getInt(4)
+    }
+
+    /**
+     * A segment always takes its first entry, even if it's larger than the segment.
+     */
+    fun hasRoom(payloadSize: Int): Boolean {
+        return entries < maxEntries && (entries == 0L || size + HEADER_SIZE + payloadSize <= logCapacity)
+    }
+
+    /**
+     * Write an entry into the page cache, it's only durable after [flush].
+     *
+     * @return id of the entry
+     */
+    fun append(payload: ByteBuf, timestamp: Long): Long {
+        checkArgument(entries < maxEntries, "Segment %s is full", id)
+        val data = payload.nioBuffer()
+        val header = ByteBuffer.allocate(HEADER_SIZE)
+        header.putInt(data.remaining()).putInt(0).putLong(timestamp)
+        val crc = CRC32()
+        crc.update(header.array(), 8, 8)
+        crc.update(data.duplicate())
+        header.putInt(4, crc.value.toInt())
+        header.flip()
+        val buffers = arrayOf(header, data)
+        logChannel.position(size)
+        while (header.hasRemaining() || data.hasRemaining()) {
+            logChannel.write(buffers)
+        }
+        size = logChannel.position()
+        index.putLong((entries * 8).toInt(), size)
+        return entries++
+    }
+
+    /**
+     * Sync the written entries and their index to disk.
+     */
+    fun flush() {
+        logChannel.force(false)
+        index.force()
+    }
+
+    /**
+     * Give back the space allocated for entries that will never be written.
+     */
+    fun seal() {
+        flush()
+        logChannel.truncate(size)
+    }
+
+    /**
+     * Read from [firstEntry] up to [lastEntry] or until [maxBytes] of payloads are gathered, at least one entry
+     * is read. Returns retained slices of the payloads, callers must release them.
+     */
+    fun read(firstEntry: Long, lastEntry: Long, maxBytes: Long, readAheadBytes: Int): List<ByteBuf> {
+        checkArgument(firstEntry in 0..lastEntry && lastEntry < entries, "Invalid range [%s, %s]", firstEntry, lastEntry)
+        val start = startOf(firstEntry)
+        var last = firstEntry
+        while (last < lastEntry && endOf(last + 1) - start - (last + 2 - firstEntry) * HEADER_SIZE <= maxBytes) {
+            last++
+        }
+        val chunk = loadChunk(start, endOf(last), endOf(lastEntry), readAheadBytes)
+        val result = ArrayList<ByteBuf>((last - firstEntry + 1).toInt())
+        var position = start
+        for (entryId in firstEntry..last) {
+            val offset = (position - readAheadPosition).toInt()
+            result.add(chunk.retainedSlice(offset + HEADER_SIZE, chunk.getInt(offset)))
+            position = endOf(entryId)
+        }
+        return result
+    }
+
+    /**
+     * Make sure [start, end) is loaded, reading ahead up to [limit].
+     */
+    private fun loadChunk(start: Long, end: Long, limit: Long, readAheadBytes: Int): ByteBuf {
+        val current = readAhead
+        if (current != null && readAheadPosition <= start && end <= readAheadPosition + current.readableBytes()) {
+            return current
+        }
+        current?.release()
+        readAhead = null
+        val length = (Math.min(Math.max(end, start + readAheadBytes), limit) - start).toInt()
+        val chunk = PooledByteBufAllocator.DEFAULT.directBuffer(length, length)
+        try {
+            readFully(chunk.nioBuffer(0, length), start)
+        } catch (e: IOException) {
+            chunk.release()
+            throw e
+        }
+        chunk.writerIndex(length)
+        readAhead = chunk
+        readAheadPosition = start
+        return chunk
+    }
+
+    fun timestampOf(entryId: Long): Long {
+        val buffer = ByteBuffer.allocate(8)
+        readFully(buffer, startOf(entryId) + 8)
+        return buffer.getLong(0)
+    }
+
+    private fun startOf(entryId: Long) = if (entryId == 0L) 0 else endOf(entryId - 1)
+
+    private fun endOf(entryId: Long) = index.getLong((entryId * 8).toInt())
+
+    private fun readFully(buffer: ByteBuffer, position: Long) {
+        var pos = position
+        while (buffer.hasRemaining()) {
+            val read = logChannel.read(buffer, pos)
+            if (read < 0) {
+                throw IOException("Unexpected end of $logPath at $pos")
+            }
+            pos += read
+        }
+    }
+
+    /**
+     * Publish time of the last entry, 0 if empty.
+     */
+    fun lastTimestamp(): Long = if (entries == 0L) 0 else timestampOf(entries - 1)
+
+    /**
+     * Close the segment and remove its files.
+     */
+    fun delete() {
+        close()
+        Files.deleteIfExists(logPath)
+        Files.deleteIfExists(indexPath(logPath.parent, id))
+    }
+
+    override fun close() {
+        readAhead?.release()
+        readAhead = null
+        logChannel.close()
+        indexChannel.close()
+    }
+
+    companion object {
+
+        private val logger = LoggerFactory.getLogger(LocalLogSegment::class.java)
+
+        const val HEADER_SIZE = 4 + 4 + 8
+
+        fun logPath(directory: Path, id: Long): Path = directory.resolve(String.format("%020d.log", id))
+
+        private fun indexPath(directory: Path, id: Long): Path = directory.resolve(String.format("%020d.index", id))
+
+        /**
+         * Create a new segment, allocating [segmentSize] bytes for its log file.
+         */
+        fun create(directory: Path, id: Long, segmentSize: Long, maxEntries: Int): LocalLogSegment {
+            val logChannel = FileChannel.open(logPath(directory, id), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)
+            val indexChannel = FileChannel.open(indexPath(directory, id), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)
+            // Extend the log file to its full size once, so appends never change the file length
+            logChannel.write(ByteBuffer.allocate(1), segmentSize - 1)
+            return LocalLogSegment(id, logPath(directory, id), logChannel, indexChannel, maxEntries)
+        }
+
+        fun open(directory: Path, id: Long, maxEntries: Int): LocalLogSegment {
+            val logChannel = FileChannel.open(logPath(directory, id), StandardOpenOption.READ, StandardOpenOption.WRITE)
+            val indexChannel = FileChannel.open(indexPath(directory, id), StandardOpenOption.READ, StandardOpenOption.WRITE)
+            val segment = LocalLogSegment(id, logPath(directory, id), logChannel, indexChannel,
+                    Math.max(maxEntries, (indexChannel.size() / 8).toInt()))
+            segment.recover()
+            return segment
+        }
+    }
+}
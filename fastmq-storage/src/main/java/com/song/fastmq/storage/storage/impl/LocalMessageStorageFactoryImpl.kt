@@ -0,0 +1,90 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.song.fastmq.common.utils.OnCompletedObserver
+import com.song.fastmq.storage.storage.MessageStorage
+import com.song.fastmq.storage.storage.MessageStorageFactory
+import com.song.fastmq.storage.storage.OffsetStorage
+import com.song.fastmq.storage.storage.config.LocalStorageConfig
+import com.song.fastmq.storage.storage.config.MessageStorageConfig
+import io.reactivex.Observable
+import io.reactivex.ObservableEmitter
+import org.apache.bookkeeper.util.OrderedSafeExecutor
+import org.slf4j.LoggerFactory
+import java.net.URLEncoder
+import java.nio.file.Paths
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * A [MessageStorageFactory] keeping topics on local disk, without ZooKeeper or BookKeeper, for single node
+ * deployments. Topics are opened on demand, so starting up doesn't depend on the amount of data.
+ *
+ * @author song
+ */
+class LocalMessageStorageFactoryImpl(private val config: LocalStorageConfig = LocalStorageConfig(),
+                                     private val messageStorageConfig: MessageStorageConfig = MessageStorageConfig()) : MessageStorageFactory {
+
+    @Volatile
+    private var closed: Boolean = false
+
+    override val offsetStorage: OffsetStorage = LocalOffsetStorageImpl(config.dataDirectory)
+
+    private val messageStorageCache = ConcurrentHashMap<String, LocalMessageStorageImpl>()
+
+    private val messageOrderedThreadPool = OrderedSafeExecutor
+            .newBuilder()
+            .name("fastmq-local-storage")
+            .build()
+
+    override fun open(name: String): Observable<MessageStorage> {
+        return Observable.create<MessageStorage> { observable: ObservableEmitter<MessageStorage> ->
+            this.messageStorageCache.computeIfPresent(name) { _, messageStorage ->
+                if (messageStorage.state.get() == LocalMessageStorageImpl.State.CLOSED) {
+                    logger.warn("[{}] Message storage is in {} state,removing it from cache to recreate one.", name,
+                            messageStorage.state.get())
+                    null
+                } else {
+                    messageStorage
+                }
+            }
+            val throwable = AtomicReference<Throwable>()
+            val messageStorage = this.messageStorageCache.computeIfAbsent(name) {
+                val ms = LocalMessageStorageImpl(name, Paths.get(config.dataDirectory, URLEncoder.encode(name, "UTF-8")),
+                        messageOrderedThreadPool, config, messageStorageConfig, offsetStorage)
+                ms.initialize().blockingSubscribe(object : OnCompletedObserver<Void>() {
+                    override fun onError(e: Throwable) {
+                        throwable.compareAndSet(null, e)
+                    }
+
+                    override fun onComplete() {
+                    }
+                })
+                return@computeIfAbsent ms
+            }
+            if (throwable.get() != null) {
+                this.messageStorageCache.remove(name, messageStorage)
+                observable.onError(throwable.get())
+            } else {
+                observable.onNext(messageStorage)
+                observable.onComplete()
+            }
+        }
+    }
+
+    @Synchronized
+    override fun close() {
+        if (!closed) {
+            // Storages sync their pending appends in the ordered threads while closing
+            this.messageStorageCache.values.forEach { it.close() }
+            this.messageStorageCache.clear()
+            this.messageOrderedThreadPool.shutdown()
+            this.offsetStorage.close()
+            closed = true
+        }
+    }
+
+    companion object {
+
+        private val logger = LoggerFactory.getLogger(LocalMessageStorageFactoryImpl::class.java)
+    }
+}
@@ -0,0 +1,573 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.google.common.base.Preconditions.checkArgument
+import com.song.fastmq.common.utils.OnCompletedObserver
+import com.song.fastmq.common.message.Message
+import com.song.fastmq.common.message.MessageId
+import com.song.fastmq.storage.storage.BatchMessage
+import com.song.fastmq.storage.storage.MessageStorage
+import com.song.fastmq.storage.storage.OffsetStorage
+import com.song.fastmq.storage.storage.Offset
+import com.song.fastmq.storage.storage.PutMessageResult
+import com.song.fastmq.storage.storage.concurrent.AsyncCallbacks
+import com.song.fastmq.storage.storage.config.LocalStorageConfig
+import com.song.fastmq.storage.storage.config.MessageStorageConfig
+import com.song.fastmq.storage.storage.support.LedgerClosedException
+import com.song.fastmq.storage.storage.support.MessageStorageException
+import com.song.fastmq.storage.storage.support.NoMoreMessageException
+import io.netty.buffer.ByteBuf
+import io.reactivex.Observable
+import io.reactivex.ObservableEmitter
+import org.apache.bookkeeper.util.OrderedSafeExecutor
+import org.apache.bookkeeper.util.SafeRunnable.safeRun
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentSkipListMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * A [MessageStorage] on local disk, made of [LocalLogSegment]s in [directory]. The id of a segment takes the
+ * place of the ledger id in offsets. Every message is an entry of its own, appends are acknowledged by group
+ * sync, see [LocalStorageConfig.flushIntervalMs].
+ *
+ * Sealed segments fully read by every consumer are deleted according to the retention settings of the
+ * [MessageStorageConfig], the same way ledgers are trimmed by [MessageStorageImpl].
+ *
+ * All the state is only accessed in the ordered thread of this topic.
+ *
+ * @author song
+ */
+class LocalMessageStorageImpl(val topic: String, private val directory: Path, val executor: OrderedSafeExecutor,
+                              private val config: LocalStorageConfig = LocalStorageConfig(),
+                              private val storageConfig: MessageStorageConfig = MessageStorageConfig(),
+                              private val offsetStorage: OffsetStorage? = null) : MessageStorage {
+
+    val state = AtomicReference<State>(State.NONE)
+
+    private val segments = ConcurrentSkipListMap<Long, LocalLogSegment>()
+
+    private lateinit var currentSegment: LocalLogSegment
+
+    /**
+     * Last entry synced to disk, readers never go past it.
+     */
+    @Volatile
+    lateinit var lastConfirmedEntry: Offset
+
+    private val numberOfMessages = AtomicLong(0)
+
+    // Appends written but not synced yet
+    private val pendingCallbacks = ArrayList<AsyncCallbacks.PutMessageCallback>()
+
+    private var pendingBytes: Long = 0
+
+    private var flushTask: ScheduledFuture<*>? = null
+
+    // Reads waiting at the end of the log for new messages
+    private val parkedReads = ArrayList<ParkedRead>()
+
+    /**
+     * Next read offset of every active reader, segments they haven't read are never trimmed.
+     */
+    private val readPositions = ConcurrentHashMap<String, Offset>()
+
+    private var trimSegmentsTask: ScheduledFuture<*>? = null
+
+    private var trimmingSegments = false
+
+    fun initialize(): Observable<Void> {
+        return Observable.create<Void> { observable: ObservableEmitter<Void> ->
+            this.executor.submitOrdered(this.topic, safeRun {
+                try {
+                    Files.createDirectories(this.directory)
+                    Files.newDirectoryStream(this.directory, "*.log").use { files ->
+                        files.map { it.fileName.toString().removeSuffix(".log").toLong() }.sorted().forEach {
+                            val segment = LocalLogSegment.open(this.directory, it, this.config.maxEntriesPerSegment)
+                            this.segments[it] = segment
+                            this.numberOfMessages.addAndGet(segment.entries)
+                        }
+                    }
+                    if (this.segments.isEmpty()) {
+                        this.segments[FIRST_SEGMENT_ID] = LocalLogSegment.create(this.directory, FIRST_SEGMENT_ID,
+                                this.config.segmentSizeBytes, this.config.maxEntriesPerSegment)
+                    }
+                    this.currentSegment = this.segments.lastEntry().value
+                    this.lastConfirmedEntry = Offset(this.currentSegment.id, this.currentSegment.entries - 1)
+                    this.state.set(State.OPENED)
+                    scheduleTrimSegments()
+                    logger.info("[{}] Opened local message storage with {} segments, {} messages", this.topic,
+                            this.segments.size, this.numberOfMessages.get())
+                    observable.onComplete()
+                } catch (e: IOException) {
+                    this.segments.values.forEach { it.close() }
+                    this.segments.clear()
+                    observable.onError(MessageStorageException(e))
+                }
+            })
+        }
+    }
+
+    override fun appendMessage(message: Message): Observable<Offset> {
+        return Observable.create<Offset> { observable: ObservableEmitter<Offset> ->
+            this.executor.submitOrdered(this.topic, safeRun {
+                appendInOrderedThread(message.buffer, object : AsyncCallbacks.PutMessageCallback {
+                    override fun onComplete(offset: Offset) {
+                        observable.onNext(offset)
+                        observable.onComplete()
+                    }
+
+                    override fun onThrowable(throwable: Throwable) {
+                        observable.onError(throwable)
+                    }
+                })
+            })
+        }
+    }
+
+    override fun appendMessages(messages: List<Message>): Observable<List<PutMessageResult>> {
+        return Observable.create<List<PutMessageResult>> { observable: ObservableEmitter<List<PutMessageResult>> ->
+            if (messages.isEmpty()) {
+                observable.onNext(Collections.emptyList())
+                observable.onComplete()
+                return@create
+            }
+            this.executor.submitOrdered(this.topic, safeRun {
+                val results = AtomicReferenceArray<PutMessageResult>(messages.size)
+                val pending = AtomicInteger(messages.size)
+                val completeOne = { index: Int, result: PutMessageResult ->
+                    results.set(index, result)
+                    if (pending.decrementAndGet() == 0) {
+                        observable.onNext(List(messages.size) { results.get(it) })
+                        observable.onComplete()
+                    }
+                }
+                messages.forEachIndexed { index, message ->
+                    appendInOrderedThread(message.buffer, object : AsyncCallbacks.PutMessageCallback {
+                        override fun onComplete(offset: Offset) {
+                            completeOne(index, PutMessageResult(PutMessageResult.StatusEnum.OK,
+                                    MessageId(offset.ledgerId, offset.entryId, offset.batchIndex), System.currentTimeMillis()))
+                        }
+
+                        override fun onThrowable(throwable: Throwable) {
+                            completeOne(index, PutMessageResult(PutMessageResult.StatusEnum.UNKNOWN_ERROR, throwable = throwable))
+                        }
+                    })
+                }
+            })
+        }
+    }
+
+    /**
+     * Write the message into the current segment, the callback is completed by the next sync.
+     */
+    private fun appendInOrderedThread(buffer: ByteBuf, callback: AsyncCallbacks.PutMessageCallback) {
+        try {
+            val state = this.state.get()
+            if (state != State.OPENED) {
+                callback.onThrowable(MessageStorageException("Message storage is $state"))
+                return
+            }
+            val size = buffer.readableBytes()
+            if (!this.currentSegment.hasRoom(size)) {
+                rollSegment()
+            }
+            this.currentSegment.append(buffer, System.currentTimeMillis())
+            this.pendingCallbacks.add(callback)
+            this.pendingBytes += size
+        } catch (e: Exception) {
+            logger.error("[{}] Error writing into segment {}", this.topic, this.currentSegment.id, e)
+            this.state.set(State.FENCED)
+            callback.onThrowable(MessageStorageException(e))
+            failPendingAppends(e)
+            return
+        } finally {
+            buffer.release()
+        }
+        if (this.pendingBytes >= this.config.flushMaxBytes || this.config.flushIntervalMs <= 0) {
+            flush()
+        } else if (this.flushTask == null) {
+            this.flushTask = this.executor.scheduleOrdered(this.topic, safeRun {
+                this.flushTask = null
+                flush()
+            }, this.config.flushIntervalMs, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    /**
+     * Sync the current segment and acknowledge all the appends written since the last sync.
+     */
+    private fun flush() {
+        this.flushTask?.cancel(false)
+        this.flushTask = null
+        if (this.pendingCallbacks.isEmpty()) {
+            return
+        }
+        try {
+            if (this.config.fsyncEnabled) {
+                this.currentSegment.flush()
+            }
+        } catch (e: IOException) {
+            // Entries may be half way on disk, nothing more can be appended safely
+            logger.error("[{}] Error syncing segment {}", this.topic, this.currentSegment.id, e)
+            this.state.set(State.FENCED)
+            failPendingAppends(e)
+            return
+        }
+        val segmentId = this.currentSegment.id
+        val firstEntry = this.currentSegment.entries - this.pendingCallbacks.size
+        val callbacks = ArrayList(this.pendingCallbacks)
+        this.pendingCallbacks.clear()
+        this.pendingBytes = 0
+        this.lastConfirmedEntry = Offset(segmentId, this.currentSegment.entries - 1)
+        this.numberOfMessages.addAndGet(callbacks.size.toLong())
+        callbacks.forEachIndexed { i, callback -> callback.onComplete(Offset(segmentId, firstEntry + i)) }
+        notifyParkedReads()
+    }
+
+    private fun failPendingAppends(e: Exception) {
+        val callbacks = ArrayList(this.pendingCallbacks)
+        this.pendingCallbacks.clear()
+        this.pendingBytes = 0
+        callbacks.forEach { it.onThrowable(MessageStorageException(e)) }
+    }
+
+    /**
+     * Acknowledge the appends of the current segment, then go on with a new one.
+     */
+    private fun rollSegment() {
+        flush()
+        if (this.state.get() != State.OPENED) {
+            throw IOException("Message storage is ${this.state.get()}")
+        }
+        this.currentSegment.seal()
+        val nextId = this.currentSegment.id + 1
+        val segment = LocalLogSegment.create(this.directory, nextId, this.config.segmentSizeBytes, this.config.maxEntriesPerSegment)
+        this.segments[nextId] = segment
+        logger.info("[{}] Segment {} is full, entries={} size={}, rolled over to segment {}", this.topic,
+                this.currentSegment.id, this.currentSegment.entries, this.currentSegment.size, nextId)
+        this.currentSegment = segment
+    }
+
+    override fun queryMessage(offset: Offset, maxMsgNum: Int): Observable<BatchMessage> {
+        return queryMessage(offset, maxMsgNum, 0)
+    }
+
+    override fun queryMessage(offset: Offset, maxMsgNum: Int, maxWaitMs: Long): Observable<BatchMessage> {
+        return Observable.create<BatchMessage> { observable: ObservableEmitter<BatchMessage> ->
+            this.executor.submitOrdered(this.topic, safeRun {
+                checkArgument(maxMsgNum > 0)
+                val state = this.state.get()
+                if (state != State.OPENED) {
+                    observable.onError(LedgerClosedException("Attempted to read from a $state message storage"))
+                    return@safeRun
+                }
+                // Offsets before the first segment, e.g. of new consumers, start from the beginning of the log
+                val from = if (offset.ledgerId < this.segments.firstKey()) Offset(this.segments.firstKey(), 0) else offset
+                if (this.segments[from.ledgerId] == null) {
+                    observable.onError(MessageStorageException("$topic Segment[${from.ledgerId}] didn't exist."))
+                    return@safeRun
+                }
+                val waitMs = Math.min(maxWaitMs, this.storageConfig.maxReadWaitMs)
+                readMessages(from, ReadContext(maxMsgNum, this.storageConfig.maxReadBatchSizeBytes, waitMs), observable)
+            })
+        }
+    }
+
+    private class ReadContext(val maxMessages: Int, val maxBytes: Long, val maxWaitMs: Long) {
+
+        val messages = ArrayList<Message>()
+
+        var bytes: Long = 0
+
+        var deadlineNanos: Long = 0
+
+        fun isFull() = messages.size >= maxMessages || bytes >= maxBytes
+    }
+
+    /**
+     * Read synced entries from [offset] on, moving on to the following segments until the batch is full
+     * or the end of the log is reached.
+     */
+    private fun readMessages(offset: Offset, context: ReadContext, observable: ObservableEmitter<BatchMessage>) {
+        var segmentId = offset.ledgerId
+        var entryId = offset.entryId
+        while (!context.isFull()) {
+            val segment = this.segments[segmentId]
+            val lastConfirmed = this.lastConfirmedEntry
+            val readableEntries = when {
+                segment == null -> 0
+                segmentId < lastConfirmed.ledgerId -> segment.entries
+                segmentId == lastConfirmed.ledgerId -> lastConfirmed.entryId + 1
+                else -> 0
+            }
+            if (entryId >= readableEntries) {
+                if (segmentId < lastConfirmed.ledgerId) {
+                    segmentId = this.segments.higherKey(segmentId)!!
+                    entryId = 0
+                    continue
+                }
+                break
+            }
+            val payloads = try {
+                segment!!.read(entryId, Math.min(readableEntries - 1, entryId + context.maxMessages - context.messages.size - 1),
+                        context.maxBytes - context.bytes, this.config.readAheadBytes)
+            } catch (e: IOException) {
+                logger.error("[{}] Error reading segment {} from entry {}", this.topic, segmentId, entryId, e)
+                if (context.messages.isEmpty()) {
+                    observable.onError(MessageStorageException(e))
+                } else {
+                    complete(Offset(segmentId, entryId), context, observable)
+                }
+                return
+            }
+            payloads.forEach {
+                context.messages.add(Message(MessageId(segmentId, entryId++), it))
+                context.bytes += it.readableBytes()
+            }
+        }
+        when {
+            context.messages.isNotEmpty() -> complete(Offset(segmentId, entryId), context, observable)
+            context.maxWaitMs > 0 -> parkRead(Offset(segmentId, entryId), context, observable)
+            else -> observable.onError(NoMoreMessageException("No more message to read from segment :$segmentId"))
+        }
+    }
+
+    private fun complete(nextReadOffset: Offset, context: ReadContext, observable: ObservableEmitter<BatchMessage>) {
+        observable.onNext(BatchMessage(nextReadOffset, context.messages))
+        observable.onComplete()
+    }
+
+    /**
+     * Hold a read at the end of the log until the next sync or the wait is over.
+     */
+    private fun parkRead(offset: Offset, context: ReadContext, observable: ObservableEmitter<BatchMessage>) {
+        val now = System.nanoTime()
+        if (context.deadlineNanos == 0L) {
+            context.deadlineNanos = now + TimeUnit.MILLISECONDS.toNanos(context.maxWaitMs)
+        }
+        val parkedRead = ParkedRead(offset, context, observable)
+        parkedRead.timeoutTask = this.executor.scheduleOrdered(this.topic, safeRun {
+            if (this.parkedReads.remove(parkedRead)) {
+                observable.onError(NoMoreMessageException("No more message to read from segment :" + offset.ledgerId))
+            }
+        }, Math.max(0, context.deadlineNanos - now), TimeUnit.NANOSECONDS)
+        this.parkedReads.add(parkedRead)
+    }
+
+    private fun notifyParkedReads() {
+        if (this.parkedReads.isEmpty()) {
+            return
+        }
+        val reads = ArrayList(this.parkedReads)
+        this.parkedReads.clear()
+        reads.forEach {
+            it.timeoutTask?.cancel(false)
+            readMessages(it.offset, it.context, it.observable)
+        }
+    }
+
+    private class ParkedRead(val offset: Offset, val context: ReadContext, val observable: ObservableEmitter<BatchMessage>) {
+
+        var timeoutTask: ScheduledFuture<*>? = null
+    }
+
+    /**
+     * Binary search the publish timestamps stored with the entries, the offset is exactly the first message
+     * published at or after [timestamp].
+     */
+    override fun findOffsetByTime(timestamp: Long): Observable<Offset> {
+        return Observable.create<Offset> { observable: ObservableEmitter<Offset> ->
+            this.executor.submitOrdered(this.topic, safeRun {
+                val state = this.state.get()
+                if (state != State.OPENED) {
+                    observable.onError(LedgerClosedException("Attempted to read from a $state message storage"))
+                    return@safeRun
+                }
+                try {
+                    observable.onNext(offsetOfTime(timestamp))
+                    observable.onComplete()
+                } catch (e: IOException) {
+                    observable.onError(MessageStorageException(e))
+                }
+            })
+        }
+    }
+
+    private fun offsetOfTime(timestamp: Long): Offset {
+        val lastConfirmed = this.lastConfirmedEntry
+        for (segment in this.segments.values) {
+            val entries = if (segment.id == lastConfirmed.ledgerId) lastConfirmed.entryId + 1 else segment.entries
+            if (segment.id > lastConfirmed.ledgerId || entries == 0L || segment.timestampOf(entries - 1) < timestamp) {
+                continue
+            }
+            var low = 0L
+            var high = entries - 1
+            while (low < high) {
+                val mid = (low + high) ushr 1
+                if (segment.timestampOf(mid) < timestamp) {
+                    low = mid + 1
+                } else {
+                    high = mid
+                }
+            }
+            return Offset(segment.id, low)
+        }
+        return Offset(lastConfirmed.ledgerId, lastConfirmed.entryId + 1)
+    }
+
+    override fun getNumberOfMessages(): Long {
+        return this.numberOfMessages.get()
+    }
+
+    override fun updateReadPosition(readerName: String, offset: Offset) {
+        this.readPositions[readerName] = offset
+    }
+
+    override fun removeReader(readerName: String) {
+        this.readPositions.remove(readerName)
+    }
+
+    private fun scheduleTrimSegments() {
+        if (this.storageConfig.retentionTimeMs < 0 && this.storageConfig.retentionSizeBytes < 0) {
+            return
+        }
+        val interval = this.storageConfig.retentionCheckIntervalMs
+        this.trimSegmentsTask = this.executor.scheduleAtFixedRateOrdered(this.topic, safeRun {
+            trimConsumedSegments().subscribe(object : OnCompletedObserver<Void>() {
+                override fun onError(e: Throwable) {
+                    logger.warn("[{}] Error trimming segments: {}", this@LocalMessageStorageImpl.topic, e.message)
+                }
+            })
+        }, interval, interval, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Delete the oldest sealed segments before the slowest consumer, as long as they are older than the retention
+     * time or the topic is larger than the retention size.
+     */
+    fun trimConsumedSegments(): Observable<Void> {
+        return Observable.create<Void> { observable: ObservableEmitter<Void> ->
+            this.executor.submitOrdered(this.topic, safeRun {
+                if (this.trimmingSegments) {
+                    observable.onComplete()
+                    return@safeRun
+                }
+                this.trimmingSegments = true
+                val offsetStorage = this.offsetStorage
+                if (offsetStorage == null) {
+                    trimSegmentsBefore(null, observable)
+                    return@safeRun
+                }
+                offsetStorage.asyncQuerySlowestOffset(this.topic, object : AsyncCallbacks.ReadOffsetCallback {
+                    override fun onComplete(offset: Offset?) {
+                        executor.submitOrdered(topic, safeRun { trimSegmentsBefore(offset, observable) })
+                    }
+
+                    override fun onThrowable(throwable: Throwable) {
+                        executor.submitOrdered(topic, safeRun {
+                            trimmingSegments = false
+                            observable.onError(throwable)
+                        })
+                    }
+                })
+            })
+        }
+    }
+
+    private fun trimSegmentsBefore(slowestOffset: Offset?, observable: ObservableEmitter<Void>) {
+        this.trimmingSegments = false
+        if (this.state.get() != State.OPENED) {
+            observable.onComplete()
+            return
+        }
+        var slowestSegmentId = this.currentSegment.id
+        slowestOffset?.let { slowestSegmentId = Math.min(slowestSegmentId, it.ledgerId) }
+        this.readPositions.values.min()?.let { slowestSegmentId = Math.min(slowestSegmentId, it.ledgerId) }
+
+        val now = System.currentTimeMillis()
+        var remainingSize = this.segments.values.fold(0L) { sum, it -> sum + it.size }
+        val trimmedSegments = ArrayList<LocalLogSegment>()
+        for (segment in this.segments.headMap(slowestSegmentId, false).values) {
+            val expired = this.storageConfig.retentionTimeMs >= 0 && now - segment.lastTimestamp() > this.storageConfig.retentionTimeMs
+            val oversized = this.storageConfig.retentionSizeBytes >= 0 && remainingSize > this.storageConfig.retentionSizeBytes
+            if (!expired && !oversized) {
+                break
+            }
+            trimmedSegments.add(segment)
+            remainingSize -= segment.size
+        }
+        try {
+            trimmedSegments.forEach {
+                this.segments.remove(it.id)
+                this.numberOfMessages.addAndGet(-it.entries)
+                it.delete()
+            }
+        } catch (e: IOException) {
+            observable.onError(MessageStorageException(e))
+            return
+        }
+        if (trimmedSegments.isNotEmpty()) {
+            logger.info("[{}] Trimmed segments {}", this.topic, trimmedSegments.map { it.id })
+        }
+        observable.onComplete()
+    }
+
+    @Synchronized
+    @Throws(InterruptedException::class)
+    override fun close() {
+        if (this.state.getAndSet(State.CLOSED) == State.CLOSED) {
+            logger.warn("Message storage[{}] is already closed.", this.topic)
+            return
+        }
+        val latch = CountDownLatch(1)
+        this.executor.submitOrdered(this.topic, safeRun {
+            try {
+                // Appends already written are still acknowledged
+                this.pendingCallbacks.takeIf { it.isNotEmpty() }?.let {
+                    try {
+                        this.currentSegment.flush()
+                        val segmentId = this.currentSegment.id
+                        val firstEntry = this.currentSegment.entries - it.size
+                        it.forEachIndexed { i, callback -> callback.onComplete(Offset(segmentId, firstEntry + i)) }
+                        it.clear()
+                    } catch (e: IOException) {
+                        failPendingAppends(e)
+                    }
+                }
+                this.flushTask?.cancel(false)
+                this.trimSegmentsTask?.cancel(false)
+                this.parkedReads.forEach {
+                    it.timeoutTask?.cancel(false)
+                    it.observable.onError(LedgerClosedException("Message storage was already closed"))
+                }
+                this.parkedReads.clear()
+                this.segments.values.forEach { it.close() }
+            } finally {
+                latch.countDown()
+            }
+        })
+        latch.await()
+        logger.info("Message storage[{}] is closed.", this.topic)
+    }
+
+    enum class State {
+        NONE, OPENED, FENCED, CLOSED
+    }
+
+    companion object {
+
+        private val logger = LoggerFactory.getLogger(LocalMessageStorageImpl::class.java)
+
+        private const val FIRST_SEGMENT_ID = 1L
+    }
+}
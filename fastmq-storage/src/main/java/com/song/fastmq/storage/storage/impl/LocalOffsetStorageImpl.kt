@@ -0,0 +1,128 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.song.fastmq.common.utils.JsonUtils
+import com.song.fastmq.storage.storage.ConsumerInfo
+import com.song.fastmq.storage.storage.Offset
+import com.song.fastmq.storage.storage.OffsetStorage
+import com.song.fastmq.storage.storage.concurrent.AsyncCallbacks
+import com.song.fastmq.storage.storage.support.OffsetStorageException
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.net.URLDecoder
+import java.net.URLEncoder
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * An [OffsetStorage] keeping the offset of every consumer in a file next to the segments of its topic,
+ * for [LocalMessageStorageImpl]. New consumers start from the beginning of the log.
+ *
+ * @author song
+ */
+class LocalOffsetStorageImpl(private val directory: String) : OffsetStorage {
+
+    private val offsetCache = ConcurrentHashMap<ConsumerInfo, Offset>()
+
+    override fun commitOffset(consumerInfo: ConsumerInfo, offset: Offset) {
+        this.offsetCache[consumerInfo] = offset
+    }
+
+    @Throws(OffsetStorageException::class)
+    override fun queryOffset(consumerInfo: ConsumerInfo): Offset {
+        return this.offsetCache[consumerInfo] ?: try {
+            this.offsetCache.computeIfAbsent(consumerInfo) { readOffset(consumerPath(it)) ?: Offset(0, 0) }
+        } catch (e: IOException) {
+            throw OffsetStorageException(e)
+        } catch (e: JsonUtils.JsonException) {
+            throw OffsetStorageException(e)
+        }
+    }
+
+    override fun asyncQueryOffset(consumerInfo: ConsumerInfo, callback: AsyncCallbacks.ReadOffsetCallback) {
+        val offset = try {
+            queryOffset(consumerInfo)
+        } catch (e: OffsetStorageException) {
+            callback.onThrowable(e.cause ?: e)
+            return
+        }
+        callback.onComplete(offset)
+    }
+
+    override fun asyncQuerySlowestOffset(topic: String, callback: AsyncCallbacks.ReadOffsetCallback) {
+        val consumersDirectory = topicPath(topic)
+        if (!Files.isDirectory(consumersDirectory)) {
+            callback.onComplete(null)
+            return
+        }
+        val slowest = try {
+            Files.newDirectoryStream(consumersDirectory, "*$SUFFIX").use { files ->
+                files.mapNotNull {
+                    val consumerName = URLDecoder.decode(it.fileName.toString().removeSuffix(SUFFIX), "UTF-8")
+                    // Offsets committed but not persisted yet are newer than the ones on disk
+                    this.offsetCache[ConsumerInfo(consumerName, topic)] ?: readOffset(it)
+                }.min()
+            }
+        } catch (e: Exception) {
+            callback.onThrowable(e)
+            return
+        }
+        callback.onComplete(slowest)
+    }
+
+    /**
+     * Write the committed offset into a temporary file and move it over the previous one.
+     */
+    override fun persistOffset(consumerInfo: ConsumerInfo) {
+        val offset = this.offsetCache[consumerInfo]
+        if (offset == null) {
+            logger.warn("Topic[{}]-consumer[{}] offset doesn't exist.", consumerInfo.topic, consumerInfo.consumerName)
+            return
+        }
+        val path = consumerPath(consumerInfo)
+        try {
+            Files.createDirectories(path.parent)
+            val tmpPath = path.resolveSibling(path.fileName.toString() + ".tmp")
+            Files.write(tmpPath, JsonUtils.toJson(offset).toByteArray())
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } catch (e: Exception) {
+            logger.error("Persist offset failed", e)
+        }
+    }
+
+    override fun removeOffset(consumerInfo: ConsumerInfo) {
+        this.offsetCache.remove(consumerInfo)
+        try {
+            Files.deleteIfExists(consumerPath(consumerInfo))
+        } catch (e: IOException) {
+            logger.error("Delete consumer offset failed", e)
+        }
+    }
+
+    override fun close() {
+        this.offsetCache.clear()
+    }
+
+    private fun readOffset(path: Path): Offset? {
+        if (!Files.exists(path)) {
+            return null
+        }
+        return JsonUtils.fromJson(String(Files.readAllBytes(path)), Offset::class.java)
+    }
+
+    private fun topicPath(topic: String): Path = Paths.get(directory, URLEncoder.encode(topic, "UTF-8"), CONSUMERS_DIRECTORY)
+
+    private fun consumerPath(consumerInfo: ConsumerInfo): Path =
+            topicPath(consumerInfo.topic).resolve(URLEncoder.encode(consumerInfo.consumerName, "UTF-8") + SUFFIX)
+
+    companion object {
+
+        private val logger = LoggerFactory.getLogger(LocalOffsetStorageImpl::class.java)
+
+        private const val CONSUMERS_DIRECTORY = "consumers"
+
+        private const val SUFFIX = ".offset"
+    }
+}
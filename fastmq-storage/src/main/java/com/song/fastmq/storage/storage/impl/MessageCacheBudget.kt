@@ -0,0 +1,56 @@
+package com.song.fastmq.storage.storage.impl
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Bytes cached over all the [MessageCacheImpl]s sharing it, normally all the topics of a factory. Once [maxBytes]
+ * is exceeded, the oldest entries of the largest caches are evicted until it fits again. A non positive
+ * [maxBytes] means no limit.
+ *
+ * @author song
+ */
+class MessageCacheBudget(val maxBytes: Long) {
+
+    private val size = AtomicLong()
+
+    private val caches = ConcurrentHashMap.newKeySet<MessageCacheImpl>()
+
+    fun register(cache: MessageCacheImpl) {
+        this.caches.add(cache)
+    }
+
+    fun unregister(cache: MessageCacheImpl) {
+        this.caches.remove(cache)
+    }
+
+    fun add(bytes: Long) {
+        if (this.size.addAndGet(bytes) > this.maxBytes && this.maxBytes > 0) {
+            evict()
+        }
+    }
+
+    fun release(bytes: Long) {
+        this.size.addAndGet(-bytes)
+    }
+
+    fun getSize() = this.size.get()
+
+    @Synchronized
+    private fun evict() {
+        while (true) {
+            val excess = this.size.get() - this.maxBytes
+            if (excess <= 0) {
+                return
+            }
+            val largest = this.caches.maxBy { it.getSize() } ?: return
+            if (largest.evict(excess) == 0L) {
+                return
+            }
+        }
+    }
+
+    override fun toString(): String {
+        return "MessageCacheBudget(size=${getSize()}, maxBytes=$maxBytes, caches=${caches.size})"
+    }
+}
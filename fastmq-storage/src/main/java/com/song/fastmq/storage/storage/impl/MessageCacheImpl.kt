@@ -0,0 +1,189 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.song.fastmq.storage.storage.MessageCache
+import com.song.fastmq.storage.storage.Offset
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.CompositeByteBuf
+import io.netty.buffer.PooledByteBufAllocator
+import java.util.concurrent.ConcurrentSkipListMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * A [MessageCache] bounded by [maxSize] bytes, and by the [budget] shared with the caches of other topics if any.
+ * Entries before the slowest reader are dropped by [invalidateEntriesBefore], and the oldest entries are evicted
+ * when the cache is full.
+ *
+ * Entries are charged with the memory they keep alive. An entry sliced from a much larger buffer, like the network
+ * buffer a message was received in, is copied rather than pinning that buffer.
+ *
+ * @author song
+ */
+class MessageCacheImpl(private val name: String, private val maxSize: Long,
+                       private val budget: MessageCacheBudget? = null) : MessageCache {
+
+    private val entries = ConcurrentSkipListMap<Offset, ByteBuf>()
+
+    /**
+     * Guards the release of cached buffers against readers retaining them.
+     */
+    private val lock = ReentrantReadWriteLock()
+
+    private val size = AtomicLong(0)
+
+    private val hits = LongAdder()
+
+    private val misses = LongAdder()
+
+    private val evictions = LongAdder()
+
+    init {
+        budget?.register(this)
+    }
+
+    override fun getName() = name
+
+    override fun insert(ledgerId: Long, entryId: Long, data: ByteBuf): Boolean {
+        val length = data.readableBytes()
+        if (length > maxSize) {
+            return false
+        }
+        val cached = if (backingCapacity(data) > length * MAX_PINNED_RATIO) {
+            PooledByteBufAllocator.DEFAULT.directBuffer(length, length).writeBytes(data, data.readerIndex(), length)
+        } else {
+            data.retainedSlice()
+        }
+        if (entries.putIfAbsent(Offset(ledgerId, entryId), cached) != null) {
+            cached.release()
+            return false
+        }
+        val charged = chargedSize(cached)
+        if (size.addAndGet(charged) > maxSize) {
+            lock.write {
+                while (size.get() > maxSize) {
+                    val first = entries.pollFirstEntry() ?: break
+                    release(first.value, true)
+                }
+            }
+        }
+        // Outside of the lock, the budget may evict from this cache
+        budget?.add(charged)
+        return true
+    }
+
+    /**
+     * Evict the oldest entries until at least [bytes] are freed or the cache is empty.
+     *
+     * @return the bytes freed
+     */
+    fun evict(bytes: Long): Long {
+        var freed = 0L
+        lock.write {
+            while (freed < bytes) {
+                val first = entries.pollFirstEntry() ?: break
+                freed += chargedSize(first.value)
+                release(first.value, true)
+            }
+        }
+        return freed
+    }
+
+    override fun getLeadingEntries(ledgerId: Long, firstEntry: Long, lastEntry: Long): List<ByteBuf> {
+        val result = ArrayList<ByteBuf>()
+        lock.read {
+            var expectedEntry = firstEntry
+            for ((offset, buf) in entries.subMap(Offset(ledgerId, firstEntry), true, Offset(ledgerId, lastEntry), true)) {
+                if (offset.entryId != expectedEntry) {
+                    break
+                }
+                result.add(buf.retainedDuplicate())
+                expectedEntry++
+            }
+        }
+        if (result.isEmpty()) {
+            misses.add(lastEntry - firstEntry + 1)
+        } else {
+            hits.add(result.size.toLong())
+        }
+        return result
+    }
+
+    override fun invalidateEntriesBefore(offset: Offset) {
+        if (entries.isEmpty() || entries.firstKey() >= offset) {
+            return
+        }
+        removeAll(entries.headMap(offset, false), true)
+    }
+
+    override fun invalidateLedger(ledgerId: Long) {
+        removeAll(entries.subMap(Offset(ledgerId, 0), true, Offset(ledgerId, Long.MAX_VALUE), true), false)
+    }
+
+    override fun clear() {
+        removeAll(entries, false)
+    }
+
+    override fun close() {
+        clear()
+        budget?.unregister(this)
+    }
+
+    override fun getSize() = size.get()
+
+    override fun getHitCount() = hits.sum()
+
+    override fun getMissCount() = misses.sum()
+
+    override fun getEvictionCount() = evictions.sum()
+
+    private fun removeAll(range: Map<Offset, ByteBuf>, evicted: Boolean) {
+        lock.write {
+            val iterator = range.keys.iterator()
+            while (iterator.hasNext()) {
+                val buf = entries.remove(iterator.next())
+                if (buf != null) {
+                    release(buf, evicted)
+                }
+            }
+        }
+    }
+
+    private fun release(buf: ByteBuf, evicted: Boolean) {
+        val charged = chargedSize(buf)
+        size.addAndGet(-charged)
+        budget?.release(charged)
+        buf.release()
+        if (evicted) {
+            evictions.increment()
+        }
+    }
+
+    private fun chargedSize(buf: ByteBuf): Long = Math.max(buf.readableBytes().toLong(), backingCapacity(buf))
+
+    /**
+     * Capacity of the buffers [buf] is derived from, which stay allocated as long as it's referenced.
+     */
+    private fun backingCapacity(buf: ByteBuf): Long {
+        if (buf is CompositeByteBuf) {
+            return buf.fold(0L) { sum, component -> sum + backingCapacity(component) }
+        }
+        val unwrapped = buf.unwrap() ?: return buf.capacity().toLong()
+        return backingCapacity(unwrapped)
+    }
+
+    override fun toString(): String {
+        return "MessageCache(name=$name, size=${getSize()}, entries=${entries.size}, hits=${getHitCount()}, " +
+                "misses=${getMissCount()}, evictions=${getEvictionCount()})"
+    }
+
+    companion object {
+
+        /**
+         * Entries are copied if their backing buffers are more than this many times larger.
+         */
+        private const val MAX_PINNED_RATIO = 2
+    }
+}
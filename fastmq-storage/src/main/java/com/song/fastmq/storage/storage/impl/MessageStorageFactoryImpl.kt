@@ -1,11 +1,14 @@
 package com.song.fastmq.storage.storage.impl
 
 import com.song.fastmq.common.utils.OnCompletedObserver
+import com.song.fastmq.storage.storage.LedgerOffloader
 import com.song.fastmq.storage.storage.MessageStorage
 import com.song.fastmq.storage.storage.MessageStorageFactory
 import com.song.fastmq.storage.storage.MetadataStorage
 import com.song.fastmq.storage.storage.OffsetStorage
+import com.song.fastmq.storage.storage.PendingAppendLimiter
 import com.song.fastmq.storage.storage.config.BookKeeperConfig
+import com.song.fastmq.storage.storage.config.MessageStorageConfig
 import io.reactivex.Observable
 import io.reactivex.ObservableEmitter
 import org.apache.bookkeeper.client.BookKeeper
@@ -24,7 +27,8 @@ import java.util.concurrent.atomic.AtomicReference
  * Created by song on 2017/11/4.
  */
 class MessageStorageFactoryImpl @Throws(Exception::class)
-constructor(clientConfiguration: ClientConfiguration, private val bookKeeperConfig: BookKeeperConfig) : MessageStorageFactory {
+constructor(clientConfiguration: ClientConfiguration, private val bookKeeperConfig: BookKeeperConfig,
+            private val messageStorageConfig: MessageStorageConfig = MessageStorageConfig()) : MessageStorageFactory {
 
     @Volatile
     private var closed: Boolean = false
@@ -35,10 +39,26 @@ constructor(clientConfiguration: ClientConfiguration, private val bookKeeperConf
 
     private val metadataStorage: MetadataStorage
 
-    val offsetStorage: OffsetStorage
+    override val offsetStorage: OffsetStorage
 
     private val messageStorageCache = ConcurrentHashMap<String, MessageStorageImpl>()
 
+    /**
+     * Bytes pending to be appended over all the topics.
+     */
+    val appendLimiter = PendingAppendLimiter(messageStorageConfig.maxPendingAppendBytes)
+
+    /**
+     * Bytes of the message caches of all the topics.
+     */
+    val cacheBudget = MessageCacheBudget(messageStorageConfig.maxTotalCacheSizeBytes)
+
+    private val offloader: LedgerOffloader? = if (messageStorageConfig.offloadEnabled) {
+        FileSystemLedgerOffloader(messageStorageConfig.offloadDirectory)
+    } else {
+        null
+    }
+
     private val curatorFramework: CuratorFramework
 
     private val messageOrderedThreadPool = OrderedSafeExecutor
@@ -49,13 +69,19 @@ constructor(clientConfiguration: ClientConfiguration, private val bookKeeperConf
 
     init {
         val servers = clientConfiguration.zkServers
+        // Topics may use different digests, ledgers are opened with the one they were created with
+        clientConfiguration.setEnableDigestTypeAutodetection(true)
         this.bookKeeper = BookKeeper(clientConfiguration)
         val retryPolicy = ExponentialBackoffRetry(1000, 3)
         curatorFramework = CuratorFrameworkFactory.newClient(servers, retryPolicy)
         curatorFramework.start()
         asyncCuratorFramework = AsyncCuratorFramework.wrap(curatorFramework)
         metadataStorage = MetadataStorageImpl(asyncCuratorFramework)
-        offsetStorage = ZkOffsetStorageImpl(metadataStorage, asyncCuratorFramework)
+        offsetStorage = if (messageStorageConfig.cursorLedgerEnabled) {
+            BookKeeperOffsetStorageImpl(bookKeeper, bookKeeperConfig, metadataStorage, asyncCuratorFramework, messageStorageConfig)
+        } else {
+            ZkOffsetStorageImpl(metadataStorage, asyncCuratorFramework, messageStorageConfig)
+        }
     }
 
     override fun open(topic: String): Observable<MessageStorage> {
@@ -71,7 +97,8 @@ constructor(clientConfiguration: ClientConfiguration, private val bookKeeperConf
             }
             val throwable = AtomicReference<Throwable>()
             val messageStorage = this.messageStorageCache.computeIfAbsent(topic) {
-                val ms = MessageStorageImpl(topic, bookKeeper, bookKeeperConfig, metadataStorage, messageOrderedThreadPool)
+                val ms = MessageStorageImpl(topic, bookKeeper, bookKeeperConfig, metadataStorage, messageOrderedThreadPool, messageStorageConfig,
+                        offsetStorage, offloader, appendLimiter, cacheBudget)
                 ms.initialize()
                         .blockingSubscribe(object : OnCompletedObserver<Void>() {
                             override fun onError(e: Throwable) {
@@ -100,8 +127,10 @@ constructor(clientConfiguration: ClientConfiguration, private val bookKeeperConf
             this.messageOrderedThreadPool.shutdown()
             this.messageStorageCache.forEach { _: String, u: MessageStorage -> u.close() }
             this.messageStorageCache.clear()
-            this.bookKeeper.close()
+            // Offsets may still be written to BookKeeper
             this.offsetStorage.close()
+            this.bookKeeper.close()
+            this.offloader?.close()
             this.curatorFramework.close()
             closed = true
         }
@@ -7,14 +7,19 @@ import com.song.fastmq.common.message.Message
 import com.song.fastmq.common.message.MessageId
 import com.song.fastmq.common.utils.OnCompletedObserver
 import com.song.fastmq.storage.storage.*
+import com.song.fastmq.storage.storage.concurrent.AsyncCallbacks
+import com.song.fastmq.storage.storage.concurrent.CommonPool
 import com.song.fastmq.storage.storage.config.BookKeeperConfig
+import com.song.fastmq.storage.storage.config.MessageStorageConfig
 import com.song.fastmq.storage.storage.metadata.Log
 import com.song.fastmq.storage.storage.metadata.LogSegment
+import com.song.fastmq.storage.storage.metadata.StoragePolicy
+import com.song.fastmq.storage.storage.metadata.TimeIndexEntry
 import com.song.fastmq.storage.storage.support.LedgerClosedException
 import com.song.fastmq.storage.storage.support.LedgerStorageException
 import com.song.fastmq.storage.storage.support.MessageStorageException
 import com.song.fastmq.storage.storage.support.NoMoreMessageException
-import io.netty.buffer.Unpooled
+import io.netty.buffer.ByteBuf
 import io.reactivex.Observable
 import io.reactivex.ObservableEmitter
 import org.apache.bookkeeper.client.AsyncCallback
@@ -25,17 +30,28 @@ import org.apache.bookkeeper.util.OrderedSafeExecutor
 import org.apache.bookkeeper.util.SafeRunnable.safeRun
 import org.apache.zookeeper.KeeperException
 import org.slf4j.LoggerFactory
+import java.io.IOException
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ConcurrentSkipListMap
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicLong
 import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.regex.Pattern
 
 /**
  * Created by song on 2017/11/5.
  */
 class MessageStorageImpl(val topic: String, private val bookKeeper: BookKeeper, private val config: BookKeeperConfig,
-                         private val metadataStorage: MetadataStorage, val executor: OrderedSafeExecutor) : MessageStorage, AsyncCallback.CreateCallback {
+                         private val metadataStorage: MetadataStorage, val executor: OrderedSafeExecutor,
+                         private val storageConfig: MessageStorageConfig = MessageStorageConfig(),
+                         private val offsetStorage: OffsetStorage? = null,
+                         private val offloader: LedgerOffloader? = null,
+                         brokerAppendLimiter: PendingAppendLimiter? = null,
+                         cacheBudget: MessageCacheBudget? = null) : MessageStorage, AsyncCallback.CreateCallback {
 
 
     val state = AtomicReference<State>()
@@ -44,7 +60,18 @@ class MessageStorageImpl(val topic: String, private val bookKeeper: BookKeeper,
 
     private val ledgers = ConcurrentSkipListMap<Long, LogSegment>()
 
-    private val ledgerCache = ConcurrentHashMap<Long, Observable<LedgerHandle>>()
+    val ledgerCache = LedgerHandleCache(topic, bookKeeper, config, storageConfig.maxOpenLedgerHandles,
+            storageConfig.ledgerHandleIdleTimeMs)
+
+    val messageCache: MessageCache = MessageCacheImpl(topic, storageConfig.maxCacheSizeBytes, cacheBudget)
+
+    /**
+     * Next read offset of every active reader
+     */
+    private val readPositions = ConcurrentHashMap<String, Offset>()
+
+    // Prefetch progress of every active reader, only accessed in the ordered thread of this topic
+    private val readAheads = HashMap<String, ReadAheadState>()
 
     var numberOfMessages = AtomicLong(0)
 
@@ -64,6 +91,96 @@ class MessageStorageImpl(val topic: String, private val bookKeeper: BookKeeper,
 
     private val pendingAppendMessageQueue = Queues.newConcurrentLinkedQueue<AppendMessageTask>()
 
+    // Appends sent to the current ledger and not completed yet, the ledger is only closed once they are done
+    val pendingAddEntries = AtomicInteger()
+
+    /**
+     * Bytes of the appends accepted and not completed yet, appends beyond the budget of this topic or of the
+     * broker are rejected right away rather than buffered.
+     */
+    val appendLimiter = PendingAppendLimiter(storageConfig.maxPendingAppendBytesPerTopic, brokerAppendLimiter)
+
+    // Entries and bytes written into the current ledger, only accessed in the ordered thread of this topic
+    private var currentLedgerEntries: Long = 0
+
+    private var currentLedgerSize: Long = 0
+
+    private var closingLedger: LedgerHandle? = null
+
+    // Next ledger, already created and registered in the log metadata, only accessed in the ordered thread of this topic
+    private var standbyLedger: LedgerHandle? = null
+
+    private var creatingStandbyLedger = false
+
+    // Segment of the standby ledger, saved with the log metadata but hidden from readers until it becomes the current ledger
+    @Volatile
+    private var standbySegment: LogSegment? = null
+
+    // Version of the stored log, updates of the log metadata are compared and set against it
+    private var logVersion: Version? = null
+
+    // Policy of the ledgers created from now on, null for the default of the broker
+    @Volatile
+    private var storagePolicy: StoragePolicy? = null
+
+    // First ledger whose entries start with a marker, see BatchEntryFormat, -1 until the first ledger is created
+    @Volatile
+    private var markedEntriesSinceLedgerId = -1L
+
+    private var updatingLogInfo = false
+
+    private val pendingLogInfoUpdates = ArrayList<ObservableEmitter<Void>>()
+
+    // When the first append was queued during the current ledger switch, 0 if none
+    private var ledgerSwitchStartNanos: Long = 0
+
+    val ledgerSwitchStats = LedgerSwitchStats()
+
+    val appendStats = AppendStats()
+
+    private var logStatsTask: ScheduledFuture<*>? = null
+
+    // Messages waiting for the next group commit, only accessed in the ordered thread of this topic
+    private val groupCommitBuffers = ArrayList<ByteBuf>()
+
+    private val groupCommitCallbacks = ArrayList<AsyncCallbacks.PutMessageCallback>()
+
+    private var groupCommitBytes: Long = 0
+
+    private var groupCommitFlushTask: ScheduledFuture<*>? = null
+
+    // Only accessed in the ordered thread of this topic
+    private var trimmingLedgers = false
+
+    private var trimLedgersTask: ScheduledFuture<*>? = null
+
+    // Only accessed in the ordered thread of this topic
+    private var offloadingLedger = false
+
+    private var offloadLedgersTask: ScheduledFuture<*>? = null
+
+    // Ledgers that failed to be offloaded, skipped until the storage is opened again so they don't hold back the
+    // later ones. Only accessed in the ordered thread of this topic
+    private val offloadFailedLedgers = HashSet<Long>()
+
+    private val offloadedLedgers = ConcurrentHashMap<Long, OffloadedLedger>()
+
+    // Reads waiting at the end of the log for new messages, only accessed in the ordered thread of this topic
+    private val parkedReads = ArrayList<ParkedRead>()
+
+    // Ledgers switched away from whose segments are not stamped closed yet, read through the handles that wrote them
+    private val closingLedgers = ConcurrentHashMap<Long, LedgerHandle>()
+
+    // Compacted ledger new compacted reads start from, only changed in the ordered thread of this topic
+    @Volatile
+    private var compactedLedger: CompactedLedger? = null
+
+    // The current compacted ledger and the replaced ones still being read
+    private val compactedLedgers = ConcurrentHashMap<Long, CompactedLedger>()
+
+    // Only accessed in the ordered thread of this topic
+    private var compacting = false
+
     init {
         this.state.set(State.NONE)
     }
@@ -74,65 +191,72 @@ class MessageStorageImpl(val topic: String, private val bookKeeper: BookKeeper,
         return Observable.create<Void> { observable: ObservableEmitter<Void> ->
             logger.info("Open message storage {}.", this.topic)
             this.metadataStorage.getLogInfo(this.topic).subscribe {
+                synchronized(this) {
+                    this.logVersion = it.version
+                    this.storagePolicy = it.storagePolicy ?: configuredStoragePolicy()
+                }
+                this.markedEntriesSinceLedgerId = it.markedEntriesSinceLedgerId
+                val horizon = it.compactionHorizon
+                if (it.compactedLedgerId >= 0 && horizon != null) {
+                    val compacted = CompactedLedger(it.compactedLedgerId, horizon)
+                    this.compactedLedger = compacted
+                    this.compactedLedgers[compacted.ledgerId] = compacted
+                }
                 it.segments.forEach {
                     this.ledgers.put(it.ledgerId, it)
                 }
-                if (this.ledgers.size > 0) {
-                    val id = ledgers.lastKey().toLong()
-                    this.bookKeeper.asyncOpenLedger(id, config.digestType, config.password, { rc, lh, _ ->
-                        logger.debug("[{}] Opened ledger {}: ", this.topic, id, BKException.getMessage(rc))
-                        when (rc) {
-                            BKException.Code.OK -> {
-                                val logSegment = LogSegment()
-                                logSegment.ledgerId = id
-                                logSegment.entries = lh.lastAddConfirmed + 1
-                                logSegment.size = lh.length
-                                logSegment.timestamp = System.currentTimeMillis()
-                                ledgers.put(id, logSegment)
-                                initializeBookKeeper().subscribe(object : OnCompletedObserver<Void>() {
-                                    override fun onError(e: Throwable) {
-                                        observable.onError(e)
-                                    }
-
-                                    override fun onComplete() {
-                                        observable.onComplete()
-                                    }
-
-                                })
-                                return@asyncOpenLedger
-                            }
-                            BKException.Code.NoSuchLedgerExistsException -> {
-                                logger.warn("[{}] Ledger not found: {}", this.topic, ledgers.lastKey())
-                                ledgers.remove(ledgers.lastKey())
-                                initializeBookKeeper().subscribe(object : OnCompletedObserver<Void>() {
-                                    override fun onError(e: Throwable) {
-                                        observable.onError(e)
-                                    }
-
-                                    override fun onComplete() {
-                                        observable.onComplete()
-                                    }
-                                })
-                                return@asyncOpenLedger
-                            }
-                            else -> {
-                                logger.error("[{}] Failed to open ledger {}: {}", this.topic, id, BKException.getMessage(rc))
-                                observable.onError(MessageStorageException(BKException.getMessage(rc)))
-                                return@asyncOpenLedger
-                            }
-                        }
-                    }, null)
-                } else {
-                    initializeBookKeeper().subscribe({
-                        observable.onComplete()
-                    }, {
-                        observable.onError(it)
-                    })
+                // Segments are only updated when their ledgers are closed, so the last ledger, and the standby
+                // ledger if any, have to be recovered to find out what was written into them
+                val ledgersToRecover = this.ledgers.values.filter { it.entries == 0L }.map { it.ledgerId }.toMutableSet()
+                if (this.ledgers.size > 0 && this.ledgers.lastEntry().value.offloadLocation == null) {
+                    ledgersToRecover.add(this.ledgers.lastKey())
                 }
+                recoverLedgers(ledgersToRecover.iterator(), observable)
             }
         }
     }
 
+    private fun recoverLedgers(ledgerIds: Iterator<Long>, observable: ObservableEmitter<Void>) {
+        if (!ledgerIds.hasNext()) {
+            initializeBookKeeper().subscribe(object : OnCompletedObserver<Void>() {
+                override fun onError(e: Throwable) {
+                    observable.onError(e)
+                }
+
+                override fun onComplete() {
+                    observable.onComplete()
+                }
+            })
+            return
+        }
+        val id = ledgerIds.next()
+        this.bookKeeper.asyncOpenLedger(id, config.digestType, config.password, { rc, lh, _ ->
+            logger.debug("[{}] Opened ledger {}: ", this.topic, id, BKException.getMessage(rc))
+            when (rc) {
+                BKException.Code.OK -> {
+                    val logSegment = LogSegment()
+                    logSegment.ledgerId = id
+                    logSegment.entries = lh.lastAddConfirmed + 1
+                    logSegment.size = lh.length
+                    logSegment.timestamp = System.currentTimeMillis()
+                    // Points added after the last metadata update are lost, the index is only sparser
+                    logSegment.timeIndex = ledgers[id]?.timeIndex ?: Collections.emptyList()
+                    ledgers.put(id, logSegment)
+                    recoverLedgers(ledgerIds, observable)
+                }
+                BKException.Code.NoSuchLedgerExistsException -> {
+                    logger.warn("[{}] Ledger not found: {}", this.topic, id)
+                    ledgers.remove(id)
+                    recoverLedgers(ledgerIds, observable)
+                }
+                else -> {
+                    logger.error("[{}] Failed to open ledger {}: {}", this.topic, id, BKException.getMessage(rc))
+                    observable.onError(MessageStorageException(BKException.getMessage(rc)))
+                }
+            }
+        }, null)
+    }
+
     private fun initializeBookKeeper(): Observable<Void> {
         return Observable.create<Void> { observable: ObservableEmitter<Void> ->
             logger.debug("[{}] initializing bookkeeper; ledgers {}", this.topic, ledgers)
@@ -154,8 +278,7 @@ class MessageStorageImpl(val topic: String, private val bookKeeper: BookKeeper,
 
             // Create a new ledger to start writing
             this.lastLedgerCreationInitiationTimestamp = System.nanoTime()
-            this.bookKeeper.asyncCreateLedger(config.ensSize, config.writeQuorumSize, config.ackQuorumSize,
-                    config.digestType, config.password, { rc, lh, _ ->
+            asyncCreateLedger(AsyncCallback.CreateCallback { rc, lh, _ ->
 
                 //don't block bk thread
                 this.executor.submitOrdered(this.topic, safeRun({
@@ -168,15 +291,23 @@ class MessageStorageImpl(val topic: String, private val bookKeeper: BookKeeper,
                     state.set(State.LEDGER_OPENED)
                     lastLedgerCreatedTimestamp = System.currentTimeMillis()
                     currentLedger = lh
+                    currentLedgerEntries = 0
+                    currentLedgerSize = 0
                     lastConfirmedEntry = Offset(lh.id, -1)
                     this.ledgers.put(lh.id, LogSegment(lh.id))
+                    if (markedEntriesSinceLedgerId < 0) {
+                        // Ledger ids only grow, so the ones written before are all below it
+                        markedEntriesSinceLedgerId = lh.id
+                    }
 
                     // Save it back to ensure all nodes exist
-                    val log = Log()
-                    log.segments = ArrayList(this.ledgers.values)
-                    this.metadataStorage.updateLogInfo(this.topic, log).subscribe(object : OnCompletedObserver<Void>() {
+                    updateLogInfo().subscribe(object : OnCompletedObserver<Void>() {
                         override fun onComplete() {
                             observable.onComplete()
+                            executor.submitOrdered(topic, safeRun { createStandbyLedger() })
+                            scheduleTrimLedgers()
+                            scheduleOffloadLedgers()
+                            scheduleLogStats()
                         }
 
                         override fun onError(e: Throwable) {
@@ -184,53 +315,243 @@ class MessageStorageImpl(val topic: String, private val bookKeeper: BookKeeper,
                         }
                     })
                 }))
-            }, null, null)
+            })
+        }
+    }
+
+    /**
+     * Create a ledger with the storage policy of this topic.
+     */
+    private fun asyncCreateLedger(callback: AsyncCallback.CreateCallback) {
+        val policy = getStoragePolicy()
+        this.bookKeeper.asyncCreateLedger(policy.ensembleSize, policy.writeQuorumSize, policy.ackQuorumSize,
+                policy.digestType, config.password, callback, null, null)
+    }
+
+    /**
+     * Policy applied to the ledgers created from now on.
+     */
+    fun getStoragePolicy(): StoragePolicy = this.storagePolicy ?: StoragePolicy.of(this.config)
+
+    override fun updateStoragePolicy(policy: StoragePolicy?): Observable<Void> {
+        return Observable.create<Void> { observable: ObservableEmitter<Void> ->
+            policy?.validate()
+            val copy = policy?.copy()
+            this.executor.submitOrdered(this.topic, safeRun {
+                synchronized(this) {
+                    this.storagePolicy = copy
+                }
+                logger.info("[{}] Storage policy changed to {}", this.topic, getStoragePolicy())
+                updateLogInfo().subscribe(object : OnCompletedObserver<Void>() {
+                    override fun onComplete() {
+                        observable.onComplete()
+                    }
+
+                    override fun onError(e: Throwable) {
+                        observable.onError(e)
+                    }
+                })
+            })
+        }
+    }
+
+    /**
+     * Policy of the first pattern of [MessageStorageConfig.storagePolicies] matching this topic, for topics without one.
+     */
+    private fun configuredStoragePolicy(): StoragePolicy? {
+        val policy = this.storageConfig.storagePolicies.entries.firstOrNull { Pattern.matches(it.key, this.topic) }?.value
+                ?: return null
+        return try {
+            policy.validate()
+            policy.copy()
+        } catch (e: IllegalArgumentException) {
+            logger.error("[{}] Ignore invalid storage policy: {}", this.topic, e.message)
+            null
         }
     }
 
     override fun appendMessage(message: Message): Observable<Offset> {
         return Observable.create<Offset> { observable: ObservableEmitter<Offset> ->
+            val bytes = message.buffer.readableBytes().toLong()
+            if (!this.appendLimiter.tryAcquire(bytes)) {
+                message.buffer.release()
+                observable.onError(pendingAppendsExceeded())
+                return@create
+            }
             this.executor.submitOrdered(this.topic, safeRun {
-                val buffer = Unpooled.wrappedBuffer(message.data)
-                logger.debug("[{}] asyncAddEntry size={} state={}", this.topic, buffer.readableBytes(), state)
-                val state = this.state.get()
-                if (state == State.Fenced) {
-                    observable.onError(MessageStorageException("Attempted to use a fenced managed ledger"))
-                    return@safeRun
-                } else if (state == State.CLOSED) {
-                    observable.onError(MessageStorageException("Message storage was already closed"))
-                    return@safeRun
+                val buffer = message.buffer
+                val callback = object : AsyncCallbacks.PutMessageCallback {
+                    override fun onComplete(offset: Offset) {
+                        appendLimiter.release(bytes)
+                        observable.onNext(offset)
+                        observable.onComplete()
+                    }
+
+                    override fun onThrowable(throwable: Throwable) {
+                        appendLimiter.release(bytes)
+                        observable.onError(throwable)
+                    }
                 }
-                if (state == State.LEDGER_CLOSING || state == State.LEDGER_CREATING) {
-                    logger.debug("[{}] Queue addEntry request", this.topic)
-                    this.pendingAppendMessageQueue.offer(AppendMessageTask(this, buffer, observable))
-                } else if (state == State.LEDGER_CLOSED) {
-                    val now = System.currentTimeMillis()
-                    if (now < lastLedgerCreationFailureTimestamp + WAIT_TIME_AFTER_LEDGER_CREATION_FAILURE_MS) {
-                        observable.onError(MessageStorageException("Waiting for new ledger creation to complete"))
-                        return@safeRun
+                appendInOrderedThread(buffer, callback)
+            })
+        }
+    }
+
+    override fun appendMessages(messages: List<Message>): Observable<List<PutMessageResult>> {
+        return Observable.create<List<PutMessageResult>> { observable: ObservableEmitter<List<PutMessageResult>> ->
+            if (messages.isEmpty()) {
+                observable.onNext(Collections.emptyList())
+                observable.onComplete()
+                return@create
+            }
+            val results = AtomicReferenceArray<PutMessageResult>(messages.size)
+            val pending = AtomicInteger(messages.size)
+            val completeOne = { index: Int, result: PutMessageResult ->
+                results.set(index, result)
+                if (pending.decrementAndGet() == 0) {
+                    observable.onNext(List(messages.size) { results.get(it) })
+                    observable.onComplete()
+                }
+            }
+            val accepted = BooleanArray(messages.size) {
+                this.appendLimiter.tryAcquire(messages[it].buffer.readableBytes().toLong())
+            }
+            this.executor.submitOrdered(this.topic, safeRun {
+                val state = this.state.get()
+                messages.forEachIndexed { index, message ->
+                    if (!accepted[index]) {
+                        message.buffer.release()
+                        completeOne(index, PutMessageResult(PutMessageResult.StatusEnum.UNKNOWN_ERROR, throwable = pendingAppendsExceeded()))
+                        return@forEachIndexed
                     }
-                    logger.info("Create a new ledger for {}.", this.topic)
-                    if (this.state.compareAndSet(State.LEDGER_CLOSED, State.LEDGER_CREATING)) {
-                        this.lastLedgerCreationInitiationTimestamp = System.nanoTime()
-                        this.pendingAppendMessageQueue.offer(AppendMessageTask(this, buffer, observable))
-                        this.bookKeeper.asyncCreateLedger(config.ensSize, config.writeQuorumSize, config.ackQuorumSize, config.digestType,
-                                config.password, this, null, null)
-                    } else {
-                        this.pendingAppendMessageQueue.offer(AppendMessageTask(this, buffer, observable))
+                    val bytes = message.buffer.readableBytes().toLong()
+                    if (state == State.Fenced || state == State.CLOSED) {
+                        this.appendLimiter.release(bytes)
+                        message.buffer.release()
+                        completeOne(index, PutMessageResult(PutMessageResult.StatusEnum.UNKNOWN_ERROR,
+                                throwable = MessageStorageException("Message storage is already $state")))
+                        return@forEachIndexed
                     }
-                } else {
-                    checkArgument(state == State.LEDGER_OPENED)
-                    logger.debug("[{}] Write into current ledger lh={}", this.topic, currentLedger.id)
-                    val task = AppendMessageTask(this, buffer, observable)
-                    task.ledgerHandle = this.currentLedger
-                    task.start()
+                    val callback = object : AsyncCallbacks.PutMessageCallback {
+                        override fun onComplete(offset: Offset) {
+                            appendLimiter.release(bytes)
+                            completeOne(index, PutMessageResult(PutMessageResult.StatusEnum.OK,
+                                    MessageId(offset.ledgerId, offset.entryId, offset.batchIndex), System.currentTimeMillis()))
+                        }
+
+                        override fun onThrowable(throwable: Throwable) {
+                            appendLimiter.release(bytes)
+                            completeOne(index, PutMessageResult(PutMessageResult.StatusEnum.UNKNOWN_ERROR, throwable = throwable))
+                        }
+                    }
+                    appendInOrderedThread(message.buffer, callback)
                 }
             })
         }
     }
 
+    private fun pendingAppendsExceeded(): MessageStorageException {
+        return MessageStorageException("[$topic] Too many bytes pending to be appended, $appendLimiter")
+    }
+
+    private fun appendInOrderedThread(buffer: ByteBuf, callback: AsyncCallbacks.PutMessageCallback) {
+        if (this.storageConfig.groupCommitEnabled) {
+            addToGroupCommit(buffer, callback)
+        } else {
+            internalAppend(AppendMessageTask(this, BatchEntryFormat.wrapSingle(buffer), Collections.singletonList(callback)))
+        }
+    }
+
+    /**
+     * Must be called in the ordered thread of this topic.
+     */
+    private fun internalAppend(task: AppendMessageTask) {
+        logger.debug("[{}] asyncAddEntry state={}", this.topic, state)
+        val state = this.state.get()
+        if (state == State.Fenced) {
+            task.failed(MessageStorageException("Attempted to use a fenced managed ledger"))
+            return
+        } else if (state == State.CLOSED) {
+            task.failed(MessageStorageException("Message storage was already closed"))
+            return
+        }
+        if (state == State.LEDGER_CLOSING || state == State.LEDGER_CREATING) {
+            logger.debug("[{}] Queue addEntry request", this.topic)
+            queueAppend(task)
+        } else if (state == State.LEDGER_CLOSED) {
+            val now = System.currentTimeMillis()
+            if (now < lastLedgerCreationFailureTimestamp + WAIT_TIME_AFTER_LEDGER_CREATION_FAILURE_MS) {
+                task.failed(MessageStorageException("Waiting for new ledger creation to complete"))
+                return
+            }
+            queueAppend(task)
+            createLedgerAfterClosed()
+        } else {
+            checkArgument(state == State.LEDGER_OPENED)
+            logger.debug("[{}] Write into current ledger lh={}", this.topic, currentLedger.id)
+            task.ledgerHandle = this.currentLedger
+            task.start()
+        }
+    }
+
+    private fun queueAppend(task: AppendMessageTask) {
+        if (this.ledgerSwitchStartNanos == 0L) {
+            this.ledgerSwitchStartNanos = System.nanoTime()
+        }
+        this.pendingAppendMessageQueue.offer(task)
+    }
+
+    /**
+     * Hold the message until the batch is full or the linger time is up, then write the whole batch
+     * as a single entry. Must be called in the ordered thread of this topic.
+     */
+    private fun addToGroupCommit(buffer: ByteBuf, callback: AsyncCallbacks.PutMessageCallback) {
+        val state = this.state.get()
+        if (state == State.Fenced || state == State.CLOSED) {
+            buffer.release()
+            callback.onThrowable(MessageStorageException("Message storage is already $state"))
+            return
+        }
+        this.groupCommitBuffers.add(buffer)
+        this.groupCommitCallbacks.add(callback)
+        this.groupCommitBytes += buffer.readableBytes()
+        if (this.groupCommitBuffers.size >= this.storageConfig.groupCommitMaxMessages
+                || this.groupCommitBytes >= this.storageConfig.groupCommitMaxBytes) {
+            flushGroupCommit()
+        } else if (this.groupCommitFlushTask == null) {
+            this.groupCommitFlushTask = this.executor.scheduleOrdered(this.topic, safeRun {
+                this.groupCommitFlushTask = null
+                flushGroupCommit()
+            }, this.storageConfig.groupCommitLingerMs, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    private fun flushGroupCommit() {
+        this.groupCommitFlushTask?.cancel(false)
+        this.groupCommitFlushTask = null
+        if (this.groupCommitBuffers.isEmpty()) {
+            return
+        }
+        val data = if (this.groupCommitBuffers.size == 1) {
+            BatchEntryFormat.wrapSingle(this.groupCommitBuffers[0])
+        } else {
+            val entry = BatchEntryFormat.encode(this.groupCommitBuffers)
+            this.groupCommitBuffers.forEach { it.release() }
+            entry
+        }
+        logger.debug("[{}] Group commit {} messages, {} bytes", this.topic, this.groupCommitCallbacks.size, this.groupCommitBytes)
+        val task = AppendMessageTask(this, data, ArrayList(this.groupCommitCallbacks))
+        this.groupCommitBuffers.clear()
+        this.groupCommitCallbacks.clear()
+        this.groupCommitBytes = 0
+        internalAppend(task)
+    }
+
     override fun queryMessage(offset: Offset, maxMsgNum: Int): Observable<BatchMessage> {
+        return queryMessage(offset, maxMsgNum, 0)
+    }
+
+    override fun queryMessage(offset: Offset, maxMsgNum: Int, maxWaitMs: Long): Observable<BatchMessage> {
         return Observable.create<BatchMessage> { observable: ObservableEmitter<BatchMessage> ->
             this.executor.submitOrdered(this.topic, safeRun {
                 checkArgument(maxMsgNum > 0)
@@ -240,168 +561,723 @@ class MessageStorageImpl(val topic: String, private val bookKeeper: BookKeeper,
                     return@safeRun
                 }
                 val ledgerId = offset.ledgerId
-                val logSegment = this.ledgers[ledgerId]
-                if (logSegment == null) {
+                if (this.ledgers[ledgerId] == null) {
                     observable.onError(MessageStorageException("$topic Ledger[$ledgerId] didn't exist."))
                     return@safeRun
                 }
-                getLedgerHandle(ledgerId).subscribe(object : OnCompletedObserver<LedgerHandle>() {
-
-                    override fun onNext(t: LedgerHandle) {
-
-                        val firstEntry = offset.entryId
-
-                        val lastPosition = lastConfirmedEntry
+                val waitMs = Math.min(maxWaitMs, this.storageConfig.maxReadWaitMs)
+                readMessages(offset, ReadContext(maxMsgNum, this.storageConfig.maxReadBatchSizeBytes, waitMs), observable)
+            })
+        }
+    }
 
-                        val lastEntryInLedger = if (lastPosition.ledgerId == t.id) {
-                            lastPosition.entryId
-                        } else {
-                            t.lastAddConfirmed
-                        }
+    /**
+     * Reads at a position in a compacted ledger go on there, reads before the compaction horizon start over at the
+     * beginning of the compacted ledger and skip the messages published before the position. Everything else is
+     * read from the topic ledgers.
+     */
+    override fun queryCompacted(offset: Offset, maxMsgNum: Int, maxWaitMs: Long): Observable<BatchMessage> {
+        return Observable.create<BatchMessage> { observable: ObservableEmitter<BatchMessage> ->
+            this.executor.submitOrdered(this.topic, safeRun {
+                checkArgument(maxMsgNum > 0)
+                val state = state.get()
+                if (state == State.Fenced || state == State.CLOSED) {
+                    observable.onError(LedgerClosedException("Attempted to use a fenced of closed managed ledger"))
+                    return@safeRun
+                }
+                val waitMs = Math.min(maxWaitMs, this.storageConfig.maxReadWaitMs)
+                val context = ReadContext(maxMsgNum, this.storageConfig.maxReadBatchSizeBytes, waitMs)
+                val reading = this.compactedLedgers[offset.ledgerId]
+                val compacted = this.compactedLedger
+                when {
+                    reading != null -> readCompacted(reading, offset, null, context, observable)
+                    compacted != null && offset < compacted.horizon ->
+                        readCompacted(compacted, Offset(compacted.ledgerId, 0), offset, context, observable)
+                    else -> readTail(offset, context, observable)
+                }
+            })
+        }
+    }
 
-                        if (firstEntry > lastEntryInLedger) {
-                            logger.info("[{}] No more message to read from ledger = {} lastEntry = {} ,try to move to next one.", topic, ledgerId, lastEntryInLedger)
-                            if (ledgerId != currentLedger.id) {
-                                val nextLedgerId = ledgers.ceilingKey(ledgerId + 1)
-                                if (nextLedgerId == null) {
-                                    observable.onNext(BatchMessage(messages = Collections.emptyList()))
-                                    observable.onComplete()
-                                    return
-                                } else {
-                                    executor.submitOrdered(nextLedgerId, safeRun {
-                                        queryMessage(Offset(nextLedgerId, 0), maxMsgNum)
-                                                .subscribe(object : OnCompletedObserver<BatchMessage>() {
-
-                                                    override fun onError(e: Throwable) {
-                                                        observable.onError(e)
-                                                    }
-
-                                                    override fun onNext(t: BatchMessage) {
-                                                        observable.onNext(t)
-                                                    }
-
-                                                    override fun onComplete() {
-                                                        observable.onComplete()
-                                                    }
-
-                                                })
-                                    })
+    /**
+     * Read the entries of a compacted ledger from [offset] on, then the topic from the compaction horizon on.
+     *
+     * @param skipBefore messages published before it are skipped
+     */
+    private fun readCompacted(compacted: CompactedLedger, offset: Offset, skipBefore: Offset?, context: ReadContext,
+                              observable: ObservableEmitter<BatchMessage>) {
+        this.ledgerCache.get(compacted.ledgerId).whenComplete { lh, throwable ->
+            this.executor.submitOrdered(this.topic, safeRun {
+                if (throwable != null) {
+                    logger.error("Error open compacted ledger [{}],read offset {} - {}", compacted.ledgerId, offset, throwable.message)
+                    failRead(offset, context, throwable, observable)
+                    return@safeRun
+                }
+                if (offset.entryId > lh.lastAddConfirmed) {
+                    readTail(compacted.horizon, context, observable)
+                    return@safeRun
+                }
+                val lastEntry = Math.min(lh.lastAddConfirmed, offset.entryId + COMPACTED_READ_ENTRIES - 1)
+                lh.asyncReadEntries(offset.entryId, lastEntry, { rc, _, seq, _ ->
+                    if (rc != BKException.Code.OK) {
+                        failRead(offset, context, MessageStorageException(BKException.create(rc)), observable)
+                        return@asyncReadEntries
+                    }
+                    var entryId = offset.entryId
+                    var nextReadOffset: Offset? = null
+                    while (seq.hasMoreElements()) {
+                        val entry = seq.nextElement().entryBuffer
+                        if (nextReadOffset == null) {
+                            val messages = CompactedEntryFormat.decode(entry)
+                            var index = if (entryId == offset.entryId) offset.batchIndex else 0
+                            while (index < messages.size) {
+                                if (context.isFull()) {
+                                    nextReadOffset = Offset(compacted.ledgerId, entryId, index)
+                                    break
                                 }
-                            } else {
-                                logger.info("[{}] No more message to read from current ledger [{}].", topic, ledgerId)
-                                observable.onError(NoMoreMessageException("No more message to read from current ledger :" + ledgerId))
-                            }
-                            return
-                        }
-                        val lastEntry = Math.min(firstEntry + maxMsgNum - 1, lastEntryInLedger)
-                        logger.debug("[{}] Reading entries from ledger {} - first={} last={}", this@MessageStorageImpl.topic, t.id, firstEntry, lastEntry)
-                        t.asyncReadEntries(firstEntry, lastEntry, { rc, _, seq, _ ->
-                            if (rc != BKException.Code.OK) {
-                                observable.onError(MessageStorageException(BKException.create(rc)))
-                                return@asyncReadEntries
-                            } else {
-                                var totalSize: Long = 0
-                                val messages = Lists.newArrayListWithExpectedSize<Message>(maxMsgNum)
-                                while (seq.hasMoreElements()) {
-                                    val ledgerEntry = seq.nextElement()
-                                    totalSize += ledgerEntry.length
-                                    val entryBuffer = ledgerEntry.entryBuffer
-                                    val array = ByteArray(entryBuffer.readableBytes())
-                                    entryBuffer.getBytes(entryBuffer.readerIndex(), array)
-                                    val message = Message(messageId = MessageId(ledgerEntry.ledgerId, ledgerEntry.entryId), data = array)
-                                    messages.add(message)
+                                val message = messages[index]
+                                val messageId = message.messageId
+                                if (skipBefore == null || Offset(messageId.ledgerId, messageId.entryId, messageId.batchIndex) >= skipBefore) {
+                                    context.messages.add(Message(messageId, message.buffer.retainedSlice()))
+                                    context.bytes += message.buffer.readableBytes()
                                 }
-                                observable.onNext(BatchMessage(Offset(ledgerId, messages[messages.size - 1].messageId.entryId + 1), messages))
-                                observable.onComplete()
-                                return@asyncReadEntries
+                                index++
                             }
-                        }, null)
-                    }
-
-                    override fun onComplete() {
+                        }
+                        entry.release()
+                        entryId++
                     }
-
-                    override fun onError(e: Throwable) {
-                        logger.error("Error open ledger handle [{}],read offset {} - {}", ledgerId, offset, e.message)
-                        observable.onError(e)
+                    val next = nextReadOffset ?: Offset(compacted.ledgerId, lastEntry + 1)
+                    if (context.isFull()) {
+                        complete(next, context, observable)
+                    } else {
+                        readCompacted(compacted, next, skipBefore, context, observable)
                     }
-                })
+                }, null)
             })
         }
     }
 
-    private fun getLedgerHandle(ledgerId: Long): Observable<LedgerHandle> {
-        if (this.currentLedger.id == ledgerId) {
-            return Observable.create<LedgerHandle> {
-                it.onNext(this.currentLedger)
-                it.onComplete()
-            }
+    /**
+     * Read the topic ledgers from [offset] on, a position in a ledger trimmed meanwhile moves on to the next ledger.
+     */
+    private fun readTail(offset: Offset, context: ReadContext, observable: ObservableEmitter<BatchMessage>) {
+        val ledgerId = if (this.ledgers.containsKey(offset.ledgerId)) offset.ledgerId else this.ledgers.ceilingKey(offset.ledgerId)
+        when (ledgerId) {
+            null -> failRead(offset, context, MessageStorageException("$topic Ledger[${offset.ledgerId}] didn't exist."), observable)
+            offset.ledgerId -> readMessages(offset, context, observable)
+            else -> readMessages(Offset(ledgerId, 0), context, observable)
         }
-        val ledgerHandle = this.ledgerCache[ledgerId]
-        if (ledgerHandle != null) {
-            return ledgerHandle
+    }
+
+    /**
+     * Messages gathered by a single [queryMessage] call, which may span several ledgers.
+     */
+    private class ReadContext(val maxMessages: Int, val maxBytes: Long, val maxWaitMs: Long) {
+
+        val messages = ArrayList<Message>()
+
+        var bytes: Long = 0
+
+        // Set when the read is first parked, waking up and parking again doesn't extend the wait
+        var deadlineNanos: Long = 0
+
+        fun isFull() = messages.size >= maxMessages || bytes >= maxBytes
+    }
+
+    /**
+     * Read from [offset] on, moving on to the following ledgers until the batch is full or there is nothing more to read.
+     */
+    private fun readMessages(offset: Offset, context: ReadContext, observable: ObservableEmitter<BatchMessage>) {
+        val ledgerId = offset.ledgerId
+        val offloadLocation = this.ledgers[ledgerId]?.offloadLocation
+        if (offloadLocation != null) {
+            val offloadedLedger = try {
+                getOffloadedLedger(ledgerId, offloadLocation)
+            } catch (e: IOException) {
+                logger.error("Error open offloaded ledger [{}],read offset {} - {}", ledgerId, offset, e.message)
+                failRead(offset, context, MessageStorageException(e), observable)
+                return
+            }
+            // Trimming may close it on the topic thread while this read goes on elsewhere
+            if (!offloadedLedger.tryRetain()) {
+                failRead(offset, context, MessageStorageException("Offloaded ledger $ledgerId is closed"), observable)
+                return
+            }
+            try {
+                readFromLedger(offset, offloadedLedger.getLastEntryId(), context, observable) { firstEntry, lastEntry ->
+                    logger.debug("[{}] Reading entries from offloaded ledger {} - first={} last={}", this.topic, ledgerId, firstEntry, lastEntry)
+                    entriesRead(ledgerId, firstEntry, offloadedLedger.readEntries(firstEntry, lastEntry), offset.batchIndex, context, observable)
+                }
+            } finally {
+                offloadedLedger.release()
+            }
+            return
         }
-        return this.ledgerCache.computeIfAbsent(ledgerId, { lld: Long ->
-            Observable.create<LedgerHandle> {
-                this.bookKeeper.asyncOpenLedgerNoRecovery(lld, this.config.digestType, this.config.password, { rc, lh, _ ->
-                    this.executor.submitOrdered(ledgerId, safeRun {
+        getLedgerHandle(ledgerId).subscribe(object : OnCompletedObserver<LedgerHandle>() {
+
+            override fun onNext(t: LedgerHandle) {
+
+                val lastPosition = lastConfirmedEntry
+                val segment = ledgers[ledgerId]
+
+                val lastEntryInLedger = when {
+                    lastPosition.ledgerId == t.id -> lastPosition.entryId
+                    // A read only handle may have been opened before the close and miss the last entries
+                    segment != null && segment.timestamp != 0L -> segment.entries - 1
+                    else -> t.lastAddConfirmed
+                }
+
+                readFromLedger(offset, lastEntryInLedger, context, observable) { firstEntry, lastEntry ->
+                    logger.debug("[{}] Reading entries from ledger {} - first={} last={}", this@MessageStorageImpl.topic, t.id, firstEntry, lastEntry)
+                    t.asyncReadEntries(firstEntry, lastEntry, { rc, _, seq, _ ->
                         if (rc != BKException.Code.OK) {
-                            ledgerCache.remove(ledgerId)
-                            it.onError(MessageStorageException(BKException.getMessage(rc)))
-                            return@safeRun
+                            failRead(offset, context, MessageStorageException(BKException.create(rc)), observable)
                         } else {
-                            it.onNext(lh)
-                            it.onComplete()
-                            return@safeRun
+                            val entries = Lists.newArrayListWithExpectedSize<ByteBuf>((lastEntry - firstEntry + 1).toInt())
+                            while (seq.hasMoreElements()) {
+                                entries.add(seq.nextElement().entryBuffer)
+                            }
+                            entriesRead(ledgerId, firstEntry, entries, offset.batchIndex, context, observable)
                         }
-                    })
-                }, null)
+                    }, null)
+                }
+            }
+
+            override fun onComplete() {
+            }
+
+            override fun onError(e: Throwable) {
+                logger.error("Error open ledger handle [{}],read offset {} - {}", ledgerId, offset, e.message)
+                failRead(offset, context, e, observable)
             }
         })
     }
 
-    private fun internalReadFromLedger(ledgerHandle: LedgerHandle) {
-
+    /**
+     * Read the entries of a ledger ending at [lastEntryInLedger] from [offset] on, served from the message cache
+     * when possible, or by [readEntries] with the range to read.
+     */
+    private fun readFromLedger(offset: Offset, lastEntryInLedger: Long, context: ReadContext,
+                               observable: ObservableEmitter<BatchMessage>, readEntries: (Long, Long) -> Unit) {
+        val ledgerId = offset.ledgerId
+        val firstEntry = offset.entryId
+        if (firstEntry > lastEntryInLedger) {
+            if (ledgerId != currentLedger.id && isSegmentClosed(ledgerId)) {
+                val nextLedgerId = ledgers.ceilingKey(ledgerId + 1)
+                if (nextLedgerId == null) {
+                    complete(offset, context, observable)
+                } else {
+                    logger.debug("[{}] No more message to read from ledger = {} lastEntry = {} ,move to ledger {}.", topic, ledgerId, lastEntryInLedger, nextLedgerId)
+                    readMessages(Offset(nextLedgerId, 0), context, observable)
+                }
+            } else if (context.messages.isEmpty()) {
+                if (context.maxWaitMs > 0) {
+                    parkRead(offset, context, observable)
+                } else {
+                    logger.debug("[{}] No more message to read from current ledger [{}].", topic, ledgerId)
+                    observable.onError(NoMoreMessageException("No more message to read from current ledger :" + ledgerId))
+                }
+            } else {
+                complete(offset, context, observable)
+            }
+            return
+        }
+        val remaining = context.maxMessages - context.messages.size
+        val lastEntry = Math.min(firstEntry + remaining - 1, lastEntryInLedger)
+        val cachedEntries = messageCache.getLeadingEntries(ledgerId, firstEntry, lastEntry)
+        if (cachedEntries.isNotEmpty()) {
+            logger.debug("[{}] Read entries from cache, ledger {} - first={} last={}", this.topic, ledgerId, firstEntry, lastEntry)
+            entriesRead(ledgerId, firstEntry, cachedEntries, offset.batchIndex, context, observable)
+            return
+        }
+        readEntries(firstEntry, lastEntry)
     }
 
-    override fun getNumberOfMessages(): Long {
-        return this.numberOfMessages.get()
+    /**
+     * Whether readers at the end of a ledger may move on to the next one, the segment is only complete once its
+     * ledger is closed. Removed segments have nothing left to read.
+     */
+    private fun isSegmentClosed(ledgerId: Long): Boolean {
+        val segment = this.ledgers[ledgerId] ?: return true
+        return segment.timestamp != 0L
     }
 
-    @Synchronized
-    @Throws(InterruptedException::class, LedgerStorageException::class)
-    override fun close() {
-        if (this.isClosed) {
-            logger.warn("Message storage[{}] is already closed.", this.topic)
-        } else {
-            this.currentLedger.close()
-            this.isClosed = true
-            this.state.set(State.CLOSED)
-            logger.info("Message storage[{}] is closed.", this.topic)
+    private fun getOffloadedLedger(ledgerId: Long, location: String): OffloadedLedger {
+        val offloadedLedger = this.offloadedLedgers[ledgerId]
+        if (offloadedLedger != null) {
+            return offloadedLedger
+        }
+        val offloader = this.offloader ?: throw IOException("No offloader to read ledger $ledgerId from $location")
+        val opened = offloader.open(location)
+        val existing = this.offloadedLedgers.putIfAbsent(ledgerId, opened)
+        if (existing != null) {
+            opened.close()
+            return existing
         }
+        return opened
     }
 
-    override fun createComplete(rc: Int, lh: LedgerHandle, ctx: Any?) {
-        logger.debug("[{}] createComplete rc={} ledger={}", this.topic, rc, lh.id)
-        if (rc != BKException.Code.OK) {
-            logger.error("[{}] Error creating ledger rc={} {}", this.topic, rc, BKException.getMessage(rc))
-            lastLedgerCreationFailureTimestamp = System.currentTimeMillis()
-            this.state.set(State.LEDGER_CLOSED)
-        } else {
-            logger.info("[{}] Created new ledger {}", this.topic, lh.id)
-            ledgers.put(lh.id, LogSegment(lh.id))
-            currentLedger = lh
+    private fun closeOffloadedLedger(ledgerId: Long) {
+        this.offloadedLedgers.remove(ledgerId)?.close()
+    }
 
-            updateLogInfo().subscribe({
-                synchronized(this.pendingAppendMessageQueue) {
-                    this.pendingAppendMessageQueue.forEach({ task: AppendMessageTask ->
-                        task.ledgerHandle = this.currentLedger
-                        task.start()
-                    })
-                    this.pendingAppendMessageQueue.clear()
+    /**
+     * Hold a read at the end of the log until the next append completes or the wait is over.
+     */
+    private fun parkRead(offset: Offset, context: ReadContext, observable: ObservableEmitter<BatchMessage>) {
+        this.executor.submitOrdered(this.topic, safeRun {
+            val state = this.state.get()
+            if (state == State.Fenced || state == State.CLOSED) {
+                observable.onError(LedgerClosedException("Attempted to use a fenced of closed managed ledger"))
+                return@safeRun
+            }
+            // An append may have completed, or the ledger been closed, since the read found nothing
+            val lastPosition = this.lastConfirmedEntry
+            if (lastPosition >= Offset(offset.ledgerId, offset.entryId)
+                    && (lastPosition.ledgerId == offset.ledgerId || isSegmentClosed(offset.ledgerId))) {
+                readMessages(offset, context, observable)
+                return@safeRun
+            }
+            val now = System.nanoTime()
+            if (context.deadlineNanos == 0L) {
+                context.deadlineNanos = now + TimeUnit.MILLISECONDS.toNanos(context.maxWaitMs)
+            }
+            val parkedRead = ParkedRead(offset, context, observable)
+            parkedRead.timeoutTask = this.executor.scheduleOrdered(this.topic, safeRun {
+                if (this.parkedReads.remove(parkedRead)) {
+                    observable.onError(NoMoreMessageException("No more message to read from current ledger :" + offset.ledgerId))
+                }
+            }, Math.max(0, context.deadlineNanos - now), TimeUnit.NANOSECONDS)
+            this.parkedReads.add(parkedRead)
+        })
+    }
+
+    /**
+     * Called in the ordered thread once an entry is persisted, the parked reads are served from the message cache.
+     */
+    fun notifyParkedReads() {
+        if (this.parkedReads.isEmpty()) {
+            return
+        }
+        val reads = ArrayList(this.parkedReads)
+        this.parkedReads.clear()
+        reads.forEach {
+            it.timeoutTask?.cancel(false)
+            readMessages(it.offset, it.context, it.observable)
+        }
+    }
+
+    private class ParkedRead(val offset: Offset, val context: ReadContext, val observable: ObservableEmitter<BatchMessage>) {
+
+        var timeoutTask: ScheduledFuture<*>? = null
+    }
+
+    private fun entriesRead(ledgerId: Long, firstEntry: Long, entries: List<ByteBuf>, startBatchIndex: Int,
+                            context: ReadContext, observable: ObservableEmitter<BatchMessage>) {
+        val nextReadOffset = toBatchMessage(ledgerId, firstEntry, entries, startBatchIndex, context)
+        if (context.isFull()) {
+            complete(nextReadOffset, context, observable)
+        } else {
+            readMessages(nextReadOffset, context, observable)
+        }
+    }
+
+    /**
+     * Messages already read are still handed out, the failure shows up again on the next read.
+     */
+    private fun failRead(offset: Offset, context: ReadContext, throwable: Throwable, observable: ObservableEmitter<BatchMessage>) {
+        if (context.messages.isEmpty()) {
+            observable.onError(throwable)
+        } else {
+            complete(offset, context, observable)
+        }
+    }
+
+    private fun complete(nextReadOffset: Offset, context: ReadContext, observable: ObservableEmitter<BatchMessage>) {
+        observable.onNext(BatchMessage(nextReadOffset, context.messages))
+        observable.onComplete()
+    }
+
+    /**
+     * Convert entries of a ledger into messages until the [context] is full, batched entries are split into
+     * single messages. Messages hold retained slices of the entries, which are released afterwards.
+     *
+     * @param startBatchIndex messages before it in the first entry have already been read
+     * @return the offset to read from next
+     */
+    private fun toBatchMessage(ledgerId: Long, firstEntry: Long, entries: List<ByteBuf>, startBatchIndex: Int, context: ReadContext): Offset {
+        var nextReadOffset: Offset? = null
+        entries.forEachIndexed { i, entry ->
+            if (nextReadOffset == null) {
+                val entryId = firstEntry + i
+                val marked = markedEntriesSinceLedgerId in 0..ledgerId
+                val payloads = BatchEntryFormat.decode(entry, marked)
+                var batchIndex = if (i == 0) startBatchIndex else 0
+                while (batchIndex < payloads.size) {
+                    if (context.isFull()) {
+                        nextReadOffset = Offset(ledgerId, entryId, batchIndex)
+                        break
+                    }
+                    context.messages.add(Message(MessageId(ledgerId, entryId, batchIndex), payloads[batchIndex].retainedSlice()))
+                    context.bytes += payloads[batchIndex].readableBytes()
+                    batchIndex++
                 }
-                this.state.set(State.LEDGER_OPENED)
-                lastLedgerCreatedTimestamp = System.currentTimeMillis()
+            }
+            entry.release()
+        }
+        return nextReadOffset ?: Offset(ledgerId, firstEntry + entries.size)
+    }
+
+    private fun getLedgerHandle(ledgerId: Long): Observable<LedgerHandle> {
+        if (this.currentLedger.id == ledgerId) {
+            return Observable.create<LedgerHandle> {
+                it.onNext(this.currentLedger)
+                it.onComplete()
+            }
+        }
+        val closing = this.closingLedgers[ledgerId]
+        if (closing != null) {
+            return Observable.create<LedgerHandle> {
+                it.onNext(closing)
+                it.onComplete()
+            }
+        }
+        return Observable.create<LedgerHandle> {
+            this.ledgerCache.get(ledgerId).whenComplete { lh, throwable ->
+                // Subscribers go on with the state of the topic, which belongs to its ordered thread
+                this.executor.submitOrdered(this.topic, safeRun {
+                    if (throwable != null) {
+                        it.onError(throwable)
+                    } else {
+                        it.onNext(lh)
+                        it.onComplete()
+                    }
+                })
+            }
+        }
+    }
+
+    private fun internalReadFromLedger(ledgerHandle: LedgerHandle) {
+
+    }
+
+    override fun getNumberOfMessages(): Long {
+        return this.numberOfMessages.get()
+    }
+
+    override fun updateReadPosition(readerName: String, offset: Offset) {
+        if (this.compactedLedgers.containsKey(offset.ledgerId)) {
+            // Positions in a compacted ledger tell nothing about the topic ledgers
+            return
+        }
+        this.readPositions[readerName] = offset
+        invalidateCachedEntries()
+        if (this.storageConfig.readAheadEnabled && this.storageConfig.maxCacheSizeBytes > 0) {
+            this.executor.submitOrdered(this.topic, safeRun { readAhead(readerName) })
+        }
+    }
+
+    override fun removeReader(readerName: String) {
+        this.readPositions.remove(readerName)
+        invalidateCachedEntries()
+        this.executor.submitOrdered(this.topic, safeRun { this.readAheads.remove(readerName) })
+    }
+
+    /**
+     * Prefetch the entries after the position of the reader into the message cache, with several reads in flight.
+     * The window doubles each time the reader catches up with the prefetched entries, and no more reads are sent
+     * while the reader is a whole window behind. Must be called in the ordered thread of this topic.
+     */
+    private fun readAhead(readerName: String) {
+        val state = this.state.get()
+        if (state == State.CLOSED || state == State.Fenced || state == State.NONE) {
+            return
+        }
+        val position = this.readPositions[readerName] ?: return
+        val entryPosition = Offset(position.ledgerId, position.entryId)
+        var readAhead = this.readAheads[readerName]
+        if (readAhead == null) {
+            readAhead = ReadAheadState(entryPosition, this.storageConfig.readAheadChunkEntries)
+            this.readAheads[readerName] = readAhead
+        } else if (readAhead.frontier <= entryPosition) {
+            // Everything prefetched has been read already
+            if (readAhead.pendingReads.isEmpty()) {
+                readAhead.window = Math.min(readAhead.window * 2, this.storageConfig.readAheadMaxEntries)
+            }
+            readAhead.frontier = entryPosition
+        }
+        while (readAhead.pendingReads.size < this.storageConfig.readAheadMaxOutstandingReads) {
+            val prefetched = entriesBetween(entryPosition, readAhead.frontier)
+            if (prefetched >= readAhead.window) {
+                break
+            }
+            val maxEntries = Math.min(this.storageConfig.readAheadChunkEntries.toLong(), readAhead.window - prefetched)
+            val read = nextReadAheadRange(readAhead, maxEntries) ?: break
+            readAhead.frontier = Offset(read.ledgerId, read.lastEntry + 1)
+            readAhead.pendingReads.add(read)
+            sendReadAhead(readerName, readAhead, read)
+        }
+    }
+
+    /**
+     * Next range of at most [maxEntries] entries from the frontier, moving on to the next ledger if needed.
+     * Ranges already in the message cache are skipped.
+     */
+    private fun nextReadAheadRange(readAhead: ReadAheadState, maxEntries: Long): ReadAheadState.PendingRead? {
+        while (true) {
+            val ledgerId = readAhead.frontier.ledgerId
+            val firstEntry = readAhead.frontier.entryId
+            val lastEntryInLedger = when {
+                ledgerId == this.currentLedger.id -> {
+                    val lastPosition = this.lastConfirmedEntry
+                    if (lastPosition.ledgerId == ledgerId) lastPosition.entryId else -1
+                }
+                else -> {
+                    val segment = this.ledgers[ledgerId] ?: return null
+                    // The segment is only complete once its ledger is closed
+                    if (segment.timestamp == 0L) {
+                        return null
+                    }
+                    // Offloaded ledgers are read from local files, nothing to prefetch
+                    if (segment.offloadLocation != null) -1 else segment.entries - 1
+                }
+            }
+            if (firstEntry > lastEntryInLedger) {
+                if (ledgerId == this.currentLedger.id) {
+                    return null
+                }
+                val nextLedgerId = this.ledgers.ceilingKey(ledgerId + 1) ?: return null
+                readAhead.frontier = Offset(nextLedgerId, 0)
+                continue
+            }
+            val lastEntry = Math.min(firstEntry + maxEntries - 1, lastEntryInLedger)
+            val cached = this.messageCache.getLeadingEntries(ledgerId, firstEntry, lastEntry)
+            cached.forEach { it.release() }
+            if (cached.isNotEmpty()) {
+                readAhead.frontier = Offset(ledgerId, firstEntry + cached.size)
+                continue
+            }
+            return ReadAheadState.PendingRead(ledgerId, firstEntry, lastEntry)
+        }
+    }
+
+    private fun sendReadAhead(readerName: String, readAhead: ReadAheadState, read: ReadAheadState.PendingRead) {
+        logger.debug("[{}] Read ahead for {} from ledger {} - first={} last={}", this.topic, readerName, read.ledgerId, read.firstEntry, read.lastEntry)
+        val readComplete = { entries: List<ByteBuf>? ->
+            this.executor.submitOrdered(this.topic, safeRun {
+                read.done = true
+                read.entries = entries
+                readAheadComplete(readerName, readAhead)
+            })
+        }
+        getLedgerHandle(read.ledgerId).subscribe(object : OnCompletedObserver<LedgerHandle>() {
+            override fun onNext(t: LedgerHandle) {
+                t.asyncReadEntries(read.firstEntry, read.lastEntry, { rc, _, seq, _ ->
+                    if (rc != BKException.Code.OK) {
+                        logger.warn("[{}] Read ahead failed on ledger {}: {}", topic, read.ledgerId, BKException.getMessage(rc))
+                        readComplete(null)
+                    } else {
+                        val entries = ArrayList<ByteBuf>()
+                        while (seq.hasMoreElements()) {
+                            entries.add(seq.nextElement().entryBuffer)
+                        }
+                        readComplete(entries)
+                    }
+                }, null)
+            }
+
+            override fun onError(e: Throwable) {
+                logger.warn("[{}] Read ahead failed to open ledger {}: {}", topic, read.ledgerId, e.message)
+                readComplete(null)
+            }
+        })
+    }
+
+    /**
+     * Cache the completed reads in offset order, then keep the window filled.
+     */
+    private fun readAheadComplete(readerName: String, readAhead: ReadAheadState) {
+        val active = this.readAheads[readerName] === readAhead
+        while (true) {
+            val read = readAhead.pendingReads.peek()
+            if (read == null || !read.done) {
+                break
+            }
+            readAhead.pendingReads.poll()
+            read.entries?.forEachIndexed { i, entry ->
+                if (active) {
+                    this.messageCache.insert(read.ledgerId, read.firstEntry + i, entry)
+                }
+                entry.release()
+            }
+        }
+        if (active) {
+            readAhead(readerName)
+        }
+    }
+
+    /**
+     * Number of entries in [from, to), 0 if [to] is not after [from].
+     */
+    private fun entriesBetween(from: Offset, to: Offset): Long {
+        if (to <= from) {
+            return 0
+        }
+        if (from.ledgerId == to.ledgerId) {
+            return to.entryId - from.entryId
+        }
+        var entries = Math.max(0, (this.ledgers[from.ledgerId]?.entries ?: 0) - from.entryId)
+        this.ledgers.subMap(from.ledgerId, false, to.ledgerId, false).values.forEach { entries += it.entries }
+        return entries + to.entryId
+    }
+
+    /**
+     * Release the cached entries that all the active readers have already gone past.
+     */
+    private fun invalidateCachedEntries() {
+        val slowestReadPosition = this.readPositions.values.min() ?: return
+        // The rest of a partially read batch is still needed
+        this.messageCache.invalidateEntriesBefore(Offset(slowestReadPosition.ledgerId, slowestReadPosition.entryId))
+    }
+
+    /**
+     * Compaction runs in the background, only one at a time. The new compacted ledger is used once stored in the
+     * metadata, the one it replaces is deleted [MessageStorageConfig.compactedLedgerDeletionLagMs] later.
+     */
+    override fun compact(keyExtractor: MessageKeyExtractor): Observable<Offset> {
+        return Observable.create<Offset> { observable: ObservableEmitter<Offset> ->
+            this.executor.submitOrdered(this.topic, safeRun {
+                val state = this.state.get()
+                if (state == State.CLOSED || state == State.Fenced || state == State.NONE) {
+                    observable.onError(LedgerClosedException("Message storage $topic isn't open"))
+                    return@safeRun
+                }
+                if (this.compacting) {
+                    observable.onError(MessageStorageException("$topic is already being compacted"))
+                    return@safeRun
+                }
+                this.compacting = true
+                val previous = this.compactedLedger
+                val start = Offset(this.ledgers.firstKey(), 0)
+                val compactor = TopicCompactor(this.topic, this, this.bookKeeper, this.config, getStoragePolicy(),
+                        this.storageConfig, keyExtractor)
+                CommonPool.executeBlocking(Runnable {
+                    try {
+                        val result = compactor.compact(start, previous?.horizon)
+                        this.executor.submitOrdered(this.topic, safeRun { compacted(result, previous, start, observable) })
+                    } catch (e: Exception) {
+                        logger.warn("[{}] Failed to compact: {}", this.topic, e.message)
+                        this.executor.submitOrdered(this.topic, safeRun {
+                            this.compacting = false
+                            observable.onError(e)
+                        })
+                    }
+                })
+            })
+        }
+    }
+
+    private fun compacted(result: TopicCompactor.Result?, previous: CompactedLedger?, start: Offset, observable: ObservableEmitter<Offset>) {
+        if (result == null) {
+            this.compacting = false
+            observable.onNext(previous?.horizon ?: start)
+            observable.onComplete()
+            return
+        }
+        val compacted = CompactedLedger(result.ledgerId, result.horizon)
+        this.compactedLedgers[compacted.ledgerId] = compacted
+        this.compactedLedger = compacted
+        updateLogInfo().subscribe(object : OnCompletedObserver<Void>() {
+            override fun onComplete() {
+                executor.submitOrdered(topic, safeRun {
+                    logger.info("[{}] Compacted up to {} into ledger {}", topic, compacted.horizon, compacted.ledgerId)
+                    compacting = false
+                    previous?.let { retireCompactedLedger(it) }
+                    observable.onNext(compacted.horizon)
+                    observable.onComplete()
+                })
+            }
+
+            override fun onError(e: Throwable) {
+                executor.submitOrdered(topic, safeRun {
+                    compacting = false
+                    // Another update may have stored the new ledger meanwhile, it's only deleted once the previous one is back
+                    compactedLedger = previous
+                    updateLogInfo().subscribe(object : OnCompletedObserver<Void>() {
+                        override fun onComplete() {
+                            retireCompactedLedger(compacted)
+                        }
+
+                        override fun onError(e: Throwable) {
+                            logger.warn("[{}] Failed to restore compacted ledger, leaving ledger {} behind: {}", topic,
+                                    compacted.ledgerId, e.message)
+                        }
+                    })
+                    observable.onError(e)
+                })
+            }
+        })
+    }
+
+    private fun retireCompactedLedger(compacted: CompactedLedger) {
+        this.executor.scheduleOrdered(this.topic, safeRun {
+            this.compactedLedgers.remove(compacted.ledgerId)
+            this.ledgerCache.invalidate(compacted.ledgerId)
+            this.bookKeeper.asyncDeleteLedger(compacted.ledgerId, { rc, _ ->
+                logger.info("[{}] Delete replaced compacted ledger {}. rc={}", this.topic, compacted.ledgerId, rc)
+            }, null)
+        }, this.storageConfig.compactedLedgerDeletionLagMs, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Ledger holding the latest message of every key published before [horizon].
+     */
+    private class CompactedLedger(val ledgerId: Long, val horizon: Offset)
+
+    @Synchronized
+    @Throws(InterruptedException::class, LedgerStorageException::class)
+    override fun close() {
+        if (this.isClosed) {
+            logger.warn("Message storage[{}] is already closed.", this.topic)
+        } else {
+            this.trimLedgersTask?.cancel(false)
+            this.offloadLedgersTask?.cancel(false)
+            this.logStatsTask?.cancel(false)
+            this.offloadedLedgers.keys.forEach { closeOffloadedLedger(it) }
+            this.currentLedger.close()
+            this.ledgerCache.invalidateAll()
+            this.messageCache.close()
+            this.isClosed = true
+            this.state.set(State.CLOSED)
+            this.executor.submitOrdered(this.topic, safeRun {
+                // Fail the messages that never made it into a group commit
+                flushGroupCommit()
+                this.parkedReads.forEach {
+                    it.timeoutTask?.cancel(false)
+                    it.observable.onError(LedgerClosedException("Message storage was already closed"))
+                }
+                this.parkedReads.clear()
+            })
+            logger.info("Message storage[{}] is closed.", this.topic)
+        }
+    }
+
+    override fun createComplete(rc: Int, lh: LedgerHandle, ctx: Any?) {
+        logger.debug("[{}] createComplete rc={} ledger={}", this.topic, rc, lh.id)
+        if (rc != BKException.Code.OK) {
+            logger.error("[{}] Error creating ledger rc={} {}", this.topic, rc, BKException.getMessage(rc))
+            lastLedgerCreationFailureTimestamp = System.currentTimeMillis()
+            this.state.set(State.LEDGER_CLOSED)
+        } else {
+            logger.info("[{}] Created new ledger {}", this.topic, lh.id)
+            ledgers.put(lh.id, LogSegment(lh.id))
+
+            updateLogInfo().subscribe({
+                // Restart the queued appends in the ordered thread, so no append can sneak into the queue meanwhile
+                this.executor.submitOrdered(this.topic, safeRun {
+                    startWritingLedger(lh)
+                })
             }, { throwable ->
                 if (throwable is KeeperException.BadVersionException) {
                     synchronized(MessageStorageImpl::class) {
@@ -430,24 +1306,557 @@ class MessageStorageImpl(val topic: String, private val bookKeeper: BookKeeper,
         }
     }
 
-    @Synchronized
-    private fun updateLogInfo(): Observable<Void> {
-        return Observable.create { observable: ObservableEmitter<Void> ->
-            val log = Log(this.topic)
-            log.segments = ArrayList(ledgers.values)
-            this.metadataStorage.updateLogInfo(this.topic, log).subscribe(object : OnCompletedObserver<Void>() {
-                override fun onError(e: Throwable) {
-                    observable.onError(e)
+    /**
+     * Called in the ordered thread once an entry is persisted, roll over the current ledger when it's full.
+     */
+    fun entryAppended(lh: LedgerHandle, entryId: Long, size: Int) {
+        if (lh.id == this.currentLedger.id) {
+            this.currentLedgerEntries++
+            this.currentLedgerSize += size
+            indexPublishTime(lh.id, entryId)
+            if (currentLedgerIsFull() && this.state.compareAndSet(State.LEDGER_OPENED, State.LEDGER_CLOSING)) {
+                logger.info("[{}] Ledger {} is full, entries={} size={}", this.topic, lh.id, this.currentLedgerEntries, this.currentLedgerSize)
+            }
+        }
+        // New appends are queued from now on, wait for the ones already sent to the ledger before closing it
+        if (this.state.get() == State.LEDGER_CLOSING && this.pendingAddEntries.get() == 0 && this.closingLedger == null) {
+            closeCurrentLedger()
+        }
+    }
+
+    /**
+     * Add a point to the time index of the ledger if the last one is old enough. The index is replaced rather
+     * than modified, as it may be serialized by a metadata update meanwhile.
+     */
+    private fun indexPublishTime(ledgerId: Long, entryId: Long) {
+        val segment = this.ledgers[ledgerId] ?: return
+        val now = System.currentTimeMillis()
+        val timeIndex = segment.timeIndex
+        if (timeIndex.isEmpty() || now - timeIndex.last().timestamp >= this.storageConfig.timeIndexIntervalMs) {
+            val newIndex = ArrayList<TimeIndexEntry>(timeIndex.size + 1)
+            newIndex.addAll(timeIndex)
+            newIndex.add(TimeIndexEntry(now, entryId))
+            segment.timeIndex = newIndex
+        }
+    }
+
+    override fun findOffsetByTime(timestamp: Long): Observable<Offset> {
+        return Observable.create<Offset> { observable: ObservableEmitter<Offset> ->
+            this.executor.submitOrdered(this.topic, safeRun {
+                val state = this.state.get()
+                if (state == State.Fenced || state == State.CLOSED || state == State.NONE) {
+                    observable.onError(LedgerClosedException("Attempted to use a fenced of closed managed ledger"))
+                    return@safeRun
                 }
+                observable.onNext(offsetOfTime(timestamp))
+                observable.onComplete()
+            })
+        }
+    }
+
+    /**
+     * Binary search the first segment still open or closed at or after [timestamp], then the last point of its
+     * time index before [timestamp]. Segments without index, recovered after a crash, are read from the start.
+     */
+    private fun offsetOfTime(timestamp: Long): Offset {
+        val segments = ArrayList(this.ledgers.values)
+        var low = 0
+        var high = segments.size
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            val closedAt = segments[mid].timestamp
+            if (closedAt != 0L && closedAt < timestamp) {
+                low = mid + 1
+            } else {
+                high = mid
+            }
+        }
+        if (low == segments.size) {
+            // Everything was published before, start from the end of the log
+            val lastPosition = this.lastConfirmedEntry
+            return Offset(lastPosition.ledgerId, lastPosition.entryId + 1)
+        }
+        val segment = segments[low]
+        val timeIndex = segment.timeIndex
+        low = 0
+        high = timeIndex.size
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (timeIndex[mid].timestamp <= timestamp) {
+                low = mid + 1
+            } else {
+                high = mid
+            }
+        }
+        return if (low == 0) Offset(segment.ledgerId, 0) else Offset(segment.ledgerId, timeIndex[low - 1].entryId)
+    }
+
+    private fun currentLedgerIsFull(): Boolean {
+        val spaceQuotaReached = this.currentLedgerEntries >= this.storageConfig.maxEntriesPerLedger
+                || this.currentLedgerSize >= this.storageConfig.maxSizePerLedgerBytes
+        val timeSinceLedgerCreationMs = System.currentTimeMillis() - this.lastLedgerCreatedTimestamp
+        val maxLedgerTimeReached = timeSinceLedgerCreationMs >= this.storageConfig.maxLedgerRolloverTimeMs
+        return (spaceQuotaReached || maxLedgerTimeReached) && timeSinceLedgerCreationMs >= this.storageConfig.minLedgerRolloverTimeMs
+    }
+
+    private fun closeCurrentLedger() {
+        val lh = this.currentLedger
+        val standby = this.standbyLedger
+        if (standby != null) {
+            // Appends go on with the standby ledger right away, the old one is closed in the background and read
+            // through its writer until then
+            this.closingLedgers[lh.id] = lh
+            switchToStandbyLedger(standby)
+            lh.asyncClose({ rc, _, _ ->
+                this.executor.submitOrdered(this.topic, safeRun {
+                    if (rc != BKException.Code.OK) {
+                        logger.warn("[{}] Error when closing ledger {}: {}", this.topic, lh.id, BKException.getMessage(rc))
+                    }
+                    updateClosedSegment(lh)
+                    this.closingLedgers.remove(lh.id)
+                    // Reads waiting at its end can move on now
+                    notifyParkedReads()
+                    updateLogInfo().subscribe(object : OnCompletedObserver<Void>() {
+                        override fun onError(e: Throwable) {
+                            // The segment is recovered from BookKeeper when the storage is opened again
+                            logger.warn("[{}] Error saving closed ledger {}: {}", this@MessageStorageImpl.topic, lh.id, e.message)
+                        }
+                    })
+                })
+            }, null)
+            return
+        }
+        this.closingLedger = lh
+        lh.asyncClose({ rc, _, _ ->
+            this.executor.submitOrdered(this.topic, safeRun {
+                this.closingLedger = null
+                if (rc != BKException.Code.OK) {
+                    logger.warn("[{}] Error when closing ledger {}: {}", this.topic, lh.id, BKException.getMessage(rc))
+                }
+                ledgerClosed(lh)
+                createLedgerAfterClosed()
+            })
+        }, null)
+    }
+
+    /**
+     * Must be called in the ordered thread of this topic.
+     */
+    fun createLedgerAfterClosed() {
+        val standby = this.standbyLedger
+        if (standby != null && this.state.get() == State.LEDGER_CLOSED) {
+            switchToStandbyLedger(standby)
+            return
+        }
+        if (this.pendingAppendMessageQueue.isEmpty()) {
+            // Created lazily by the next append
+            return
+        }
+        if (this.state.compareAndSet(State.LEDGER_CLOSED, State.LEDGER_CREATING)) {
+            logger.info("Create a new ledger for {}.", this.topic)
+            this.lastLedgerCreationInitiationTimestamp = System.nanoTime()
+            asyncCreateLedger(this)
+        }
+    }
+
+    /**
+     * Must be called in the ordered thread of this topic.
+     */
+    private fun startWritingLedger(lh: LedgerHandle) {
+        this.currentLedger = lh
+        this.currentLedgerEntries = 0
+        this.currentLedgerSize = 0
+        this.lastLedgerCreatedTimestamp = System.currentTimeMillis()
+        this.state.set(State.LEDGER_OPENED)
+        val queuedAppends = this.pendingAppendMessageQueue.size
+        while (true) {
+            val task = this.pendingAppendMessageQueue.poll() ?: break
+            task.ledgerHandle = lh
+            task.start()
+        }
+        if (this.ledgerSwitchStartNanos != 0L) {
+            this.ledgerSwitchStats.record(System.nanoTime() - this.ledgerSwitchStartNanos, queuedAppends)
+            this.ledgerSwitchStartNanos = 0
+        }
+        createStandbyLedger()
+    }
 
+    private fun switchToStandbyLedger(lh: LedgerHandle) {
+        logger.info("[{}] Switch to standby ledger {}", this.topic, lh.id)
+        this.ledgers.put(lh.id, this.standbySegment ?: LogSegment(lh.id))
+        this.standbyLedger = null
+        this.standbySegment = null
+        startWritingLedger(lh)
+    }
+
+    /**
+     * Create the next ledger in the background if enabled, must be called in the ordered thread of this topic.
+     */
+    private fun createStandbyLedger() {
+        if (!this.storageConfig.standbyLedgerEnabled || this.standbyLedger != null || this.creatingStandbyLedger) {
+            return
+        }
+        this.creatingStandbyLedger = true
+        asyncCreateLedger(AsyncCallback.CreateCallback { rc, lh, _ ->
+            if (rc != BKException.Code.OK) {
+                logger.warn("[{}] Error creating standby ledger: {}", this.topic, BKException.getMessage(rc))
+                this.executor.submitOrdered(this.topic, safeRun { this.creatingStandbyLedger = false })
+                return@CreateCallback
+            }
+            this.standbySegment = LogSegment(lh.id)
+            updateLogInfo().subscribe(object : OnCompletedObserver<Void>() {
                 override fun onComplete() {
+                    executor.submitOrdered(topic, safeRun {
+                        creatingStandbyLedger = false
+                        val state = this@MessageStorageImpl.state.get()
+                        if (state == State.CLOSED || state == State.Fenced) {
+                            return@safeRun
+                        }
+                        logger.info("[{}] Standby ledger {} is ready", topic, lh.id)
+                        standbyLedger = lh
+                        // A switch may be already waiting for it
+                        createLedgerAfterClosed()
+                    })
+                }
+
+                override fun onError(e: Throwable) {
+                    logger.warn("[{}] Error registering standby ledger {}: {}", topic, lh.id, e.message)
+                    standbySegment = null
+                    bookKeeper.asyncDeleteLedger(lh.id, { _, _ -> }, null)
+                    executor.submitOrdered(topic, safeRun {
+                        creatingStandbyLedger = false
+                        if (e is KeeperException.BadVersionException) {
+                            logger.error("[{}] Failed to update log metadata , z-node version mismatch. Closing message storage", topic)
+                            this@MessageStorageImpl.state.set(State.Fenced)
+                        }
+                    })
+                }
+            })
+        })
+    }
+
+    private fun scheduleTrimLedgers() {
+        if (this.storageConfig.retentionTimeMs < 0 && this.storageConfig.retentionSizeBytes < 0) {
+            return
+        }
+        val interval = this.storageConfig.retentionCheckIntervalMs
+        this.trimLedgersTask = this.executor.scheduleAtFixedRateOrdered(this.topic, safeRun {
+            trimConsumedLedgers().subscribe(object : OnCompletedObserver<Void>() {
+                override fun onError(e: Throwable) {
+                    logger.warn("[{}] Error trimming ledgers: {}", this@MessageStorageImpl.topic, e.message)
+                }
+            })
+        }, interval, interval, TimeUnit.MILLISECONDS)
+    }
+
+    private fun scheduleOffloadLedgers() {
+        if (this.offloader == null) {
+            return
+        }
+        val interval = this.storageConfig.offloadCheckIntervalMs
+        this.offloadLedgersTask = this.executor.scheduleAtFixedRateOrdered(this.topic, safeRun {
+            offloadLedgers()
+        }, interval, interval, TimeUnit.MILLISECONDS)
+    }
+
+    private fun scheduleLogStats() {
+        val interval = this.storageConfig.statsLogIntervalMs
+        if (interval <= 0) {
+            return
+        }
+        this.logStatsTask = this.executor.scheduleAtFixedRateOrdered(this.topic, safeRun {
+            val stats = this.appendStats.rollInterval()
+            if (stats.appendLatency.getCount() > 0) {
+                logger.info("[{}] {} {}", this.topic, this.appendStats, stats)
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Copy the oldest closed ledger due for offload, one at a time, and delete from BookKeeper the ledgers
+     * offloaded long enough ago. Must be called in the ordered thread of this topic.
+     */
+    fun offloadLedgers() {
+        val offloader = this.offloader ?: return
+        val state = this.state.get()
+        if (state == State.CLOSED || state == State.Fenced || state == State.NONE) {
+            return
+        }
+        val now = System.currentTimeMillis()
+        val deletable = this.ledgers.values.filter {
+            it.offloadLocation != null && !it.offloadedLedgerDeleted && now - it.offloadTimestamp >= this.storageConfig.offloadDeletionLagMs
+        }
+        if (deletable.isNotEmpty()) {
+            deleteOffloadedLedgers(deletable)
+        }
+        if (this.offloadingLedger) {
+            return
+        }
+        val segment = this.ledgers.values.firstOrNull {
+            it.ledgerId != this.currentLedger.id && it.timestamp != 0L && it.offloadLocation == null
+                    && now - it.timestamp >= this.storageConfig.offloadAfterMs && it.ledgerId !in this.offloadFailedLedgers
+        } ?: return
+        this.offloadingLedger = true
+        val ledgerId = segment.ledgerId
+        this.ledgerCache.get(ledgerId).whenComplete { lh, throwable ->
+            if (throwable != null) {
+                logger.warn("[{}] Failed to open ledger {} for offload: {}", this.topic, ledgerId, throwable.message)
+                this.executor.submitOrdered(this.topic, safeRun { this.offloadingLedger = false })
+                return@whenComplete
+            }
+            offloader.offload(this.topic, lh).subscribe(object : OnCompletedObserver<String>() {
+                override fun onNext(t: String) {
+                    executor.submitOrdered(topic, safeRun {
+                        offloadingLedger = false
+                        val current = ledgers[ledgerId]
+                        if (current == null) {
+                            // Trimmed meanwhile
+                            offloader.delete(t)
+                            return@safeRun
+                        }
+                        ledgers.put(ledgerId, current.copy(offloadLocation = t, offloadTimestamp = System.currentTimeMillis()))
+                        updateLogInfo().subscribe(object : OnCompletedObserver<Void>() {
+                            override fun onError(e: Throwable) {
+                                logger.warn("[{}] Error saving offloaded ledger {}: {}", topic, ledgerId, e.message)
+                            }
+                        })
+                    })
+                }
+
+                override fun onError(e: Throwable) {
+                    logger.error("[{}] Failed to offload ledger {}, it is kept in BookKeeper: {}", topic, ledgerId, e.message)
+                    executor.submitOrdered(topic, safeRun {
+                        offloadingLedger = false
+                        offloadFailedLedgers.add(ledgerId)
+                    })
+                }
+            })
+        }
+    }
+
+    /**
+     * The ledgers are only deleted once the metadata says so, readers never look for them in BookKeeper afterwards.
+     */
+    private fun deleteOffloadedLedgers(segments: List<LogSegment>) {
+        segments.forEach { this.ledgers.put(it.ledgerId, it.copy(offloadedLedgerDeleted = true)) }
+        updateLogInfo().subscribe(object : OnCompletedObserver<Void>() {
+            override fun onComplete() {
+                segments.forEach {
+                    ledgerCache.invalidate(it.ledgerId)
+                    bookKeeper.asyncDeleteLedger(it.ledgerId, { rc, _ ->
+                        if (rc != BKException.Code.OK && rc != BKException.Code.NoSuchLedgerExistsException) {
+                            logger.warn("[{}] Failed to delete offloaded ledger {}: {}", topic, it.ledgerId, BKException.getMessage(rc))
+                        } else {
+                            logger.info("[{}] Deleted offloaded ledger {} from bookkeeper", topic, it.ledgerId)
+                        }
+                    }, null)
+                }
+            }
+
+            override fun onError(e: Throwable) {
+                executor.submitOrdered(topic, safeRun {
+                    segments.forEach { segment ->
+                        ledgers.computeIfPresent(segment.ledgerId) { _, current -> current.copy(offloadedLedgerDeleted = false) }
+                    }
+                })
+            }
+        })
+    }
+
+    /**
+     * Remove the closed ledgers out of retention from the log metadata and delete them from BookKeeper.
+     * Ledgers are only trimmed once every consumer, committed or actively reading, has gone past them.
+     */
+    fun trimConsumedLedgers(): Observable<Void> {
+        return Observable.create<Void> { observable: ObservableEmitter<Void> ->
+            this.executor.submitOrdered(this.topic, safeRun {
+                if (this.trimmingLedgers) {
                     observable.onComplete()
+                    return@safeRun
                 }
+                this.trimmingLedgers = true
+                val offsetStorage = this.offsetStorage
+                if (offsetStorage == null) {
+                    trimLedgersBefore(null, observable)
+                    return@safeRun
+                }
+                // Only wait for zookeeper asynchronously, appends go on meanwhile
+                offsetStorage.asyncQuerySlowestOffset(this.topic, object : AsyncCallbacks.ReadOffsetCallback {
+                    override fun onComplete(offset: Offset?) {
+                        executor.submitOrdered(topic, safeRun { trimLedgersBefore(offset, observable) })
+                    }
+
+                    override fun onThrowable(throwable: Throwable) {
+                        executor.submitOrdered(topic, safeRun {
+                            trimmingLedgers = false
+                            observable.onError(throwable)
+                        })
+                    }
+                })
+            })
+        }
+    }
+
+    /**
+     * Must be called in the ordered thread of this topic.
+     */
+    private fun trimLedgersBefore(slowestOffset: Offset?, observable: ObservableEmitter<Void>) {
+        val state = this.state.get()
+        if (state == State.CLOSED || state == State.Fenced || state == State.NONE) {
+            this.trimmingLedgers = false
+            observable.onComplete()
+            return
+        }
+        var slowestLedgerId = this.currentLedger.id
+        slowestOffset?.let { slowestLedgerId = Math.min(slowestLedgerId, it.ledgerId) }
+        this.readPositions.values.min()?.let { slowestLedgerId = Math.min(slowestLedgerId, it.ledgerId) }
+
+        val now = System.currentTimeMillis()
+        var remainingSize = this.totalSize.get()
+        val trimmedSegments = ArrayList<LogSegment>()
+        for (segment in this.ledgers.headMap(slowestLedgerId, false).values) {
+            // Segments are stamped when their ledgers are closed
+            if (segment.timestamp == 0L) {
+                break
+            }
+            val expired = this.storageConfig.retentionTimeMs >= 0 && now - segment.timestamp > this.storageConfig.retentionTimeMs
+            val oversized = this.storageConfig.retentionSizeBytes >= 0 && remainingSize > this.storageConfig.retentionSizeBytes
+            if (!expired && !oversized) {
+                break
+            }
+            trimmedSegments.add(segment)
+            remainingSize -= segment.size
+        }
+        if (trimmedSegments.isEmpty()) {
+            this.trimmingLedgers = false
+            observable.onComplete()
+            return
+        }
+        trimmedSegments.forEach {
+            this.ledgers.remove(it.ledgerId)
+            this.numberOfMessages.addAndGet(-it.entries)
+            this.totalSize.addAndGet(-it.size)
+        }
+        logger.info("[{}] Trimming ledgers {}", this.topic, trimmedSegments.map { it.ledgerId })
+        updateLogInfo().subscribe(object : OnCompletedObserver<Void>() {
+            override fun onComplete() {
+                executor.submitOrdered(topic, safeRun {
+                    trimmedSegments.forEach {
+                        messageCache.invalidateLedger(it.ledgerId)
+                        ledgerCache.invalidate(it.ledgerId)
+                        it.offloadLocation?.let { location ->
+                            closeOffloadedLedger(it.ledgerId)
+                            offloader?.delete(location)
+                        }
+                    }
+                    deleteLedgers(trimmedSegments.map { it.ledgerId }, observable)
+                })
+            }
 
+            override fun onError(e: Throwable) {
+                executor.submitOrdered(topic, safeRun {
+                    trimmedSegments.forEach {
+                        ledgers.put(it.ledgerId, it)
+                        numberOfMessages.addAndGet(it.entries)
+                        totalSize.addAndGet(it.size)
+                    }
+                    trimmingLedgers = false
+                    if (e is KeeperException.BadVersionException) {
+                        logger.error("[{}] Failed to update log metadata , z-node version mismatch. Closing message storage", topic)
+                        this@MessageStorageImpl.state.set(State.Fenced)
+                    }
+                    observable.onError(e)
+                })
+            }
+        })
+    }
+
+    /**
+     * Delete ledgers from BookKeeper a batch at a time, so a large backlog doesn't flood the bookies.
+     */
+    private fun deleteLedgers(ledgerIds: List<Long>, observable: ObservableEmitter<Void>) {
+        if (ledgerIds.isEmpty()) {
+            this.executor.submitOrdered(this.topic, safeRun {
+                this.trimmingLedgers = false
+                observable.onComplete()
             })
+            return
+        }
+        val batch = ledgerIds.take(Math.max(1, this.storageConfig.retentionDeleteBatchSize))
+        val pending = AtomicInteger(batch.size)
+        batch.forEach { ledgerId ->
+            this.bookKeeper.asyncDeleteLedger(ledgerId, { rc, _ ->
+                if (rc != BKException.Code.OK && rc != BKException.Code.NoSuchLedgerExistsException) {
+                    logger.warn("[{}] Failed to delete trimmed ledger {}: {}", this.topic, ledgerId, BKException.getMessage(rc))
+                }
+                if (pending.decrementAndGet() == 0) {
+                    deleteLedgers(ledgerIds.drop(batch.size), observable)
+                }
+            }, null)
         }
     }
 
+    /**
+     * Store the current segments. Updates are written one at a time against the version last read or written,
+     * the ones requested meanwhile are merged into the next write, so only another broker writing the same log
+     * fails them with a version mismatch.
+     */
+    private fun updateLogInfo(): Observable<Void> {
+        return Observable.create { observable: ObservableEmitter<Void> ->
+            synchronized(this) {
+                this.pendingLogInfoUpdates.add(observable)
+                if (this.updatingLogInfo) {
+                    return@create
+                }
+                this.updatingLogInfo = true
+            }
+            writeLogInfo()
+        }
+    }
+
+    private fun writeLogInfo() {
+        val log = Log(this.topic)
+        val waiters = synchronized(this) {
+            val waiters = ArrayList(this.pendingLogInfoUpdates)
+            this.pendingLogInfoUpdates.clear()
+            val segments = ArrayList(ledgers.values)
+            this.standbySegment?.let { segments.add(it) }
+            log.segments = segments
+            this.compactedLedger?.let {
+                log.compactedLedgerId = it.ledgerId
+                log.compactionHorizon = it.horizon
+            }
+            log.storagePolicy = this.storagePolicy
+            log.markedEntriesSinceLedgerId = this.markedEntriesSinceLedgerId
+            log.version = this.logVersion
+            waiters
+        }
+        this.metadataStorage.updateLogInfo(this.topic, log).subscribe(object : OnCompletedObserver<Void>() {
+            override fun onError(e: Throwable) {
+                logInfoWritten()
+                waiters.forEach { it.onError(e) }
+            }
+
+            override fun onComplete() {
+                synchronized(this@MessageStorageImpl) {
+                    logVersion = log.version
+                }
+                logInfoWritten()
+                waiters.forEach { it.onComplete() }
+            }
+        })
+    }
+
+    private fun logInfoWritten() {
+        synchronized(this) {
+            if (this.pendingLogInfoUpdates.isEmpty()) {
+                this.updatingLogInfo = false
+                return
+            }
+        }
+        writeLogInfo()
+    }
+
     @Synchronized
     fun ledgerClosed(lh: LedgerHandle) {
         val state = this.state.get()
@@ -457,6 +1866,14 @@ class MessageStorageImpl(val topic: String, private val bookKeeper: BookKeeper,
             return
         }
 
+        updateClosedSegment(lh)
+    }
+
+    /**
+     * Record the final entries and size of a closed ledger, empty ledgers are deleted.
+     */
+    @Synchronized
+    private fun updateClosedSegment(lh: LedgerHandle) {
         val entriesInLedger = lh.lastAddConfirmed + 1
         logger.debug("[{}] Ledger has been closed id={} entries={}", this.topic, lh.id, entriesInLedger)
         if (entriesInLedger > 0) {
@@ -465,7 +1882,10 @@ class MessageStorageImpl(val topic: String, private val bookKeeper: BookKeeper,
             logSegment.entries = entriesInLedger
             logSegment.size = lh.length
             logSegment.timestamp = System.currentTimeMillis()
+            logSegment.timeIndex = this.ledgers[lh.id]?.timeIndex ?: Collections.emptyList()
             this.ledgers.put(lh.id, logSegment)
+            // A read only handle opened before the close may have a stale last add confirmed
+            this.ledgerCache.invalidate(lh.id)
         } else {
             this.ledgers.remove(lh.id)
             this.bookKeeper.asyncDeleteLedger(lh.id, { rc, _ ->
@@ -494,5 +1914,8 @@ class MessageStorageImpl(val topic: String, private val bookKeeper: BookKeeper,
 
         // Time period in which new write requests will not be accepted, after we fail in creating a new ledger.
         private val WAIT_TIME_AFTER_LEDGER_CREATION_FAILURE_MS: Long = 10000
+
+        // Entries of a compacted ledger read at a time, each holds many messages
+        private const val COMPACTED_READ_ENTRIES = 4
     }
 }
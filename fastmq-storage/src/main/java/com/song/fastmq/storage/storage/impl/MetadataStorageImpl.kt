@@ -1,82 +1,96 @@
 package com.song.fastmq.storage.storage.impl
 
-import com.fasterxml.jackson.core.JsonProcessingException
-import com.song.fastmq.common.utils.JsonUtils
 import com.song.fastmq.storage.storage.MetadataStorage
 import com.song.fastmq.storage.storage.metadata.Log
+import com.song.fastmq.storage.storage.metadata.LogFormat
 import io.reactivex.Observable
 import io.reactivex.ObservableEmitter
 import org.apache.curator.x.async.AsyncCuratorFramework
 import org.apache.curator.x.async.api.CreateOption
 import org.apache.curator.x.async.api.DeleteOption
+import org.apache.zookeeper.KeeperException
 import org.slf4j.LoggerFactory
 import java.util.*
 
 /**
+ * Logs are read through a [ZkMetadataCache], so opening a topic again or looking up its first ledger for a new
+ * consumer doesn't go to ZooKeeper until the log changes.
+ *
  * Created by song on 2017/11/5.
  */
 class MetadataStorageImpl(private val asyncCuratorFramework: AsyncCuratorFramework) : MetadataStorage {
 
+    private val cache = ZkMetadataCache(asyncCuratorFramework)
+
     override fun getLogInfo(name: String): Observable<Log> {
         return Observable.create<Log> { observable: ObservableEmitter<Log> ->
             val ledgerManagerPath = LEDGER_NAME_PREFIX + name
-            this.asyncCuratorFramework.checkExists().forPath(ledgerManagerPath).whenComplete({ stat, throwable ->
+            this.cache.get(ledgerManagerPath).whenComplete({ node, throwable ->
                 if (throwable != null) {
                     observable.onError(throwable)
                     return@whenComplete
                 }
-                if (stat == null) {
-                    try {
-                        val log = Log(name)
-                        val bytes = JsonUtils.toJson(log).toByteArray()
-                        this.asyncCuratorFramework.create().withOptions(EnumSet.of(CreateOption.createParentsIfNeeded)).forPath(ledgerManagerPath, bytes)
-                                .whenComplete({ _, t ->
-                                    if (t != null) {
-                                        observable.onError(t)
-                                    } else {
+                if (node == null) {
+                    val log = Log(name)
+                    val bytes = LogFormat.encode(log)
+                    this.asyncCuratorFramework.create().withOptions(EnumSet.of(CreateOption.createParentsIfNeeded)).forPath(ledgerManagerPath, bytes)
+                            .whenComplete({ _, t ->
+                                this.cache.invalidate(ledgerManagerPath)
+                                when (t) {
+                                    null -> {
+                                        log.version = ZkVersion(0)
                                         observable.onNext(log)
                                         observable.onComplete()
                                     }
-                                })
-                    } catch (e: JsonUtils.JsonException) {
+                                    // Created by another caller meanwhile
+                                    is KeeperException.NodeExistsException -> getLogInfo(name).subscribe({
+                                        observable.onNext(it)
+                                    }, {
+                                        observable.onError(it)
+                                    }, {
+                                        observable.onComplete()
+                                    })
+                                    else -> observable.onError(t)
+                                }
+                            })
+                } else {
+                    try {
+                        // Decoded for every caller, they are free to change their copy
+                        val log = LogFormat.decode(node.data)
+                        log.version = ZkVersion(node.version)
+                        observable.onNext(log)
+                        observable.onComplete()
+                    } catch (e: Exception) {
                         observable.onError(e)
-                        return@whenComplete
                     }
-                } else {
-                    this.asyncCuratorFramework.data.forPath(ledgerManagerPath).whenComplete({ bytes, t ->
-                        if (t != null) {
-                            observable.onError(t)
-                        } else {
-                            try {
-                                observable.onNext(JsonUtils.fromJson(String(bytes), Log::class.java))
-                                observable.onComplete()
-                            } catch (e: JsonUtils.JsonException) {
-                                observable.onError(e)
-                            }
-                        }
-                    })
                 }
             })
         }
     }
 
+    /**
+     * Compare and set on [Log.version] if present, which is updated once written. A concurrent change fails the
+     * update with [org.apache.zookeeper.KeeperException.BadVersionException].
+     */
     override fun updateLogInfo(name: String, log: Log): Observable<Void> {
         return Observable.create { observable: ObservableEmitter<Void> ->
-            try {
-                val bytes = JsonUtils.get().writeValueAsBytes(log)
-                this.asyncCuratorFramework
-                        .setData()
-                        .forPath(LEDGER_NAME_PREFIX + name, bytes)
-                        .whenComplete { _, throwable ->
-                            if (throwable != null) {
-                                observable.onError(throwable)
-                            } else {
-                                observable.onComplete()
-                            }
-                        }
-            } catch (e: JsonProcessingException) {
-                observable.onError(e)
+            val bytes = LogFormat.encode(log)
+            val version = log.version
+            val setData = if (version != null) {
+                this.asyncCuratorFramework.setData().withVersion(version.version)
+            } else {
+                this.asyncCuratorFramework.setData()
             }
+            setData.forPath(LEDGER_NAME_PREFIX + name, bytes)
+                    .whenComplete { stat, throwable ->
+                        this.cache.invalidate(LEDGER_NAME_PREFIX + name)
+                        if (throwable != null) {
+                            observable.onError(throwable)
+                        } else {
+                            log.version = ZkVersion(stat.version)
+                            observable.onComplete()
+                        }
+                    }
         }
     }
 
@@ -88,6 +102,7 @@ class MetadataStorageImpl(private val asyncCuratorFramework: AsyncCuratorFramewo
                     .withOptions(EnumSet.of(DeleteOption.guaranteed))
                     .forPath(LEDGER_NAME_PREFIX + name)
                     .whenComplete { _, throwable ->
+                        this.cache.invalidate(LEDGER_NAME_PREFIX + name)
                         if (throwable != null) {
                             it.onError(throwable)
                         } else {
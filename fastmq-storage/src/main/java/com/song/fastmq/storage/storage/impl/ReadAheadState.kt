@@ -0,0 +1,28 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.song.fastmq.storage.storage.Offset
+import io.netty.buffer.ByteBuf
+import java.util.*
+
+/**
+ * Prefetch progress of a single reader, only accessed in the ordered thread of the topic.
+ *
+ * @param frontier the first entry not requested yet
+ * @param window max entries prefetched ahead of the reader
+ *
+ * @author song
+ */
+internal class ReadAheadState(var frontier: Offset, var window: Int) {
+
+    /**
+     * Reads in flight in offset order, completed ones are only applied once all the reads before them are done.
+     */
+    val pendingReads = ArrayDeque<PendingRead>()
+
+    internal class PendingRead(val ledgerId: Long, val firstEntry: Long, val lastEntry: Long) {
+
+        var done = false
+
+        var entries: List<ByteBuf>? = null
+    }
+}
@@ -0,0 +1,205 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.song.fastmq.common.message.Message
+import com.song.fastmq.storage.storage.BatchMessage
+import com.song.fastmq.storage.storage.CompactedEntryFormat
+import com.song.fastmq.storage.storage.MessageKeyExtractor
+import com.song.fastmq.storage.storage.MessageStorage
+import com.song.fastmq.storage.storage.Offset
+import com.song.fastmq.storage.storage.config.BookKeeperConfig
+import com.song.fastmq.storage.storage.config.MessageStorageConfig
+import com.song.fastmq.storage.storage.metadata.StoragePolicy
+import com.song.fastmq.storage.storage.support.MessageStorageException
+import com.song.fastmq.storage.storage.support.NoMoreMessageException
+import io.netty.buffer.ByteBuf
+import org.apache.bookkeeper.client.BKException
+import org.apache.bookkeeper.client.BookKeeper
+import org.apache.bookkeeper.client.LedgerHandle
+import org.slf4j.LoggerFactory
+import java.io.File
+import java.util.concurrent.Semaphore
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Write the latest message of every key of a topic into a new ledger. The topic is read twice the way a compacted
+ * reader reads it, the previous compacted ledger first and then the messages published since, once to find the
+ * latest offset of every key and once to copy the messages at those offsets. Blocks, so never call it in the
+ * ordered thread of the topic.
+ *
+ * @author song
+ */
+class TopicCompactor(private val topic: String, private val messageStorage: MessageStorage, private val bookKeeper: BookKeeper,
+                     private val config: BookKeeperConfig, private val policy: StoragePolicy,
+                     private val storageConfig: MessageStorageConfig,
+                     private val keyExtractor: MessageKeyExtractor) {
+
+    /**
+     * @param start first offset of the topic
+     * @param previousHorizon where the previous compaction stopped, null if never compacted
+     * @return the compacted ledger, null if nothing was published since the previous compaction
+     */
+    fun compact(start: Offset, previousHorizon: Offset?): Result? {
+        KeyOffsetMap(this.storageConfig.compactionMaxKeysInMemory, File(this.storageConfig.compactionSpillDirectory)).use { keys ->
+            var last: Offset? = null
+            readMessages(start, null) { offset, payload ->
+                val key = this.keyExtractor.extractKey(payload)
+                if (key != null) {
+                    keys.put(key, offset)
+                }
+                last = offset
+            }
+            val lastRead = last
+            if (lastRead == null || previousHorizon != null && lastRead < previousHorizon) {
+                return null
+            }
+            // Offsets up to the batch index after the last message read are compacted, the rest is the live tail
+            val horizon = Offset(lastRead.ledgerId, lastRead.entryId, lastRead.batchIndex + 1)
+            val latestOffsets = keys.latestOffsets()
+            logger.info("[{}] Compacting {} keys up to {}, {} runs spilled", this.topic, latestOffsets.size,
+                    horizon, keys.getSpilledRuns())
+            return Result(writeLedger(start, horizon, latestOffsets), horizon)
+        }
+    }
+
+    private fun writeLedger(start: Offset, horizon: Offset, latestOffsets: List<Offset>): Long {
+        val lh = this.bookKeeper.createLedger(this.policy.ensembleSize, this.policy.writeQuorumSize, this.policy.ackQuorumSize,
+                this.policy.digestType, this.config.password)
+        val writer = EntryWriter(lh)
+        try {
+            var next = 0
+            readMessages(start, horizon) { offset, payload ->
+                while (next < latestOffsets.size && latestOffsets[next] < offset) {
+                    next++
+                }
+                if (next < latestOffsets.size && latestOffsets[next] == offset && !this.keyExtractor.isTombstone(payload)) {
+                    writer.add(offset, payload)
+                }
+            }
+            writer.finish()
+            lh.close()
+            return lh.id
+        } catch (e: Exception) {
+            writer.discard()
+            this.bookKeeper.asyncDeleteLedger(lh.id, { rc, _ ->
+                logger.info("[{}] Delete unfinished compacted ledger {}. rc={}", this.topic, lh.id, rc)
+            }, null)
+            throw e
+        }
+    }
+
+    /**
+     * Hand every message from [start] on, before [horizon] if given, to [consumer]. The payload is only valid during the call.
+     */
+    private fun readMessages(start: Offset, horizon: Offset?, consumer: (Offset, ByteBuf) -> Unit) {
+        var offset = start
+        while (true) {
+            val batch = readBatch(offset) ?: return
+            try {
+                if (batch.messages.isEmpty()) {
+                    return
+                }
+                batch.messages.forEach {
+                    val messageOffset = toOffset(it)
+                    if (horizon != null && messageOffset >= horizon) {
+                        return
+                    }
+                    consumer(messageOffset, it.buffer)
+                }
+            } finally {
+                batch.release()
+            }
+            offset = batch.nextReadOffset
+        }
+    }
+
+    private fun readBatch(offset: Offset): BatchMessage? {
+        return try {
+            this.messageStorage.queryCompacted(offset, this.storageConfig.compactionReadBatchSize, 0).blockingFirst()
+        } catch (e: RuntimeException) {
+            // Checked exceptions come wrapped
+            if (e.cause is NoMoreMessageException) {
+                null
+            } else {
+                throw e
+            }
+        }
+    }
+
+    private fun toOffset(message: Message) = Offset(message.messageId.ledgerId, message.messageId.entryId, message.messageId.batchIndex)
+
+    /**
+     * Packs the kept messages into entries, with a bounded number of adds in flight.
+     */
+    private inner class EntryWriter(private val lh: LedgerHandle) {
+
+        private val offsets = ArrayList<Offset>()
+
+        private val payloads = ArrayList<ByteBuf>()
+
+        private var bytes: Long = 0
+
+        private val outstandingAdds = Semaphore(MAX_OUTSTANDING_ADDS)
+
+        private val failure = AtomicInteger(BKException.Code.OK)
+
+        fun add(offset: Offset, payload: ByteBuf) {
+            this.offsets.add(offset)
+            this.payloads.add(payload.retain())
+            this.bytes += payload.readableBytes()
+            if (this.payloads.size >= storageConfig.compactionEntryMaxMessages || this.bytes >= storageConfig.compactionEntryMaxBytes) {
+                flush()
+            }
+        }
+
+        fun finish() {
+            flush()
+            this.outstandingAdds.acquire(MAX_OUTSTANDING_ADDS)
+            checkFailure()
+        }
+
+        fun discard() {
+            this.payloads.forEach { it.release() }
+            this.payloads.clear()
+        }
+
+        private fun flush() {
+            if (this.payloads.isEmpty()) {
+                return
+            }
+            val entry = try {
+                CompactedEntryFormat.encode(this.offsets, this.payloads)
+            } finally {
+                this.payloads.forEach { it.release() }
+                this.payloads.clear()
+                this.offsets.clear()
+                this.bytes = 0
+            }
+            checkFailure()
+            this.outstandingAdds.acquire()
+            this.lh.asyncAddEntry(entry, { rc, _, _, _ ->
+                if (rc != BKException.Code.OK) {
+                    this.failure.compareAndSet(BKException.Code.OK, rc)
+                }
+                this.outstandingAdds.release()
+            }, null)
+            // The add holds a reference of its own until written
+            entry.release()
+        }
+
+        private fun checkFailure() {
+            val rc = this.failure.get()
+            if (rc != BKException.Code.OK) {
+                throw MessageStorageException("Failed to write compacted ledger ${this.lh.id}: ${BKException.getMessage(rc)}")
+            }
+        }
+    }
+
+    class Result(val ledgerId: Long, val horizon: Offset)
+
+    companion object {
+
+        private val logger = LoggerFactory.getLogger(TopicCompactor::class.java)
+
+        private const val MAX_OUTSTANDING_ADDS = 64
+    }
+}
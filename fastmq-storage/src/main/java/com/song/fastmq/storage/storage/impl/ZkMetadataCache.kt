@@ -0,0 +1,78 @@
+package com.song.fastmq.storage.storage.impl
+
+import org.apache.curator.x.async.AsyncCuratorFramework
+import org.apache.zookeeper.KeeperException
+import org.apache.zookeeper.data.Stat
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Znodes read from ZooKeeper, kept until the watch set while reading them fires or the connection is lost.
+ * Znodes that don't exist are cached as well, watched until they are created. Reads of a znode that isn't
+ * cached yet share a single request.
+ *
+ * Writers should [invalidate] the znodes they change, so they read their own writes even before the watch fires.
+ *
+ * @author song
+ */
+class ZkMetadataCache(private val asyncCuratorFramework: AsyncCuratorFramework) {
+
+    private val entries = ConcurrentHashMap<String, CompletableFuture<ZNode?>>()
+
+    /**
+     * Data and version of the znode at [path], null if it doesn't exist.
+     */
+    fun get(path: String): CompletableFuture<ZNode?> {
+        this.entries[path]?.let { return it }
+        val future = CompletableFuture<ZNode?>()
+        val existing = this.entries.putIfAbsent(path, future)
+        if (existing != null) {
+            return existing
+        }
+        load(path, future)
+        return future
+    }
+
+    fun invalidate(path: String) {
+        this.entries.remove(path)
+    }
+
+    fun size() = this.entries.size
+
+    private fun load(path: String, future: CompletableFuture<ZNode?>) {
+        val stat = Stat()
+        val stage = this.asyncCuratorFramework.watched().data.storingStatIn(stat).forPath(path)
+        // Only drops this very entry, a late event mustn't evict the one loaded after it
+        stage.event().whenComplete { _, _ -> this.entries.remove(path, future) }
+        stage.whenComplete { bytes, throwable ->
+            when (throwable) {
+                null -> future.complete(ZNode(bytes, stat.version))
+                is KeeperException.NoNodeException -> loadMissing(path, future)
+                else -> failed(path, future, throwable)
+            }
+        }
+    }
+
+    /**
+     * No watch is left by reading a znode that doesn't exist, checking it does.
+     */
+    private fun loadMissing(path: String, future: CompletableFuture<ZNode?>) {
+        val stage = this.asyncCuratorFramework.watched().checkExists().forPath(path)
+        stage.event().whenComplete { _, _ -> this.entries.remove(path, future) }
+        stage.whenComplete { stat, throwable ->
+            when {
+                throwable != null -> failed(path, future, throwable)
+                stat == null -> future.complete(null)
+                // Created meanwhile
+                else -> load(path, future)
+            }
+        }
+    }
+
+    private fun failed(path: String, future: CompletableFuture<ZNode?>, throwable: Throwable) {
+        this.entries.remove(path, future)
+        future.completeExceptionally(throwable)
+    }
+
+    class ZNode(val data: ByteArray, val version: Int)
+}
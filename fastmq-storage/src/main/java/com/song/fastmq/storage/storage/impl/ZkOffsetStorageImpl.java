@@ -2,34 +2,45 @@ package com.song.fastmq.storage.storage.impl;
 
 import com.song.fastmq.common.utils.JsonUtils;
 import com.song.fastmq.common.utils.JsonUtils.JsonException;
-import com.song.fastmq.common.utils.Result;
 import com.song.fastmq.storage.storage.ConsumerInfo;
 import com.song.fastmq.storage.storage.MetadataStorage;
 import com.song.fastmq.storage.storage.Offset;
 import com.song.fastmq.storage.storage.OffsetStorage;
 import com.song.fastmq.storage.storage.concurrent.AsyncCallbacks.ReadOffsetCallback;
+import com.song.fastmq.storage.storage.config.MessageStorageConfig;
 import com.song.fastmq.storage.storage.metadata.LogSegment;
 import com.song.fastmq.storage.storage.support.OffsetStorageException;
 import com.song.fastmq.storage.storage.utils.ZkUtils;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.curator.framework.api.transaction.CuratorOp;
 import org.apache.curator.x.async.AsyncCuratorFramework;
 import org.apache.curator.x.async.api.CreateOption;
 import org.apache.curator.x.async.api.DeleteOption;
+import org.apache.zookeeper.KeeperException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Committed offsets are kept in memory and written to zookeeper in the background: offsets committed
+ * since the last flush are written every {@link MessageStorageConfig#getOffsetFlushIntervalMs()},
+ * batched into multi transactions, and offsets that didn't change since they were last written are
+ * skipped.
+ *
  * @author song
  */
 public class ZkOffsetStorageImpl implements OffsetStorage {
@@ -44,96 +55,162 @@ public class ZkOffsetStorageImpl implements OffsetStorage {
 
     private final AsyncCuratorFramework asyncCuratorFramework;
 
-    private final ExecutorService offsetThreadPool;
+    private final MessageStorageConfig config;
+
+    private final ScheduledExecutorService offsetThreadPool;
 
     private final ConcurrentMap<ConsumerInfo, Offset> offsetCache = new ConcurrentHashMap<>();
 
+    private final ConcurrentMap<ConsumerInfo, CompletableFuture<Offset>> loadingOffsets = new ConcurrentHashMap<>();
+
+    /**
+     * Offsets as they were last read from or written to zookeeper.
+     */
+    private final ConcurrentMap<ConsumerInfo, Offset> persistedOffsets = new ConcurrentHashMap<>();
+
+    /**
+     * Consumers committed since the last flush.
+     */
+    private final Set<ConsumerInfo> dirtyOffsets = ConcurrentHashMap.newKeySet();
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private final ScheduledFuture<?> flushTask;
+
+    private CompletableFuture<Void> flushing = CompletableFuture.completedFuture(null);
+
     public ZkOffsetStorageImpl(MetadataStorage metadataStorage,
         AsyncCuratorFramework asyncCuratorFramework) {
+        this(metadataStorage, asyncCuratorFramework, new MessageStorageConfig());
+    }
+
+    public ZkOffsetStorageImpl(MetadataStorage metadataStorage,
+        AsyncCuratorFramework asyncCuratorFramework, MessageStorageConfig config) {
         this.metadataStorage = metadataStorage;
         this.asyncCuratorFramework = asyncCuratorFramework;
-        offsetThreadPool = Executors.newSingleThreadExecutor(
+        this.config = config;
+        offsetThreadPool = Executors.newSingleThreadScheduledExecutor(
             new BasicThreadFactory.Builder().uncaughtExceptionHandler((t, e) -> logger
                 .error("Uncaught exception of thread :" + t.getClass().getName(), e))
                 .build());
+        long interval = Math.max(1, config.getOffsetFlushIntervalMs());
+        this.flushTask = offsetThreadPool
+            .scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public void commitOffset(ConsumerInfo consumerInfo, Offset offset) {
         this.offsetCache.put(consumerInfo, offset);
+        this.dirtyOffsets.add(consumerInfo);
+        if (this.dirtyOffsets.size() >= this.config.getMaxDirtyOffsets()) {
+            requestFlush();
+        }
     }
 
+    /**
+     * Blocks until the offset is loaded, {@link #asyncQueryOffset} is preferred.
+     */
     @Override
     public Offset queryOffset(ConsumerInfo consumerInfo) throws OffsetStorageException {
-        Result<Offset> result = new Result<>();
-        asyncQueryOffset(consumerInfo, new ReadOffsetCallback() {
-            @Override
-            public void onComplete(Offset offset) {
-                result.setData(offset);
-            }
-
-            @Override
-            public void onThrowable(Throwable throwable) {
-                result.setThrowable(throwable);
-            }
-        });
         try {
-            // TODO: 2018/2/20 Result is not a good design
-            return result.getData();
-        } catch (Throwable throwable) {
-            throw new OffsetStorageException(throwable);
+            return loadOffset(consumerInfo).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OffsetStorageException(e);
+        } catch (ExecutionException e) {
+            throw new OffsetStorageException(e.getCause());
         }
     }
 
     @Override
     public void asyncQueryOffset(final ConsumerInfo consumerInfo, ReadOffsetCallback callback) {
-        if (this.offsetCache.containsKey(consumerInfo)) {
-            callback.onComplete(this.offsetCache.get(consumerInfo));
-            return;
-        }
-        AtomicReference<Throwable> throwableReference = new AtomicReference<>();
-        Offset offset = this.offsetCache.computeIfAbsent(consumerInfo, reader -> {
-            CompletableFuture<Offset> future = asyncEnsureOffsetExist(consumerInfo, callback);
-            try {
-                return future.get();
-            } catch (InterruptedException e) {
-                throwableReference.set(e);
-            } catch (ExecutionException e) {
-                throwableReference.set(e.getCause());
+        loadOffset(consumerInfo).whenComplete((offset, throwable) -> {
+            if (throwable != null) {
+                callback.onThrowable(throwable);
+            } else {
+                callback.onComplete(offset);
             }
-            return null;
         });
-        if (offset == null) {
-            callback.onThrowable(throwableReference.get());
-            return;
+    }
+
+    /**
+     * The committed offset, or the one in zookeeper if not loaded yet. Concurrent loads of the
+     * offset of a consumer share a single request, no thread waits for zookeeper.
+     */
+    private CompletableFuture<Offset> loadOffset(ConsumerInfo consumerInfo) {
+        Offset cached = this.offsetCache.get(consumerInfo);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
         }
-        callback.onComplete(offset);
+        CompletableFuture<Offset> loading = new CompletableFuture<>();
+        CompletableFuture<Offset> existing = this.loadingOffsets.putIfAbsent(consumerInfo, loading);
+        if (existing != null) {
+            return existing;
+        }
+        asyncEnsureOffsetExist(consumerInfo).whenComplete((offset, throwable) -> {
+            if (throwable != null) {
+                this.loadingOffsets.remove(consumerInfo, loading);
+                loading.completeExceptionally(throwable);
+                return;
+            }
+            // An offset committed meanwhile is newer
+            Offset committed = this.offsetCache.putIfAbsent(consumerInfo, offset);
+            this.loadingOffsets.remove(consumerInfo, loading);
+            loading.complete(committed != null ? committed : offset);
+        });
+        return loading;
     }
 
     @Override
-    public void persistOffset(ConsumerInfo consumerInfo) throws InterruptedException {
-        if (this.offsetCache.containsKey(consumerInfo)) {
-            CountDownLatch latch = new CountDownLatch(1);
-            Offset offset = this.offsetCache.get(consumerInfo);
-            String path = buildConsumerPath(consumerInfo);
-            try {
-                this.asyncCuratorFramework.setData()
-                    .forPath(path, JsonUtils.toJson(offset).getBytes())
-                    .whenComplete((stat, throwable) -> {
-                        if (throwable != null) {
-                            logger.error("Persist offset failed", throwable);
-                        } else {
-                            logger.info(
-                                "Successfully persist offset for consumer[{}] of topic [{}] : {}",
-                                consumerInfo.getConsumerName(), consumerInfo.getTopic(),
-                                offset.toString());
+    public void asyncQuerySlowestOffset(String topic, ReadOffsetCallback callback) {
+        this.asyncCuratorFramework.getChildren()
+            .forPath(ZK_OFFSET_STORAGE_PREFIX_PATH + topic)
+            .whenComplete((consumerNames, throwable) -> {
+                if (throwable instanceof KeeperException.NoNodeException) {
+                    callback.onComplete(null);
+                    return;
+                }
+                if (throwable != null) {
+                    callback.onThrowable(throwable);
+                    return;
+                }
+                List<CompletableFuture<Offset>> futures = new ArrayList<>(consumerNames.size());
+                for (String consumerName : consumerNames) {
+                    // Offsets committed but not persisted yet are newer than the ones in zookeeper
+                    Offset committed = this.offsetCache.get(new ConsumerInfo(consumerName, topic));
+                    if (committed != null) {
+                        futures.add(CompletableFuture.completedFuture(committed));
+                    } else {
+                        futures.add(readOffset(ZK_OFFSET_STORAGE_PREFIX_PATH + topic
+                            + ZkUtils.INSTANCE.getSEPARATOR() + consumerName));
+                    }
+                }
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                    .whenComplete((aVoid, throwable1) -> {
+                        if (throwable1 != null) {
+                            callback.onThrowable(throwable1);
+                            return;
+                        }
+                        Offset slowest = null;
+                        for (CompletableFuture<Offset> future : futures) {
+                            Offset offset = future.join();
+                            if (offset != null && (slowest == null || offset.compareTo(slowest) < 0)) {
+                                slowest = offset;
+                            }
                         }
-                        latch.countDown();
+                        callback.onComplete(slowest);
                     });
-            } catch (JsonException e) {
-                logger.error("Convert to json failed", e);
-            }
-            latch.await();
+            });
+    }
+
+    /**
+     * Write the committed offset with the next flush, which starts right away.
+     */
+    @Override
+    public void persistOffset(ConsumerInfo consumerInfo) {
+        if (this.offsetCache.containsKey(consumerInfo)) {
+            this.dirtyOffsets.add(consumerInfo);
+            requestFlush();
         } else {
             logger.warn("Topic[{}]-consumer[{}] offset doesn't exist.", consumerInfo.getTopic(),
                 consumerInfo.getConsumerName());
@@ -142,6 +219,9 @@ public class ZkOffsetStorageImpl implements OffsetStorage {
 
     @Override
     public void removeOffset(ConsumerInfo consumerInfo) {
+        this.offsetCache.remove(consumerInfo);
+        this.dirtyOffsets.remove(consumerInfo);
+        this.persistedOffsets.remove(consumerInfo);
         this.asyncCuratorFramework.delete().withOptions(EnumSet.of(DeleteOption.quietly))
             .forPath(buildConsumerPath(consumerInfo)).whenComplete((aVoid, throwable) -> {
             if (throwable != null) {
@@ -153,8 +233,21 @@ public class ZkOffsetStorageImpl implements OffsetStorage {
         });
     }
 
+    /**
+     * Flush the offsets committed so far before stopping.
+     */
     @Override public void close() {
+        this.flushTask.cancel(false);
+        try {
+            // The flush in progress, if any, doesn't include the latest commits
+            flush().thenCompose(aVoid -> flush()).get(60L, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            logger.warn("Failed to flush offsets before closing", e);
+        }
         this.offsetCache.clear();
+        this.persistedOffsets.clear();
         this.offsetThreadPool.shutdown();
         try {
             if (!this.offsetThreadPool.awaitTermination(60L, TimeUnit.SECONDS)) {
@@ -166,72 +259,200 @@ public class ZkOffsetStorageImpl implements OffsetStorage {
         }
     }
 
+    private void requestFlush() {
+        if (this.flushRequested.compareAndSet(false, true)) {
+            this.offsetThreadPool.submit(this::flush);
+        }
+    }
+
+    /**
+     * Write the dirty offsets, unless a flush is still in progress, whose future is returned then.
+     * The returned future never fails, offsets that couldn't be written stay dirty.
+     */
+    private synchronized CompletableFuture<Void> flush() {
+        this.flushRequested.set(false);
+        if (!this.flushing.isDone()) {
+            return this.flushing;
+        }
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        List<ConsumerInfo> consumers = new ArrayList<>();
+        List<Offset> offsets = new ArrayList<>();
+        List<CuratorOp> ops = new ArrayList<>();
+        Iterator<ConsumerInfo> iterator = this.dirtyOffsets.iterator();
+        while (iterator.hasNext()) {
+            ConsumerInfo consumerInfo = iterator.next();
+            iterator.remove();
+            Offset committed = this.offsetCache.get(consumerInfo);
+            if (committed == null || committed.equals(this.persistedOffsets.get(consumerInfo))) {
+                continue;
+            }
+            // Offsets are mutable, keep the value written
+            Offset offset = new Offset(committed.getLedgerId(), committed.getEntryId(),
+                committed.getBatchIndex());
+            try {
+                ops.add(this.asyncCuratorFramework.transactionOp().setData()
+                    .forPath(buildConsumerPath(consumerInfo), JsonUtils.toJson(offset).getBytes()));
+            } catch (JsonException e) {
+                logger.error("Convert to json failed", e);
+                continue;
+            }
+            consumers.add(consumerInfo);
+            offsets.add(offset);
+            if (ops.size() >= this.config.getOffsetFlushBatchSize()) {
+                batches.add(writeBatch(consumers, offsets, ops));
+                consumers = new ArrayList<>();
+                offsets = new ArrayList<>();
+                ops = new ArrayList<>();
+            }
+        }
+        if (!ops.isEmpty()) {
+            batches.add(writeBatch(consumers, offsets, ops));
+        }
+        this.flushing = CompletableFuture.allOf(batches.toArray(new CompletableFuture[0]));
+        return this.flushing;
+    }
+
+    private CompletableFuture<Void> writeBatch(List<ConsumerInfo> consumers, List<Offset> offsets,
+        List<CuratorOp> ops) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        this.asyncCuratorFramework.transaction().forOperations(ops)
+            .whenComplete((results, throwable) -> {
+                if (throwable == null) {
+                    for (int i = 0; i < consumers.size(); i++) {
+                        offsetWritten(consumers.get(i), offsets.get(i), null);
+                    }
+                    future.complete(null);
+                    return;
+                }
+                // A single consumer without a znode yet fails the whole transaction
+                List<CompletableFuture<Void>> writes = new ArrayList<>(consumers.size());
+                for (int i = 0; i < consumers.size(); i++) {
+                    writes.add(writeOffset(consumers.get(i), offsets.get(i)));
+                }
+                CompletableFuture.allOf(writes.toArray(new CompletableFuture[0]))
+                    .whenComplete((aVoid, throwable1) -> future.complete(null));
+            });
+        return future;
+    }
+
+    private CompletableFuture<Void> writeOffset(ConsumerInfo consumerInfo, Offset offset) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        byte[] bytes;
+        try {
+            bytes = JsonUtils.toJson(offset).getBytes();
+        } catch (JsonException e) {
+            offsetWritten(consumerInfo, offset, e);
+            future.complete(null);
+            return future;
+        }
+        this.asyncCuratorFramework.create()
+            .withOptions(EnumSet.of(CreateOption.createParentsIfNeeded, CreateOption.setDataIfExists))
+            .forPath(buildConsumerPath(consumerInfo), bytes)
+            .whenComplete((path, throwable) -> {
+                offsetWritten(consumerInfo, offset, throwable);
+                future.complete(null);
+            });
+        return future;
+    }
+
+    private void offsetWritten(ConsumerInfo consumerInfo, Offset offset, Throwable throwable) {
+        if (throwable != null) {
+            logger.error("Persist offset of consumer[{}] failed", consumerInfo, throwable);
+            // Retried by the next flush
+            if (this.offsetCache.containsKey(consumerInfo)) {
+                this.dirtyOffsets.add(consumerInfo);
+            }
+            return;
+        }
+        if (this.offsetCache.containsKey(consumerInfo)) {
+            this.persistedOffsets.put(consumerInfo, offset);
+        }
+    }
+
     /**
      * Async get offset from zookeeper, if it doesn't exist then create a offset
-     * with default setting.
+     * with default setting. Existing offsets are read in a single round trip.
      */
-    private CompletableFuture<Offset> asyncEnsureOffsetExist(ConsumerInfo consumerInfo,
-        ReadOffsetCallback callback) {
+    private CompletableFuture<Offset> asyncEnsureOffsetExist(ConsumerInfo consumerInfo) {
         CompletableFuture<Offset> future = new CompletableFuture<>();
         String path = buildConsumerPath(consumerInfo);
-        this.asyncCuratorFramework.checkExists()
+        this.asyncCuratorFramework.getData()
             .forPath(path)
-            .whenComplete((stat, throwable) -> {
+            .whenComplete((bytes, throwable) -> {
+                if (throwable instanceof KeeperException.NoNodeException) {
+                    this.offsetThreadPool.submit(() -> createOffset(consumerInfo, path, future));
+                    return;
+                }
                 if (throwable != null) {
                     future.completeExceptionally(throwable);
                     return;
                 }
-                if (stat == null) {
-                    this.offsetThreadPool.submit(() -> metadataStorage.getLogInfo(consumerInfo.getTopic())
-                        .subscribe(log -> {
-                            long ledgerId = 0;
-                            if (log.getSegments().size() > 0) {
-                                log.getSegments().sort((o1, o2) -> (int) (o1.getLedgerId() - o2.getLedgerId()));
-                                LogSegment logSegment = log.getSegments().get(0);
-                                ledgerId = logSegment.getLedgerId();
-                            }
-                            try {
-                                byte[] bytes = JsonUtils.toJson(new Offset(ledgerId, 0)).getBytes();
-                                asyncCuratorFramework.create()
-                                    .withOptions(EnumSet.of(CreateOption.createParentsIfNeeded))
-                                    .forPath(path, bytes)
-                                    .whenComplete((s, throwable1) -> {
-                                        if (throwable1 != null) {
-                                            future.completeExceptionally(throwable1);
-                                        } else {
-                                            try {
-                                                future.complete(JsonUtils
-                                                    .fromJson(new String(bytes), Offset.class));
-                                            } catch (JsonException e) {
-                                                future.completeExceptionally(e);
-                                            }
-                                        }
-                                    });
-                            } catch (JsonException e) {
-                                future.completeExceptionally(e);
-                            }
-                        }));
-                } else {
-                    this.offsetThreadPool
-                        .submit(() -> asyncCuratorFramework.getData().forPath(path)
-                            .whenComplete((bytes, throwable1) -> {
-                                if (throwable1 != null) {
-                                    callback.onThrowable(throwable1);
-                                    return;
-                                }
-                                try {
-                                    Offset offset = JsonUtils
-                                        .fromJson(new String(bytes), Offset.class);
-                                    future.complete(offset);
-                                } catch (JsonException e) {
-                                    future.completeExceptionally(e);
-                                }
-                            }));
+                try {
+                    Offset offset = JsonUtils.fromJson(new String(bytes), Offset.class);
+                    this.persistedOffsets.put(consumerInfo, offset);
+                    future.complete(offset);
+                } catch (JsonException e) {
+                    future.completeExceptionally(e);
                 }
             });
         return future;
     }
 
+    /**
+     * Start a new consumer at the first ledger of the topic.
+     */
+    private void createOffset(ConsumerInfo consumerInfo, String path,
+        CompletableFuture<Offset> future) {
+        metadataStorage.getLogInfo(consumerInfo.getTopic()).subscribe(log -> {
+            long ledgerId = 0;
+            if (log.getSegments().size() > 0) {
+                log.getSegments().sort((o1, o2) -> (int) (o1.getLedgerId() - o2.getLedgerId()));
+                LogSegment logSegment = log.getSegments().get(0);
+                ledgerId = logSegment.getLedgerId();
+            }
+            Offset offset = new Offset(ledgerId, 0);
+            try {
+                byte[] bytes = JsonUtils.toJson(offset).getBytes();
+                asyncCuratorFramework.create()
+                    .withOptions(EnumSet.of(CreateOption.createParentsIfNeeded))
+                    .forPath(path, bytes)
+                    .whenComplete((s, throwable) -> {
+                        if (throwable != null) {
+                            future.completeExceptionally(throwable);
+                        } else {
+                            this.persistedOffsets.put(consumerInfo, new Offset(offset.getLedgerId(), 0));
+                            future.complete(offset);
+                        }
+                    });
+            } catch (JsonException e) {
+                future.completeExceptionally(e);
+            }
+        }, future::completeExceptionally);
+    }
+
+    /**
+     * Read a persisted offset, null if the consumer was removed meanwhile.
+     */
+    private CompletableFuture<Offset> readOffset(String path) {
+        CompletableFuture<Offset> future = new CompletableFuture<>();
+        this.asyncCuratorFramework.getData().forPath(path).whenComplete((bytes, throwable) -> {
+            if (throwable instanceof KeeperException.NoNodeException) {
+                future.complete(null);
+                return;
+            }
+            if (throwable != null) {
+                future.completeExceptionally(throwable);
+                return;
+            }
+            try {
+                future.complete(JsonUtils.fromJson(new String(bytes), Offset.class));
+            } catch (JsonException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
     private String buildConsumerPath(ConsumerInfo consumerInfo) {
         return ZK_OFFSET_STORAGE_PREFIX_PATH + consumerInfo.getTopic() + ZkUtils.INSTANCE.getSEPARATOR()
             + consumerInfo
@@ -1,5 +1,8 @@
 package com.song.fastmq.storage.storage.metadata
 
+import com.fasterxml.jackson.annotation.JsonIgnore
+import com.song.fastmq.storage.storage.Offset
+import com.song.fastmq.storage.storage.Version
 import java.util.*
 
 /**
@@ -9,4 +12,27 @@ import java.util.*
 class Log(var name: String = "") {
 
     var segments: List<LogSegment> = Collections.emptyList()
+
+    /**
+     * Ledger holding the latest message of every key published before [compactionHorizon], -1 if never compacted.
+     */
+    var compactedLedgerId: Long = -1
+
+    var compactionHorizon: Offset? = null
+
+    /**
+     * Applied to the ledgers created from now on, null for the default of the broker.
+     */
+    var storagePolicy: StoragePolicy? = null
+
+    /**
+     * Entries of this ledger and the later ones start with a format marker, -1 if no ledger was created yet.
+     */
+    var markedEntriesSinceLedgerId: Long = -1
+
+    /**
+     * Version of the stored log this one was read from or written as, null to overwrite whatever is stored.
+     */
+    @get:JsonIgnore
+    var version: Version? = null
 }
@@ -0,0 +1,214 @@
+package com.song.fastmq.storage.storage.metadata
+
+import com.song.fastmq.common.utils.JsonUtils
+import com.song.fastmq.storage.storage.Offset
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.Unpooled
+import org.apache.bookkeeper.client.BookKeeper
+import java.nio.charset.StandardCharsets
+import java.util.*
+
+/**
+ * Binary layout of the [Log] stored in ZooKeeper:
+ *
+ * ```
+ * | magic (int32) | format version (int8) | name | segment count (varint) | segment | segment | ...
+ *
+ * segment:
+ * | ledger id delta | entries | size | flags (int8) | closed timestamp delta | offload location | offload timestamp |
+ * | time index point count (varint) | timestamp delta | entry id delta | timestamp delta | entry id delta | ...
+ *
+ * compaction, since version 2:
+ * | compacted (int8) | compacted ledger id | horizon ledger id | horizon entry id | horizon batch index |
+ *
+ * storage policy, since version 3:
+ * | has policy (int8) | ensemble size | write quorum size | ack quorum size | digest type name |
+ *
+ * entry format, since version 4:
+ * | first ledger with marked entries |
+ * ```
+ *
+ * Numbers are zigzag varints, ids and timestamps are deltas from the previous value, strings are length prefixed
+ * UTF-8. The closed timestamp and the offload fields are only present if flagged. Logs written as JSON before
+ * are still readable. The compacted ledger and the horizon are only present if compacted, the storage policy only if the log has one.
+ *
+ * @author song
+ */
+object LogFormat {
+
+    /**
+     * Not a valid start of a JSON document.
+     */
+    const val MAGIC = 0xFA5E10C5.toInt()
+
+    const val FORMAT_VERSION = 4
+
+    private const val FLAG_OFFLOADED = 1
+
+    private const val FLAG_OFFLOADED_LEDGER_DELETED = 2
+
+    private const val FLAG_CLOSED = 4
+
+    fun encode(log: Log): ByteArray {
+        val buf = Unpooled.buffer(64 + log.segments.size * 16)
+        buf.writeInt(MAGIC)
+        buf.writeByte(FORMAT_VERSION)
+        writeString(buf, log.name)
+        writeVarLong(buf, log.segments.size.toLong())
+        var lastLedgerId = 0L
+        var lastTimestamp = 0L
+        log.segments.forEach {
+            writeVarLong(buf, it.ledgerId - lastLedgerId)
+            lastLedgerId = it.ledgerId
+            writeVarLong(buf, it.entries)
+            writeVarLong(buf, it.size)
+            var flags = 0
+            if (it.timestamp != 0L) {
+                flags = flags or FLAG_CLOSED
+            }
+            if (it.offloadLocation != null) {
+                flags = flags or FLAG_OFFLOADED
+            }
+            if (it.offloadedLedgerDeleted) {
+                flags = flags or FLAG_OFFLOADED_LEDGER_DELETED
+            }
+            buf.writeByte(flags)
+            if (it.timestamp != 0L) {
+                writeVarLong(buf, it.timestamp - lastTimestamp)
+            }
+            it.offloadLocation?.let { location ->
+                writeString(buf, location)
+                writeVarLong(buf, it.offloadTimestamp)
+            }
+            writeVarLong(buf, it.timeIndex.size.toLong())
+            var lastPoint = TimeIndexEntry(if (it.timestamp == 0L) lastTimestamp else it.timestamp, 0)
+            it.timeIndex.forEach { point ->
+                writeVarLong(buf, point.timestamp - lastPoint.timestamp)
+                writeVarLong(buf, point.entryId - lastPoint.entryId)
+                lastPoint = point
+            }
+            if (it.timestamp != 0L) {
+                lastTimestamp = it.timestamp
+            }
+        }
+        val horizon = log.compactionHorizon
+        if (log.compactedLedgerId >= 0 && horizon != null) {
+            buf.writeByte(1)
+            writeVarLong(buf, log.compactedLedgerId)
+            writeVarLong(buf, horizon.ledgerId)
+            writeVarLong(buf, horizon.entryId)
+            writeVarLong(buf, horizon.batchIndex.toLong())
+        } else {
+            buf.writeByte(0)
+        }
+        val policy = log.storagePolicy
+        if (policy != null) {
+            buf.writeByte(1)
+            writeVarLong(buf, policy.ensembleSize.toLong())
+            writeVarLong(buf, policy.writeQuorumSize.toLong())
+            writeVarLong(buf, policy.ackQuorumSize.toLong())
+            writeString(buf, policy.digestType.name)
+        } else {
+            buf.writeByte(0)
+        }
+        writeVarLong(buf, log.markedEntriesSinceLedgerId)
+        return ByteBufUtil.getBytes(buf)
+    }
+
+    fun decode(bytes: ByteArray): Log {
+        if (bytes.size < 4 || Unpooled.wrappedBuffer(bytes).getInt(0) != MAGIC) {
+            return JsonUtils.fromJson(String(bytes, StandardCharsets.UTF_8), Log::class.java)
+        }
+        val buf = Unpooled.wrappedBuffer(bytes)
+        buf.skipBytes(4)
+        val formatVersion = buf.readByte().toInt()
+        if (formatVersion > FORMAT_VERSION) {
+            throw IllegalArgumentException("Unsupported log format version $formatVersion")
+        }
+        val log = Log(readString(buf))
+        val count = readVarLong(buf).toInt()
+        val segments = ArrayList<LogSegment>(count)
+        var lastLedgerId = 0L
+        var lastTimestamp = 0L
+        for (i in 0 until count) {
+            val segment = LogSegment()
+            lastLedgerId += readVarLong(buf)
+            segment.ledgerId = lastLedgerId
+            segment.entries = readVarLong(buf)
+            segment.size = readVarLong(buf)
+            val flags = buf.readByte().toInt()
+            if (flags and FLAG_CLOSED != 0) {
+                segment.timestamp = lastTimestamp + readVarLong(buf)
+            }
+            if (flags and FLAG_OFFLOADED != 0) {
+                segment.offloadLocation = readString(buf)
+                segment.offloadTimestamp = readVarLong(buf)
+            }
+            segment.offloadedLedgerDeleted = flags and FLAG_OFFLOADED_LEDGER_DELETED != 0
+            val points = readVarLong(buf).toInt()
+            val timeIndex = ArrayList<TimeIndexEntry>(points)
+            var timestamp = if (segment.timestamp == 0L) lastTimestamp else segment.timestamp
+            var entryId = 0L
+            for (j in 0 until points) {
+                timestamp += readVarLong(buf)
+                entryId += readVarLong(buf)
+                timeIndex.add(TimeIndexEntry(timestamp, entryId))
+            }
+            segment.timeIndex = timeIndex
+            if (segment.timestamp != 0L) {
+                lastTimestamp = segment.timestamp
+            }
+            segments.add(segment)
+        }
+        log.segments = segments
+        if (formatVersion >= 2 && buf.readByte().toInt() != 0) {
+            log.compactedLedgerId = readVarLong(buf)
+            log.compactionHorizon = Offset(readVarLong(buf), readVarLong(buf), readVarLong(buf).toInt())
+        }
+        if (formatVersion >= 3 && buf.readByte().toInt() != 0) {
+            log.storagePolicy = StoragePolicy(readVarLong(buf).toInt(), readVarLong(buf).toInt(), readVarLong(buf).toInt(),
+                    BookKeeper.DigestType.valueOf(readString(buf)))
+        }
+        if (formatVersion >= 4) {
+            log.markedEntriesSinceLedgerId = readVarLong(buf)
+        }
+        return log
+    }
+
+    private fun writeString(buf: ByteBuf, value: String) {
+        val bytes = value.toByteArray(StandardCharsets.UTF_8)
+        writeVarLong(buf, bytes.size.toLong())
+        buf.writeBytes(bytes)
+    }
+
+    private fun readString(buf: ByteBuf): String {
+        val length = readVarLong(buf).toInt()
+        val value = buf.toString(buf.readerIndex(), length, StandardCharsets.UTF_8)
+        buf.skipBytes(length)
+        return value
+    }
+
+    private fun writeVarLong(buf: ByteBuf, value: Long) {
+        var v = (value shl 1) xor (value shr 63)
+        while (v and 0x7FL.inv() != 0L) {
+            buf.writeByte(((v and 0x7F) or 0x80).toInt())
+            v = v ushr 7
+        }
+        buf.writeByte(v.toInt())
+    }
+
+    private fun readVarLong(buf: ByteBuf): Long {
+        var result = 0L
+        var shift = 0
+        while (shift < 64) {
+            val b = buf.readByte().toLong()
+            result = result or ((b and 0x7F) shl shift)
+            if (b and 0x80 == 0L) {
+                return (result ushr 1) xor -(result and 1)
+            }
+            shift += 7
+        }
+        throw IllegalArgumentException("Malformed varint")
+    }
+}
@@ -1,6 +1,17 @@
 package com.song.fastmq.storage.storage.metadata
 
+import java.util.*
+
 /**
+ * [timeIndex] holds a point every [com.song.fastmq.storage.storage.config.MessageStorageConfig.timeIndexIntervalMs],
+ * in entry order. [timestamp] is when the ledger was closed, 0 while it is still written.
+ *
+ * Once the ledger is offloaded, [offloadLocation] is where the copy is and [offloadTimestamp] when it was made,
+ * [offloadedLedgerDeleted] tells whether the ledger has been deleted from BookKeeper since.
+ *
  * Created by song on 2017/11/5.
  */
-data class LogSegment(var ledgerId: Long = 0, var entries: Long = 0, var size: Long = 0, var timestamp: Long = 0)
+data class LogSegment(var ledgerId: Long = 0, var entries: Long = 0, var size: Long = 0, var timestamp: Long = 0,
+                      var timeIndex: List<TimeIndexEntry> = Collections.emptyList(),
+                      var offloadLocation: String? = null, var offloadTimestamp: Long = 0,
+                      var offloadedLedgerDeleted: Boolean = false)
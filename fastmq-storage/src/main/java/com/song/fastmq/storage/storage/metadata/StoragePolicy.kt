@@ -0,0 +1,26 @@
+package com.song.fastmq.storage.storage.metadata
+
+import com.google.common.base.Preconditions.checkArgument
+import com.song.fastmq.storage.storage.config.BookKeeperConfig
+import org.apache.bookkeeper.client.BookKeeper
+
+/**
+ * How the ledgers of a topic are written: every entry goes to [writeQuorumSize] of [ensembleSize] bookies and
+ * is acknowledged once [ackQuorumSize] of them have it. [BookKeeper.DigestType.CRC32] is cheaper to compute than
+ * [BookKeeper.DigestType.MAC], which also protects the entries against tampering.
+ *
+ * @author song
+ */
+data class StoragePolicy(var ensembleSize: Int = 3, var writeQuorumSize: Int = 2, var ackQuorumSize: Int = 2,
+                         var digestType: BookKeeper.DigestType = BookKeeper.DigestType.MAC) {
+
+    fun validate() {
+        checkArgument(ackQuorumSize in 1..writeQuorumSize && writeQuorumSize <= ensembleSize,
+                "Expected ensemble >= write quorum >= ack quorum >= 1: %s", this)
+    }
+
+    companion object {
+
+        fun of(config: BookKeeperConfig) = StoragePolicy(config.ensSize, config.writeQuorumSize, config.ackQuorumSize, config.digestType)
+    }
+}
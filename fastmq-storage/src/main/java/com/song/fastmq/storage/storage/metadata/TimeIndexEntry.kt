@@ -0,0 +1,8 @@
+package com.song.fastmq.storage.storage.metadata
+
+/**
+ * A point of the sparse publish time index of a ledger, [entryId] was appended at [timestamp].
+ *
+ * @author song
+ */
+data class TimeIndexEntry(var timestamp: Long = 0, var entryId: Long = 0)
@@ -0,0 +1,57 @@
+package com.song.fastmq.storage.storage
+
+import io.netty.buffer.Unpooled
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+/**
+ * @author song
+ */
+class BatchEntryFormatTest {
+
+    @Test
+    fun encodeAndDecode() {
+        val payloads = listOf(
+                Unpooled.wrappedBuffer("a".toByteArray()),
+                Unpooled.wrappedBuffer(ByteArray(300) { 1 }),
+                Unpooled.wrappedBuffer("hello".toByteArray()))
+        val entry = BatchEntryFormat.encode(payloads)
+        assertTrue(BatchEntryFormat.isBatch(entry))
+
+        val decoded = BatchEntryFormat.decode(entry, true)
+        assertEquals(3, decoded.size)
+        assertEquals(payloads[0], decoded[0])
+        assertEquals(payloads[1], decoded[1])
+        assertEquals(payloads[2], decoded[2])
+        assertEquals(0, entry.readerIndex())
+        entry.release()
+    }
+
+    @Test
+    fun singleMessageStartingWithMagic() {
+        val payload = Unpooled.buffer().writeInt(BatchEntryFormat.MAGIC).writeBytes("hello".toByteArray())
+        val entry = BatchEntryFormat.wrapSingle(payload.retainedSlice())
+
+        val decoded = BatchEntryFormat.decode(entry, true)
+        assertEquals(1, decoded.size)
+        assertEquals(payload, decoded[0])
+        entry.release()
+        assertEquals(1, payload.refCnt())
+    }
+
+    @Test
+    fun unmarkedEntryIsSingleMessage() {
+        val entry = Unpooled.wrappedBuffer("hello".toByteArray())
+        val decoded = BatchEntryFormat.decode(entry, false)
+        assertEquals(1, decoded.size)
+        assertEquals(entry, decoded[0])
+    }
+
+    @Test
+    fun plainEntryIsNotBatch() {
+        assertFalse(BatchEntryFormat.isBatch(Unpooled.wrappedBuffer("hello".toByteArray())))
+        assertFalse(BatchEntryFormat.isBatch(Unpooled.EMPTY_BUFFER))
+    }
+}
@@ -0,0 +1,30 @@
+package com.song.fastmq.storage.storage
+
+import com.song.fastmq.common.message.MessageId
+import io.netty.buffer.Unpooled
+import org.junit.Test
+import kotlin.test.assertEquals
+
+/**
+ * @author song
+ */
+class CompactedEntryFormatTest {
+
+    @Test
+    fun encodeAndDecode() {
+        val offsets = listOf(Offset(3, 10), Offset(3, 12, 4), Offset(7, 0))
+        val payloads = listOf(
+                Unpooled.wrappedBuffer("a".toByteArray()),
+                Unpooled.wrappedBuffer(ByteArray(300) { 1 }),
+                Unpooled.EMPTY_BUFFER)
+        val entry = CompactedEntryFormat.encode(offsets, payloads)
+
+        val decoded = CompactedEntryFormat.decode(entry)
+        assertEquals(3, decoded.size)
+        assertEquals(MessageId(3, 12, 4), decoded[1].messageId)
+        assertEquals(payloads[1], decoded[1].buffer)
+        assertEquals(0, decoded[2].buffer.readableBytes())
+        assertEquals(0, entry.readerIndex())
+        entry.release()
+    }
+}
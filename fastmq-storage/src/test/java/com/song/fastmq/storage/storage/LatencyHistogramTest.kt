@@ -0,0 +1,50 @@
+package com.song.fastmq.storage.storage
+
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+/**
+ * @author song
+ */
+class LatencyHistogramTest {
+
+    @Test
+    fun bucketsCoverTheirValues() {
+        var value = 0L
+        while (value < 1L shl 40) {
+            val bucket = LatencyHistogram.bucketOf(value)
+            assertTrue(value <= LatencyHistogram.upperBoundOf(bucket), "value $value bucket $bucket")
+            assertTrue(bucket == 0 || value > LatencyHistogram.upperBoundOf(bucket - 1), "value $value bucket $bucket")
+            value = value * 5 / 4 + 1
+        }
+    }
+
+    @Test
+    fun percentiles() {
+        val histogram = LatencyHistogram()
+        assertEquals(0.0, histogram.getPercentileMs(0.99))
+        for (i in 1..1000L) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i))
+        }
+        assertEquals(1000, histogram.getCount())
+        assertEquals(500.5, histogram.getMeanMs())
+        assertEquals(1000.0, histogram.getMaxMs())
+        val p50 = histogram.getPercentileMs(0.5)
+        assertTrue(p50 >= 500 && p50 <= 500 * 1.125, "p50 $p50")
+        val p99 = histogram.getPercentileMs(0.99)
+        assertTrue(p99 >= 990 && p99 <= 1000, "p99 $p99")
+    }
+
+    @Test
+    fun rollInterval() {
+        val stats = AppendStats()
+        stats.recordAppend(1000, 2000000, 3000000, 10, 1024)
+        val interval = stats.rollInterval()
+        assertEquals(1, interval.appendLatency.getCount())
+        assertEquals(0, stats.getInterval().appendLatency.getCount())
+        assertEquals(10, stats.getMessages())
+        assertEquals(1024, stats.getBytes())
+    }
+}
@@ -0,0 +1,43 @@
+package com.song.fastmq.storage.storage
+
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+/**
+ * @author song
+ */
+class PendingAppendLimiterTest {
+
+    @Test
+    fun topicAndBrokerBudgets() {
+        val broker = PendingAppendLimiter(150)
+        val topic1 = PendingAppendLimiter(100, broker)
+        val topic2 = PendingAppendLimiter(100, broker)
+
+        assertTrue(topic1.tryAcquire(80))
+        assertFalse(topic1.tryAcquire(30))
+        assertTrue(topic2.tryAcquire(60))
+        // Topic 2 still has room but the broker doesn't
+        assertFalse(topic2.tryAcquire(20))
+        assertEquals(60, topic2.getPendingBytes())
+        assertEquals(140, broker.getPendingBytes())
+
+        topic1.release(80)
+        assertEquals(60, broker.getPendingBytes())
+        assertTrue(topic2.tryAcquire(20))
+    }
+
+    @Test
+    fun largeMessageGoesAloneAndNoLimit() {
+        val limiter = PendingAppendLimiter(100)
+        assertTrue(limiter.tryAcquire(500))
+        assertFalse(limiter.tryAcquire(1))
+        limiter.release(500)
+
+        val unlimited = PendingAppendLimiter(0)
+        assertTrue(unlimited.tryAcquire(Long.MAX_VALUE / 2))
+        assertTrue(unlimited.tryAcquire(Long.MAX_VALUE / 2))
+    }
+}
@@ -0,0 +1,29 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.song.fastmq.storage.storage.Offset
+import io.netty.buffer.Unpooled
+import org.junit.Test
+import kotlin.test.assertEquals
+
+/**
+ * @author song
+ */
+class BookKeeperOffsetStorageImplTest {
+
+    @Test
+    fun replayEntries() {
+        val snapshot = BookKeeperOffsetStorageImpl.encode(listOf(
+                "c1" to Offset(3, 100),
+                "c2" to Offset(3, 200, 5),
+                "消费者" to Offset(4, 0)))
+        val update = BookKeeperOffsetStorageImpl.encode(listOf(
+                "c1" to Offset(4, 10),
+                "c2" to null))
+
+        val offsets = HashMap<String, Offset>()
+        BookKeeperOffsetStorageImpl.decode(Unpooled.wrappedBuffer(snapshot), offsets)
+        assertEquals(mapOf("c1" to Offset(3, 100), "c2" to Offset(3, 200, 5), "消费者" to Offset(4, 0)), offsets)
+        BookKeeperOffsetStorageImpl.decode(Unpooled.wrappedBuffer(update), offsets)
+        assertEquals(mapOf("c1" to Offset(4, 10), "消费者" to Offset(4, 0)), offsets)
+    }
+}
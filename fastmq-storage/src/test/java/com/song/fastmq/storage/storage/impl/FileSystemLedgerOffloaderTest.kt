@@ -0,0 +1,81 @@
+package com.song.fastmq.storage.storage.impl
+
+import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.Unpooled
+import org.apache.bookkeeper.client.LedgerEntry
+import org.apache.bookkeeper.client.LedgerHandle
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.mockito.Matchers.anyLong
+import org.mockito.Mockito.*
+import java.io.File
+import java.io.IOException
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+import kotlin.test.fail
+
+/**
+ * @author song
+ */
+class FileSystemLedgerOffloaderTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @Test
+    fun offloadAndRead() {
+        val entries = (0 until 25).map { "entry-$it".toByteArray() }
+        val lh = mock(LedgerHandle::class.java)
+        `when`(lh.id).thenReturn(7L)
+        `when`(lh.lastAddConfirmed).thenReturn(entries.size - 1L)
+        `when`(lh.readEntries(anyLong(), anyLong())).thenAnswer {
+            val first = it.arguments[0] as Long
+            val last = it.arguments[1] as Long
+            Collections.enumeration((first..last).map { entryId ->
+                val entry = mock(LedgerEntry::class.java)
+                `when`(entry.entryBuffer).thenReturn(Unpooled.wrappedBuffer(entries[entryId.toInt()]))
+                entry
+            })
+        }
+        val offloader = FileSystemLedgerOffloader(folder.root.absolutePath, 10, 7)
+        val location = offloader.offload("test/topic", lh).blockingFirst()
+
+        val offloaded = offloader.open(location)
+        assertEquals(24L, offloaded.getLastEntryId())
+        val read = offloaded.readEntries(12, 20)
+        assertEquals((12..20).map { "entry-$it" }, read.map { String(ByteBufUtil.getBytes(it)) })
+        read.forEach { it.release() }
+        assertEquals("entry-0", String(ByteBufUtil.getBytes(offloaded.readEntries(0, 0)[0])))
+
+        // A read in progress keeps it readable past the close
+        assertTrue(offloaded.tryRetain())
+        offloaded.close()
+        assertEquals("entry-3", String(ByteBufUtil.getBytes(offloaded.readEntries(3, 3)[0])))
+        offloaded.release()
+        assertFalse(offloaded.tryRetain())
+
+        offloader.delete(location)
+        assertFalse(File(location).exists())
+        offloader.close()
+    }
+
+    @Test
+    fun refuseLedgerTooLargeToMap() {
+        val lh = mock(LedgerHandle::class.java)
+        `when`(lh.id).thenReturn(8L)
+        `when`(lh.lastAddConfirmed).thenReturn(1000L)
+        `when`(lh.length).thenReturn(3L * 1024 * 1024 * 1024)
+        val offloader = FileSystemLedgerOffloader(folder.root.absolutePath)
+        try {
+            offloader.offload("test/topic", lh).blockingFirst()
+            fail("Expect the ledger to be refused")
+        } catch (e: RuntimeException) {
+            assertTrue(e.cause is IOException)
+        }
+        verify(lh, never()).readEntries(anyLong(), anyLong())
+        offloader.close()
+    }
+}
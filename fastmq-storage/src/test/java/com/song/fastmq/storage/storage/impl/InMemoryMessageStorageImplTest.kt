@@ -0,0 +1,88 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.song.fastmq.common.message.Message
+import com.song.fastmq.storage.storage.ConsumerInfo
+import com.song.fastmq.storage.storage.Offset
+import com.song.fastmq.storage.storage.concurrent.AsyncCallbacks
+import com.song.fastmq.storage.storage.config.MemoryStorageConfig
+import com.song.fastmq.storage.storage.support.NoMoreMessageException
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+import kotlin.test.fail
+
+/**
+ * @author song
+ */
+class InMemoryMessageStorageImplTest {
+
+    private lateinit var factory: InMemoryMessageStorageFactoryImpl
+
+    @Before
+    fun setUp() {
+        val config = MemoryStorageConfig()
+        config.maxMessagesPerTopic = 10
+        factory = InMemoryMessageStorageFactoryImpl(config)
+    }
+
+    @After
+    fun tearDown() {
+        factory.close()
+    }
+
+    @Test
+    fun oldestMessagesAreDropped() {
+        val storage = factory.open("test-topic").blockingFirst()
+        val results = storage.appendMessages((0 until 25).map { Message(data = "message-$it".toByteArray()) }).blockingFirst()
+        assertEquals(24, results.last().msgId.entryId)
+        assertEquals(25, storage.getNumberOfMessages())
+
+        // A reader that fell behind skips to the oldest message kept
+        val batch = storage.queryMessage(Offset(0, 3), 100).blockingFirst()
+        assertEquals((15 until 25).map { "message-$it" }, batch.messages.map { String(it.data) })
+        assertEquals(Offset(0, 25), batch.nextReadOffset)
+        batch.release()
+        try {
+            storage.queryMessage(batch.nextReadOffset, 100).blockingFirst()
+            fail("Nothing more to read")
+        } catch (e: RuntimeException) {
+            assertTrue(e.cause is NoMoreMessageException)
+        }
+    }
+
+    @Test
+    fun waitForNewMessages() {
+        val storage = factory.open("test-topic").blockingFirst()
+        val read = storage.queryMessage(Offset(0, 0), 10, 5000)
+                .timeout(5, TimeUnit.SECONDS)
+                .toFuture()
+        Thread.sleep(100)
+        assertEquals(Offset(0, 0), storage.appendMessage(Message(data = "late".toByteArray())).blockingFirst())
+        val batch = read.get()
+        assertEquals(listOf("late"), batch.messages.map { String(it.data) })
+        batch.release()
+    }
+
+    @Test
+    fun slowestOffset() {
+        val offsetStorage = factory.offsetStorage
+        offsetStorage.commitOffset(ConsumerInfo("c1", "test-topic"), Offset(0, 12))
+        offsetStorage.commitOffset(ConsumerInfo("c2", "test-topic"), Offset(0, 7))
+        offsetStorage.commitOffset(ConsumerInfo("c3", "other-topic"), Offset(0, 1))
+        assertEquals(Offset(0, 0), offsetStorage.queryOffset(ConsumerInfo("c4", "new-topic")))
+        var slowest: Offset? = null
+        offsetStorage.asyncQuerySlowestOffset("test-topic", object : AsyncCallbacks.ReadOffsetCallback {
+            override fun onComplete(offset: Offset?) {
+                slowest = offset
+            }
+
+            override fun onThrowable(throwable: Throwable) {
+                fail(throwable.message)
+            }
+        })
+        assertEquals(Offset(0, 7), slowest)
+    }
+}
@@ -0,0 +1,49 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.google.common.io.Files
+import com.song.fastmq.storage.storage.Offset
+import org.junit.After
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+/**
+ * @author song
+ */
+class KeyOffsetMapTest {
+
+    private val directory = Files.createTempDir()
+
+    @After
+    fun tearDown() {
+        directory.deleteRecursively()
+    }
+
+    @Test
+    fun latestOffsetOfEveryKey() {
+        KeyOffsetMap(100, directory).use {
+            it.put("a", Offset(1, 0))
+            it.put("b", Offset(1, 1))
+            it.put("a", Offset(1, 2))
+            it.put("c", Offset(2, 0, 1))
+            assertEquals(0, it.getSpilledRuns())
+            assertEquals(listOf(Offset(1, 1), Offset(1, 2), Offset(2, 0, 1)), it.latestOffsets())
+        }
+    }
+
+    @Test
+    fun mergeSpilledRuns() {
+        val expected = HashMap<String, Offset>()
+        KeyOffsetMap(10, directory).use {
+            for (i in 0 until 1000L) {
+                val key = "key-${(i * 7919) % 37}"
+                val offset = Offset(i / 100, i % 100)
+                it.put(key, offset)
+                expected[key] = offset
+            }
+            assertTrue(it.getSpilledRuns() > 1)
+            assertEquals(expected.values.sorted(), it.latestOffsets())
+        }
+        assertEquals(0, directory.listFiles().size)
+    }
+}
@@ -0,0 +1,78 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.song.fastmq.storage.storage.config.BookKeeperConfig
+import org.apache.bookkeeper.client.AsyncCallback
+import org.apache.bookkeeper.client.BKException
+import org.apache.bookkeeper.client.BookKeeper
+import org.apache.bookkeeper.client.LedgerHandle
+import org.junit.Before
+import org.junit.Test
+import org.mockito.Matchers.any
+import org.mockito.Matchers.anyLong
+import org.mockito.Mockito.*
+import kotlin.test.assertEquals
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+/**
+ * @author song
+ */
+class LedgerHandleCacheTest {
+
+    private lateinit var bookKeeper: BookKeeper
+
+    private val openCallbacks = ArrayList<Pair<Long, AsyncCallback.OpenCallback>>()
+
+    @Before
+    fun setUp() {
+        bookKeeper = mock(BookKeeper::class.java)
+        doAnswer {
+            openCallbacks.add(Pair(it.arguments[0] as Long, it.arguments[3] as AsyncCallback.OpenCallback))
+            null
+        }.`when`(bookKeeper).asyncOpenLedgerNoRecovery(anyLong(), any(), any(), any(), any())
+    }
+
+    @Test
+    fun concurrentOpensAreCollapsed() {
+        val cache = LedgerHandleCache("test", bookKeeper, BookKeeperConfig(), 10, 60000)
+        val first = cache.get(1)
+        val second = cache.get(1)
+        assertSame(first, second)
+        assertEquals(1, openCallbacks.size)
+
+        val lh = mockHandle(1)
+        openCallbacks[0].second.openComplete(BKException.Code.OK, lh, null)
+        assertSame(lh, cache.get(1).get())
+        assertEquals(2, cache.stats().hitCount())
+        assertEquals(1, cache.stats().missCount())
+    }
+
+    @Test
+    fun failedOpenIsRetried() {
+        val cache = LedgerHandleCache("test", bookKeeper, BookKeeperConfig(), 10, 60000)
+        val future = cache.get(1)
+        openCallbacks[0].second.openComplete(BKException.Code.NoSuchLedgerExistsException, null, null)
+        assertTrue(future.isCompletedExceptionally)
+
+        cache.get(1)
+        assertEquals(2, openCallbacks.size)
+    }
+
+    @Test
+    fun evictedHandlesAreClosed() {
+        val cache = LedgerHandleCache("test", bookKeeper, BookKeeperConfig(), 1, 60000)
+        val lh = mockHandle(1)
+        cache.get(1)
+        openCallbacks[0].second.openComplete(BKException.Code.OK, lh, null)
+
+        cache.get(2)
+        assertEquals(1, cache.size())
+        verify(lh).asyncClose(any(), any())
+    }
+
+    private fun mockHandle(ledgerId: Long): LedgerHandle {
+        val lh = mock(LedgerHandle::class.java)
+        `when`(lh.id).thenReturn(ledgerId)
+        return lh
+    }
+}
@@ -0,0 +1,146 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.song.fastmq.common.message.Message
+import com.song.fastmq.storage.storage.Offset
+import com.song.fastmq.storage.storage.config.LocalStorageConfig
+import com.song.fastmq.storage.storage.config.MessageStorageConfig
+import com.song.fastmq.storage.storage.support.NoMoreMessageException
+import org.apache.bookkeeper.util.OrderedSafeExecutor
+import org.junit.After
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+import kotlin.test.fail
+
+/**
+ * @author song
+ */
+class LocalMessageStorageImplTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private lateinit var executor: OrderedSafeExecutor
+
+    private val config = LocalStorageConfig()
+
+    @Before
+    fun setUp() {
+        executor = OrderedSafeExecutor.newBuilder().build()
+        config.segmentSizeBytes = 1024
+        config.maxEntriesPerSegment = 16
+        config.readAheadBytes = 256
+    }
+
+    @After
+    fun tearDown() {
+        executor.shutdown()
+    }
+
+    private fun open(): LocalMessageStorageImpl {
+        val storage = LocalMessageStorageImpl("test-topic", folder.root.toPath(), executor, config)
+        storage.initialize().blockingSubscribe()
+        return storage
+    }
+
+    private fun readAll(storage: LocalMessageStorageImpl): List<String> {
+        val result = ArrayList<String>()
+        var offset = Offset(0, 0)
+        while (true) {
+            val batch = try {
+                storage.queryMessage(offset, 7).blockingFirst()
+            } catch (e: RuntimeException) {
+                assertTrue(e.cause is NoMoreMessageException)
+                return result
+            }
+            batch.messages.forEach { result.add(String(it.data)) }
+            batch.release()
+            offset = batch.nextReadOffset
+        }
+    }
+
+    @Test
+    fun appendAndReadAcrossSegments() {
+        val storage = open()
+        val offsets = (0 until 50).map { storage.appendMessage(Message(data = "message-$it".toByteArray())).blockingFirst() }
+        assertEquals(Offset(1, 0), offsets[0])
+        assertEquals(Offset(1, 15), offsets[15])
+        assertEquals(Offset(2, 0), offsets[16])
+        assertEquals(50, storage.getNumberOfMessages())
+        assertEquals((0 until 50).map { "message-$it" }, readAll(storage))
+        storage.close()
+
+        // Everything is recovered after a restart and appends go on after it
+        val reopened = open()
+        assertEquals(50, reopened.getNumberOfMessages())
+        assertEquals(Offset(4, 2), reopened.appendMessage(Message(data = "message-50".toByteArray())).blockingFirst())
+        assertEquals((0..50).map { "message-$it" }, readAll(reopened))
+        reopened.close()
+    }
+
+    @Test
+    fun appendBurst() {
+        val storage = open()
+        val results = storage.appendMessages((0 until 20).map { Message(data = "message-$it".toByteArray()) }).blockingFirst()
+        assertTrue(results.all { it.isOk() })
+        assertEquals((0 until 20).map { "message-$it" }, readAll(storage))
+        storage.close()
+    }
+
+    @Test
+    fun findOffsetByTime() {
+        val storage = open()
+        (0 until 20).forEach { storage.appendMessage(Message(data = "old-$it".toByteArray())).blockingFirst() }
+        Thread.sleep(10)
+        val timestamp = System.currentTimeMillis()
+        val first = storage.appendMessage(Message(data = "new".toByteArray())).blockingFirst()
+        assertEquals(first, storage.findOffsetByTime(timestamp).blockingFirst())
+        assertEquals(Offset(first.ledgerId, first.entryId + 1), storage.findOffsetByTime(timestamp + 60000).blockingFirst())
+        storage.close()
+    }
+
+    @Test
+    fun waitForNewMessages() {
+        val storage = open()
+        val read = storage.queryMessage(Offset(1, 0), 10, 5000)
+                .timeout(5, TimeUnit.SECONDS)
+                .toFuture()
+        Thread.sleep(100)
+        storage.appendMessage(Message(data = "late".toByteArray())).blockingFirst()
+        val batch = read.get()
+        assertEquals(listOf("late"), batch.messages.map { String(it.data) })
+        batch.release()
+        try {
+            storage.queryMessage(batch.nextReadOffset, 10, 50).blockingFirst()
+            fail("Nothing more to read")
+        } catch (e: RuntimeException) {
+            assertTrue(e.cause is NoMoreMessageException)
+        }
+        storage.close()
+    }
+
+    @Test
+    fun trimConsumedSegments() {
+        val storageConfig = MessageStorageConfig()
+        storageConfig.retentionSizeBytes = 0
+        val storage = LocalMessageStorageImpl("test-topic", folder.root.toPath(), executor, config, storageConfig)
+        storage.initialize().blockingSubscribe()
+        (0 until 50).forEach { storage.appendMessage(Message(data = "message-$it".toByteArray())).blockingFirst() }
+
+        // Segment 2 is still being read
+        storage.updateReadPosition("reader", Offset(2, 3))
+        storage.trimConsumedSegments().blockingSubscribe()
+        assertEquals(34, storage.getNumberOfMessages())
+        assertEquals((16 until 50).map { "message-$it" }, readAll(storage))
+
+        storage.removeReader("reader")
+        storage.trimConsumedSegments().blockingSubscribe()
+        assertEquals(2, storage.getNumberOfMessages())
+        assertEquals(listOf("message-48", "message-49"), readAll(storage))
+        storage.close()
+    }
+}
@@ -0,0 +1,119 @@
+package com.song.fastmq.storage.storage.impl
+
+import com.song.fastmq.storage.storage.Offset
+import io.netty.buffer.Unpooled
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+/**
+ * @author song
+ */
+class MessageCacheImplTest {
+
+    @Test
+    fun getLeadingEntries() {
+        val cache = MessageCacheImpl("test", 1024)
+        for (i in 0L..4L) {
+            assertTrue(cache.insert(1L, i, Unpooled.wrappedBuffer("entry-$i".toByteArray())))
+        }
+        val entries = cache.getLeadingEntries(1L, 1L, 3L)
+        assertEquals(3, entries.size)
+        assertEquals("entry-2", String(ByteArray(entries[1].readableBytes()).also { entries[1].getBytes(0, it) }))
+        entries.forEach { it.release() }
+        assertEquals(3, cache.getHitCount())
+
+        assertTrue(cache.getLeadingEntries(1L, 5L, 6L).isEmpty())
+        assertEquals(2, cache.getMissCount())
+    }
+
+    @Test
+    fun getLeadingEntriesUpToGap() {
+        val cache = MessageCacheImpl("test", 1024)
+        val data = Unpooled.wrappedBuffer(ByteArray(4))
+        for (i in listOf(0L, 1L, 2L, 4L)) {
+            cache.insert(1L, i, data)
+        }
+        val entries = cache.getLeadingEntries(1L, 0L, 5L)
+        assertEquals(3, entries.size)
+        entries.forEach { it.release() }
+        assertTrue(cache.getLeadingEntries(1L, 3L, 5L).isEmpty())
+        cache.clear()
+        assertEquals(1, data.refCnt())
+    }
+
+    @Test
+    fun evictWhenFull() {
+        val cache = MessageCacheImpl("test", 10)
+        val data = Unpooled.wrappedBuffer(ByteArray(4))
+        cache.insert(1L, 0L, data)
+        cache.insert(1L, 1L, data)
+        cache.insert(1L, 2L, data)
+        assertEquals(8, cache.getSize())
+        assertEquals(1, cache.getEvictionCount())
+        assertTrue(cache.getLeadingEntries(1L, 0L, 0L).isEmpty())
+        cache.clear()
+        assertEquals(1, data.refCnt())
+    }
+
+    @Test
+    fun copyEntriesPinningLargerBuffers() {
+        val cache = MessageCacheImpl("test", 1024)
+        val network = Unpooled.buffer(4096).writeBytes(ByteArray(4096))
+        assertTrue(cache.insert(1L, 0L, network.slice(0, 16)))
+        assertEquals(1, network.refCnt())
+        assertEquals(16, cache.getSize())
+
+        val entry = Unpooled.buffer(20).writeBytes(ByteArray(20))
+        assertTrue(cache.insert(1L, 1L, entry.slice(2, 16)))
+        assertEquals(2, entry.refCnt())
+        assertEquals(36, cache.getSize())
+
+        assertTrue(!cache.insert(1L, 2L, network.slice(0, 2048)))
+        cache.clear()
+        assertEquals(0, cache.getSize())
+        assertEquals(1, entry.refCnt())
+    }
+
+    @Test
+    fun evictLargestCacheOverBudget() {
+        val budget = MessageCacheBudget(20)
+        val small = MessageCacheImpl("small", 1024, budget)
+        val large = MessageCacheImpl("large", 1024, budget)
+        val data = Unpooled.wrappedBuffer(ByteArray(4))
+        small.insert(1L, 0L, data)
+        for (i in 0L..3L) {
+            large.insert(1L, i, data)
+        }
+        assertEquals(20, budget.getSize())
+
+        small.insert(1L, 1L, data)
+        assertEquals(20, budget.getSize())
+        assertEquals(8, small.getSize())
+        assertEquals(12, large.getSize())
+        assertTrue(large.getLeadingEntries(1L, 0L, 0L).isEmpty())
+
+        small.close()
+        large.close()
+        assertEquals(0, budget.getSize())
+        assertEquals(1, data.refCnt())
+    }
+
+    @Test
+    fun invalidateEntriesBefore() {
+        val cache = MessageCacheImpl("test", 1024)
+        val data = Unpooled.wrappedBuffer(ByteArray(4))
+        for (i in 0L..4L) {
+            cache.insert(1L, i, data)
+        }
+        cache.insert(2L, 0L, data)
+        cache.invalidateEntriesBefore(Offset(1L, 3L))
+        assertEquals(12, cache.getSize())
+        assertEquals(3, cache.getEvictionCount())
+        cache.invalidateLedger(1L)
+        assertEquals(4, cache.getSize())
+        cache.clear()
+        assertEquals(0, cache.getSize())
+        assertEquals(1, data.refCnt())
+    }
+}
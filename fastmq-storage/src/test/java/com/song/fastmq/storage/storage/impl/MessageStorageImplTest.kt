@@ -1,6 +1,7 @@
 package com.song.fastmq.storage.storage.impl
 
 import com.song.fastmq.common.message.Message
+import com.song.fastmq.common.message.MessageId
 import com.song.fastmq.common.utils.JsonUtils
 import com.song.fastmq.common.utils.OnCompletedObserver
 import com.song.fastmq.storage.storage.BatchMessage
@@ -8,6 +9,7 @@ import com.song.fastmq.storage.storage.ConsumerInfo
 import com.song.fastmq.storage.storage.Offset
 import com.song.fastmq.storage.storage.OffsetStorage
 import com.song.fastmq.storage.storage.config.BookKeeperConfig
+import com.song.fastmq.storage.storage.config.MessageStorageConfig
 import com.song.fastmq.storage.storage.support.NoMoreMessageException
 import org.apache.bookkeeper.client.BookKeeper
 import org.apache.bookkeeper.util.OrderedSafeExecutor
@@ -40,6 +42,8 @@ class MessageStorageImplTest {
 
     private lateinit var offsetStorage: OffsetStorage
 
+    private lateinit var metadataStorage: MetadataStorageImpl
+
     private lateinit var curatorFramework: CuratorFramework
 
     private lateinit var bookKeeper: BookKeeper
@@ -55,7 +59,7 @@ class MessageStorageImplTest {
         curatorFramework.start()
         val asyncCuratorFramework = AsyncCuratorFramework.wrap(curatorFramework)
         val connectionString = "127.0.0.1:2181"
-        val metadataStorage = MetadataStorageImpl(asyncCuratorFramework)
+        metadataStorage = MetadataStorageImpl(asyncCuratorFramework)
         offsetStorage = ZkOffsetStorageImpl(metadataStorage, asyncCuratorFramework)
         bookKeeper = BookKeeper(connectionString)
         messageStorage = MessageStorageImpl("test", bookKeeper, BookKeeperConfig(), metadataStorage,
@@ -93,6 +97,19 @@ class MessageStorageImplTest {
         assertEquals(total + 10, this.messageStorage.numberOfMessages.get())
     }
 
+    @Test
+    fun appendMessages() {
+        val total = this.messageStorage.getNumberOfMessages()
+        val messages = (1..10).map { Message(data = "Hello World : $it".toByteArray()) }
+        val results = this.messageStorage.appendMessages(messages).blockingFirst()
+        assertEquals(10, results.size)
+        assertTrue(results.all { it.isOk() })
+        for (i in 1 until results.size) {
+            assertTrue(results[i].msgId.entryId > results[i - 1].msgId.entryId)
+        }
+        assertEquals(total + 10, this.messageStorage.numberOfMessages.get())
+    }
+
     @Test
     fun appendMessageAsync() {
         val latch = CountDownLatch(1)
@@ -188,6 +205,7 @@ class MessageStorageImplTest {
                         }
                         println(it.messageId.ledgerId.toString() + "->" + String(it.data))
                     }
+                    t.release()
                 }
 
                 override fun onError(e: Throwable) {
@@ -202,6 +220,211 @@ class MessageStorageImplTest {
         }
     }
 
+    @Test
+    fun rolloverLedger() {
+        val storageConfig = MessageStorageConfig()
+        storageConfig.maxEntriesPerLedger = 5
+        storageConfig.minLedgerRolloverTimeMs = 0
+        val storage = MessageStorageImpl("test-rollover", bookKeeper, BookKeeperConfig(), metadataStorage,
+                messageStorage.executor, storageConfig)
+        storage.initialize().blockingSubscribe(object : OnCompletedObserver<Void>() {
+            override fun onError(e: Throwable) {
+                fail(e.message)
+            }
+        })
+        val offsets = (1..12).map {
+            storage.appendMessage(Message(data = "Hello World : $it".toByteArray())).blockingFirst()
+        }
+        assertEquals(3, offsets.map { it.ledgerId }.distinct().size)
+        val log = metadataStorage.getLogInfo("test-rollover").blockingFirst()
+        assertTrue(log.segments.any { it.entries == 5L })
+        storage.close()
+    }
+
+    @Test
+    fun rolloverToStandbyLedger() {
+        val storageConfig = MessageStorageConfig()
+        storageConfig.maxEntriesPerLedger = 5
+        storageConfig.minLedgerRolloverTimeMs = 0
+        storageConfig.standbyLedgerEnabled = true
+        val storage = MessageStorageImpl("test-standby", bookKeeper, BookKeeperConfig(), metadataStorage,
+                messageStorage.executor, storageConfig)
+        storage.initialize().blockingSubscribe(object : OnCompletedObserver<Void>() {
+            override fun onError(e: Throwable) {
+                fail(e.message)
+            }
+        })
+        val offsets = (1..12).map {
+            Thread.sleep(10)
+            storage.appendMessage(Message(data = "Hello World : $it".toByteArray())).blockingFirst()
+        }
+        assertEquals(3, offsets.map { it.ledgerId }.distinct().size)
+        logger.info("Ledger switches {}", storage.ledgerSwitchStats)
+        assertEquals(12, storage.appendStats.getMessages())
+        assertEquals(12, storage.appendStats.getInterval().appendLatency.getCount())
+        storage.close()
+    }
+
+    @Test
+    fun queryMessageAcrossLedgers() {
+        val storageConfig = MessageStorageConfig()
+        storageConfig.maxEntriesPerLedger = 5
+        storageConfig.minLedgerRolloverTimeMs = 0
+        val storage = MessageStorageImpl("test-cross-ledger", bookKeeper, BookKeeperConfig(), metadataStorage,
+                messageStorage.executor, storageConfig)
+        storage.initialize().blockingSubscribe(object : OnCompletedObserver<Void>() {
+            override fun onError(e: Throwable) {
+                fail(e.message)
+            }
+        })
+        val offsets = (1..12).map {
+            storage.appendMessage(Message(data = "Hello World : $it".toByteArray())).blockingFirst()
+        }
+        val batch = storage.queryMessage(offsets.first(), 11).blockingFirst()
+        assertEquals(offsets.subList(0, 11).map { MessageId(it.ledgerId, it.entryId) }, batch.messages.map { it.messageId })
+        assertEquals(offsets[11], batch.nextReadOffset)
+        batch.release()
+        storage.close()
+    }
+
+    @Test(timeout = 10000L)
+    fun queryMessageAcrossRolloverAppending() {
+        val storageConfig = MessageStorageConfig()
+        storageConfig.maxEntriesPerLedger = 5
+        storageConfig.minLedgerRolloverTimeMs = 0
+        storageConfig.standbyLedgerEnabled = true
+        val storage = MessageStorageImpl("test-rollover-appending", bookKeeper, BookKeeperConfig(), metadataStorage,
+                messageStorage.executor, storageConfig)
+        storage.initialize().blockingSubscribe(object : OnCompletedObserver<Void>() {
+            override fun onError(e: Throwable) {
+                fail(e.message)
+            }
+        })
+        val total = 50
+        var offset = storage.appendMessage(Message(data = "Hello World : 0".toByteArray())).blockingFirst()
+        // Appends are not waited for, so ledgers roll over while some are still in flight
+        for (i in 1 until total) {
+            storage.appendMessage(Message(data = "Hello World : $i".toByteArray())).subscribe(object : OnCompletedObserver<Offset>() {
+                override fun onError(e: Throwable) {
+                    logger.error("Append message failed", e)
+                }
+            })
+        }
+        val received = ArrayList<String>()
+        while (received.size < total) {
+            val batch = storage.queryMessage(offset, 10, 1000).blockingFirst()
+            batch.messages.forEach { received.add(String(it.data)) }
+            offset = batch.nextReadOffset
+            batch.release()
+        }
+        assertEquals((0 until total).map { "Hello World : $it" }, received)
+        storage.close()
+    }
+
+    @Test(timeout = 5000L)
+    fun tailingRead() {
+        val last = this.messageStorage.appendMessage(Message(data = "Hello World".toByteArray())).blockingFirst()
+        val endOfLog = Offset(last.ledgerId, last.entryId + 1)
+        val read = this.messageStorage.queryMessage(endOfLog, 10, 3000).toFuture()
+        Thread.sleep(100)
+        assertTrue(!read.isDone)
+        this.messageStorage.appendMessage(Message(data = "Hello Tail".toByteArray())).blockingFirst()
+        val batch = read.get()
+        assertEquals("Hello Tail", String(batch.messages[0].data))
+        batch.release()
+
+        try {
+            this.messageStorage.queryMessage(Offset(last.ledgerId, last.entryId + 2), 10, 100).blockingFirst()
+            fail("Expect no more message")
+        } catch (e: RuntimeException) {
+            assertTrue(e.cause is NoMoreMessageException)
+        }
+    }
+
+    @Test
+    fun findOffsetByTime() {
+        val storageConfig = MessageStorageConfig()
+        storageConfig.maxEntriesPerLedger = 5
+        storageConfig.minLedgerRolloverTimeMs = 0
+        storageConfig.timeIndexIntervalMs = 0
+        val storage = MessageStorageImpl("test-time-index", bookKeeper, BookKeeperConfig(), metadataStorage,
+                messageStorage.executor, storageConfig)
+        storage.initialize().blockingSubscribe(object : OnCompletedObserver<Void>() {
+            override fun onError(e: Throwable) {
+                fail(e.message)
+            }
+        })
+        val start = System.currentTimeMillis()
+        val offsets = (1..12).map {
+            Thread.sleep(5)
+            storage.appendMessage(Message(data = "Hello World : $it".toByteArray())).blockingFirst()
+        }
+        val appended = storage.appendMessage(Message(data = "Hello World".toByteArray())).blockingFirst()
+        assertEquals(offsets.first(), storage.findOffsetByTime(start).blockingFirst())
+        val offset = storage.findOffsetByTime(System.currentTimeMillis()).blockingFirst()
+        assertTrue(offset <= Offset(appended.ledgerId, appended.entryId + 1))
+        assertTrue(offset > offsets[10])
+        storage.close()
+    }
+
+    @Test
+    fun readAhead() {
+        val storageConfig = MessageStorageConfig()
+        storageConfig.maxEntriesPerLedger = 5
+        storageConfig.minLedgerRolloverTimeMs = 0
+        storageConfig.readAheadEnabled = true
+        storageConfig.readAheadChunkEntries = 2
+        val storage = MessageStorageImpl("test-read-ahead", bookKeeper, BookKeeperConfig(), metadataStorage,
+                messageStorage.executor, storageConfig)
+        storage.initialize().blockingSubscribe(object : OnCompletedObserver<Void>() {
+            override fun onError(e: Throwable) {
+                fail(e.message)
+            }
+        })
+        val offsets = (1..12).map {
+            storage.appendMessage(Message(data = "Hello World : $it".toByteArray())).blockingFirst()
+        }
+        storage.messageCache.clear()
+        storage.updateReadPosition("reader-1", offsets.first())
+        Thread.sleep(500)
+        val batch = storage.queryMessage(offsets.first(), 2).blockingFirst()
+        assertEquals(2, batch.messages.size)
+        assertEquals(2, storage.messageCache.getHitCount())
+        batch.release()
+        storage.close()
+    }
+
+    @Test
+    fun trimConsumedLedgers() {
+        val storageConfig = MessageStorageConfig()
+        storageConfig.maxEntriesPerLedger = 5
+        storageConfig.minLedgerRolloverTimeMs = 0
+        storageConfig.retentionTimeMs = 0
+        val storage = MessageStorageImpl("test-retention", bookKeeper, BookKeeperConfig(), metadataStorage,
+                messageStorage.executor, storageConfig)
+        storage.initialize().blockingSubscribe(object : OnCompletedObserver<Void>() {
+            override fun onError(e: Throwable) {
+                fail(e.message)
+            }
+        })
+        val offsets = (1..12).map {
+            storage.appendMessage(Message(data = "Hello World : $it".toByteArray())).blockingFirst()
+        }
+        val ledgerIds = offsets.map { it.ledgerId }.distinct()
+        // The reader still needs the second ledger
+        storage.updateReadPosition("reader-1", Offset(ledgerIds[1], 0))
+        Thread.sleep(10)
+        storage.trimConsumedLedgers().blockingSubscribe(object : OnCompletedObserver<Void>() {
+            override fun onError(e: Throwable) {
+                fail(e.message)
+            }
+        })
+        val segments = metadataStorage.getLogInfo("test-retention").blockingFirst().segments.map { it.ledgerId }
+        assertTrue(ledgerIds[0] !in segments)
+        assertTrue(segments.containsAll(ledgerIds.subList(1, ledgerIds.size)))
+        storage.close()
+    }
+
     @After
     @Throws(Exception::class)
     fun tearDown() {
@@ -2,6 +2,8 @@ package com.song.fastmq.storage.storage.impl
 
 import com.song.fastmq.storage.storage.MetadataStorage
 import com.song.fastmq.storage.storage.concurrent.CommonPool
+import com.song.fastmq.storage.storage.metadata.Log
+import com.song.fastmq.storage.storage.metadata.LogFormat
 import com.song.fastmq.storage.storage.metadata.LogSegment
 import org.apache.curator.framework.CuratorFrameworkFactory
 import org.apache.curator.retry.ExponentialBackoffRetry
@@ -96,6 +98,27 @@ class MetadataStorageImplTest {
         Assert.assertEquals(1, counter.get().toLong())
     }
 
+    @Test
+    fun readChangesThroughCache() {
+        val name = "HelloWorldTest2"
+        val logs = (0 until 10).map { metadataStorage.getLogInfo(name).toFuture() }.map { it.get() }
+        logs.forEach { Assert.assertEquals(logs[0].version?.version, it.version?.version) }
+
+        val log = logs[0]
+        log.segments = Collections.singletonList(LogSegment(1))
+        metadataStorage.updateLogInfo(name, log).blockingSubscribe()
+        Assert.assertEquals(log.segments, metadataStorage.getLogInfo(name).blockingFirst().segments)
+
+        // Written by another broker, seen once the watch fires
+        zookeeper.setData("/fastmq/bk-ledgers/" + name, LogFormat.encode(Log(name)), -1)
+        val deadline = System.currentTimeMillis() + 5000
+        while (metadataStorage.getLogInfo(name).blockingFirst().segments.isNotEmpty()) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline)
+            Thread.sleep(10)
+        }
+        metadataStorage.removeLogInfo(name).blockingSubscribe()
+    }
+
     @After
     @Throws(Exception::class)
     fun tearDown() {
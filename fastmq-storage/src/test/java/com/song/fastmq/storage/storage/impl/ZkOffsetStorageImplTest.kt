@@ -4,6 +4,10 @@ import com.song.fastmq.storage.storage.ConsumerInfo
 import com.song.fastmq.storage.storage.MetadataStorage
 import com.song.fastmq.storage.storage.Offset
 import com.song.fastmq.storage.storage.OffsetStorage
+import com.song.fastmq.storage.storage.concurrent.AsyncCallbacks
+import com.song.fastmq.storage.storage.config.MessageStorageConfig
+import com.song.fastmq.storage.storage.metadata.Log
+import io.reactivex.Observable
 import org.apache.curator.framework.CuratorFramework
 import org.apache.curator.framework.CuratorFrameworkFactory
 import org.apache.curator.retry.ExponentialBackoffRetry
@@ -15,7 +19,10 @@ import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.mockito.Mock
+import org.mockito.Mockito
 import org.mockito.runners.MockitoJUnitRunner
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
 
 
 /**
@@ -73,6 +80,45 @@ class ZkOffsetStorageImplTest {
         assertEquals(1024, offset.entryId)
     }
 
+    @Test
+    fun concurrentQueriesShareOneLoad() {
+        val consumerInfo = ConsumerInfo(consumerName, topic)
+        Mockito.`when`(metadataStorage.getLogInfo(topic)).thenReturn(Observable.just(Log(topic)))
+        val futures = (0 until 100).map {
+            val future = CompletableFuture<Offset>()
+            this.offsetStorage.asyncQueryOffset(consumerInfo, object : AsyncCallbacks.ReadOffsetCallback {
+                override fun onComplete(offset: Offset?) {
+                    future.complete(offset)
+                }
+
+                override fun onThrowable(throwable: Throwable) {
+                    future.completeExceptionally(throwable)
+                }
+            })
+            future
+        }
+        futures.forEach { assertEquals(Offset(0, 0), it.get(10, TimeUnit.SECONDS)) }
+        Mockito.verify(metadataStorage, Mockito.atMost(1)).getLogInfo(topic)
+    }
+
+    @Test
+    fun flushedOnClose() {
+        val config = MessageStorageConfig()
+        config.offsetFlushIntervalMs = 60 * 1000
+        val asyncCuratorFramework = AsyncCuratorFramework.wrap(curatorFramework)
+        val consumers = (0 until 1000).map { ConsumerInfo("consumer-flush-$it", topic) }
+        val storage = ZkOffsetStorageImpl(metadataStorage, asyncCuratorFramework, config)
+        consumers.forEachIndexed { index, consumerInfo -> storage.commitOffset(consumerInfo, Offset(10, index.toLong())) }
+        storage.close()
+
+        val reopened = ZkOffsetStorageImpl(metadataStorage, asyncCuratorFramework, config)
+        consumers.forEachIndexed { index, consumerInfo ->
+            assertEquals(Offset(10, index.toLong()), reopened.queryOffset(consumerInfo))
+            reopened.removeOffset(consumerInfo)
+        }
+        reopened.close()
+    }
+
     @After
     @Throws(Exception::class)
     fun tearDown() {
@@ -0,0 +1,115 @@
+package com.song.fastmq.storage.storage.metadata
+
+import com.song.fastmq.common.utils.JsonUtils
+import com.song.fastmq.storage.storage.Offset
+import com.song.fastmq.storage.storage.impl.InMemoryMetadataStorageImpl
+import org.apache.bookkeeper.client.BookKeeper
+import org.apache.zookeeper.KeeperException
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+import kotlin.test.fail
+
+/**
+ * @author song
+ */
+class LogFormatTest {
+
+    private fun sampleLog(): Log {
+        val log = Log("test-topic")
+        val now = System.currentTimeMillis()
+        val segments = (0 until 100).mapTo(ArrayList()) {
+            val segment = LogSegment(10000L + it * 3, 50000, 50000L * 1024, now + it * 60000L,
+                    listOf(TimeIndexEntry(now + it * 60000L - 50000, 0), TimeIndexEntry(now + it * 60000L - 20000, 25000)))
+            if (it < 10) {
+                segment.offloadLocation = "/data/offload/test-topic/${segment.ledgerId}"
+                segment.offloadTimestamp = now
+                segment.offloadedLedgerDeleted = it < 5
+            }
+            segment
+        }
+        // The ledger still written, and the standby one
+        segments.add(LogSegment(20000, timeIndex = listOf(TimeIndexEntry(now + 100 * 60000L, 0))))
+        segments.add(LogSegment(20001))
+        log.segments = segments
+        return log
+    }
+
+    @Test
+    fun encodeAndDecode() {
+        val log = sampleLog()
+        val decoded = LogFormat.decode(LogFormat.encode(log))
+        assertEquals(log.name, decoded.name)
+        assertEquals(log.segments, decoded.segments)
+    }
+
+    @Test
+    fun encodeCompaction() {
+        val log = sampleLog()
+        assertEquals(-1, LogFormat.decode(LogFormat.encode(log)).compactedLedgerId)
+
+        log.compactedLedgerId = 30000
+        log.compactionHorizon = Offset(20000, 1234, 5)
+        val decoded = LogFormat.decode(LogFormat.encode(log))
+        assertEquals(30000, decoded.compactedLedgerId)
+        assertEquals(Offset(20000, 1234, 5), decoded.compactionHorizon)
+        assertEquals(log.segments, decoded.segments)
+    }
+
+    @Test
+    fun encodeStoragePolicy() {
+        val log = sampleLog()
+        assertNull(LogFormat.decode(LogFormat.encode(log)).storagePolicy)
+
+        log.storagePolicy = StoragePolicy(2, 2, 1, BookKeeper.DigestType.CRC32)
+        val decoded = LogFormat.decode(LogFormat.encode(log))
+        assertEquals(log.storagePolicy, decoded.storagePolicy)
+        assertEquals(log.segments, decoded.segments)
+    }
+
+    @Test
+    fun encodeMarkedEntriesSince() {
+        val log = sampleLog()
+        assertEquals(-1, LogFormat.decode(LogFormat.encode(log)).markedEntriesSinceLedgerId)
+
+        log.markedEntriesSinceLedgerId = 20000
+        val decoded = LogFormat.decode(LogFormat.encode(log))
+        assertEquals(20000, decoded.markedEntriesSinceLedgerId)
+        assertEquals(log.segments, decoded.segments)
+    }
+
+    @Test
+    fun smallerThanJson() {
+        val log = sampleLog()
+        val binary = LogFormat.encode(log).size
+        val json = JsonUtils.toJson(log).toByteArray().size
+        assertTrue(binary * 4 < json, "binary $binary bytes, json $json bytes")
+    }
+
+    @Test
+    fun readJsonWrittenBefore() {
+        val log = sampleLog()
+        val decoded = LogFormat.decode(JsonUtils.toJson(log).toByteArray())
+        assertEquals(log.segments, decoded.segments)
+    }
+
+    @Test
+    fun updateAgainstVersion() {
+        val metadataStorage = InMemoryMetadataStorageImpl()
+        val first = metadataStorage.getLogInfo("test-topic").blockingFirst()
+        val second = metadataStorage.getLogInfo("test-topic").blockingFirst()
+        first.segments = arrayListOf(LogSegment(1))
+        metadataStorage.updateLogInfo("test-topic", first).blockingSubscribe()
+        assertEquals(1, first.version?.version)
+
+        second.segments = arrayListOf(LogSegment(2))
+        try {
+            metadataStorage.updateLogInfo("test-topic", second).blockingFirst()
+            fail("The log was updated since it was read")
+        } catch (e: RuntimeException) {
+            assertTrue(e.cause is KeeperException.BadVersionException)
+        }
+        assertEquals(listOf(LogSegment(1)), metadataStorage.getLogInfo("test-topic").blockingFirst().segments)
+    }
+}
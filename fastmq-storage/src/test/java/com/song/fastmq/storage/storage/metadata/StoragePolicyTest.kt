@@ -0,0 +1,19 @@
+package com.song.fastmq.storage.storage.metadata
+
+import org.junit.Test
+import kotlin.test.assertFailsWith
+
+/**
+ * @author song
+ */
+class StoragePolicyTest {
+
+    @Test
+    fun validate() {
+        StoragePolicy().validate()
+        StoragePolicy(1, 1, 1).validate()
+        assertFailsWith<IllegalArgumentException> { StoragePolicy(2, 3, 1).validate() }
+        assertFailsWith<IllegalArgumentException> { StoragePolicy(3, 2, 3).validate() }
+        assertFailsWith<IllegalArgumentException> { StoragePolicy(3, 2, 0).validate() }
+    }
+}